@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncBulkInsertHandlerTest extends TestCase {
+
+    /**
+     * A provider whose bulk inserts follow a script. Each step is the most rows the call inserts,
+     * or -1 to throw. Calls after the script insert every row.
+     */
+    private static final class ScriptedProvider extends MockContentProvider {
+        private final int[] mScript;
+
+        private final ArrayList<Integer> mBatches = new ArrayList<Integer>();
+
+        ScriptedProvider(int... script) {
+            mScript = script;
+        }
+
+        @Override
+        public synchronized int bulkInsert(Uri uri, ContentValues[] values) {
+            int calls = mBatches.size();
+            mBatches.add(values.length);
+            notifyAll();
+            int step = calls < mScript.length ? mScript[calls] : values.length;
+            if (step < 0)
+                throw new IllegalStateException("Provider failed");
+            return Math.min(step, values.length);
+        }
+
+        synchronized void awaitCalls(int calls) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (mBatches.size() < calls) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("bulkInsert was not called " + calls + " times", remaining > 0);
+                wait(remaining);
+            }
+        }
+
+        synchronized Integer[] getBatches() {
+            return mBatches.toArray(new Integer[mBatches.size()]);
+        }
+    }
+
+    private static AsyncBulkInsertHandler handler(ScriptedProvider provider,
+                                                  CircuitBreaker breaker) {
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(StreamContract.CONTENT_AUTHORITY, provider);
+        return new AsyncBulkInsertHandler(resolver, StreamContract.Streams.CONTENT_URI, 60000,
+                100, breaker);
+    }
+
+    private static Random fixed(final double value) {
+        return new Random() {
+            @Override
+            public double nextDouble() {
+                return value;
+            }
+        };
+    }
+
+    public void testRetryDelayDoubles() {
+        long delay = AsyncBulkInsertHandler.RETRY_DELAY;
+        for (int retry = 1; retry <= 5; retry++) {
+            assertEquals(delay / 2, AsyncBulkInsertHandler.retryDelay(retry, fixed(0)));
+            assertEquals(delay, AsyncBulkInsertHandler.retryDelay(retry, fixed(1)));
+            delay *= 2;
+        }
+    }
+
+    public void testRetryDelayIsJittered() {
+        Random random = new Random(42);
+        long backoff = AsyncBulkInsertHandler.RETRY_DELAY << 2;
+        for (int i = 0; i < 100; i++) {
+            long delay = AsyncBulkInsertHandler.retryDelay(3, random);
+            assertTrue(delay >= backoff / 2);
+            assertTrue(delay <= backoff);
+        }
+    }
+
+    public void testRetryDelayIsCapped() {
+        assertEquals(AsyncBulkInsertHandler.MAX_RETRY_DELAY,
+                AsyncBulkInsertHandler.retryDelay(40, fixed(1)));
+        assertEquals(AsyncBulkInsertHandler.MAX_RETRY_DELAY / 2,
+                AsyncBulkInsertHandler.retryDelay(100, fixed(0)));
+    }
+
+    public void testFlushWaitsForRetriedAndHeldPoints() throws InterruptedException {
+        // Fails, then inserts 2 rows, which opens the breaker, then inserts the rest
+        ScriptedProvider provider = new ScriptedProvider(-1, 2);
+        CircuitBreaker breaker = new CircuitBreaker(2, CircuitBreaker.SLOW_WRITE_MS, 300);
+        AsyncBulkInsertHandler handler = handler(provider, breaker);
+        for (int i = 0; i < 5; i++) {
+            handler.startInsert(new ContentValues());
+        }
+        StreamFuture flush = handler.flush();
+
+        provider.awaitCalls(1);
+        assertFalse("done after a failed write", flush.await(50, TimeUnit.MILLISECONDS));
+
+        provider.awaitCalls(2);
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        // Submitted after the flush so it isn't waited for or counted
+        handler.startInsert(new ContentValues());
+        assertFalse("done while the breaker is open", flush.await(100, TimeUnit.MILLISECONDS));
+
+        assertTrue(flush.await(10, TimeUnit.SECONDS));
+        assertEquals(5, flush.getCount());
+        // The rest of each batch was retried in front of the newer point
+        assertEquals(Arrays.asList(5, 5, 4), Arrays.asList(provider.getBatches()));
+    }
+
+    public void testFlushWithNothingPendingIsDone() {
+        AsyncBulkInsertHandler handler = handler(new ScriptedProvider(), new CircuitBreaker());
+        StreamFuture flush = handler.flush();
+        assertTrue(flush.isDone());
+        assertEquals(0, flush.getCount());
+    }
+
+    public void testFlushWaitsForDeferredPoints() throws InterruptedException {
+        StreamRateLimiter.setLimit("deferred", 5, 1, StreamRateLimiter.POLICY_DEFER);
+        try {
+            ScriptedProvider provider = new ScriptedProvider();
+            AsyncBulkInsertHandler handler = handler(provider, new CircuitBreaker());
+            // The second point is held back for about 200ms
+            handler.startInsert(new StreamPointBuilder("deferred", 1).setData("{}"));
+            handler.startInsert(new StreamPointBuilder("deferred", 1).setData("{}"));
+            assertEquals(1, StreamRateLimiter.getDeferredCount("deferred"));
+            StreamFuture flush = handler.flush();
+
+            provider.awaitCalls(1);
+            assertFalse(flush.await(50, TimeUnit.MILLISECONDS));
+            assertTrue(flush.await(StreamRateLimiter.MAX_DEFER_MS, TimeUnit.MILLISECONDS));
+            assertEquals(2, flush.getCount());
+            assertEquals(Arrays.asList(1, 1), Arrays.asList(provider.getBatches()));
+        } finally {
+            StreamRateLimiter.clearLimit("deferred");
+        }
+    }
+
+    public void testDrainWritesPointsWithoutWaitingForTheFlushDelay() throws InterruptedException {
+        ScriptedProvider provider = new ScriptedProvider();
+        AsyncBulkInsertHandler handler = handler(provider, new CircuitBreaker());
+        for (int i = 0; i < 3; i++) {
+            handler.startInsert(new StreamPointBuilder("drained", 1).setData("{}"));
+        }
+        StreamFuture drain = handler.drain(2000);
+        assertTrue(drain.isDone());
+        assertEquals(3, drain.getCount());
+        assertEquals(Arrays.asList(3), Arrays.asList(provider.getBatches()));
+    }
+
+    public void testDrainTimesOutWhileTheBatchIsRetried() throws InterruptedException {
+        ScriptedProvider provider = new ScriptedProvider(-1);
+        AsyncBulkInsertHandler handler = handler(provider, new CircuitBreaker());
+        for (int i = 0; i < 3; i++) {
+            handler.startInsert(new StreamPointBuilder("drained", 1).setData("{}"));
+        }
+        StreamFuture drain = handler.drain(50);
+        assertFalse(drain.isDone());
+
+        // Done once the retry went through
+        assertTrue(drain.await(AsyncBulkInsertHandler.RETRY_DELAY * 4, TimeUnit.MILLISECONDS));
+        assertEquals(3, drain.getCount());
+        assertEquals(Arrays.asList(3, 3), Arrays.asList(provider.getBatches()));
+    }
+
+    public void testPointsInOneBatchShareAFuture() throws Exception {
+        ScriptedProvider provider = new ScriptedProvider();
+        AsyncBulkInsertHandler handler = handler(provider, new CircuitBreaker());
+        StreamFuture future = new StreamPointBuilder("batched", 1).setData("{}").submit(handler);
+        for (int i = 0; i < 2; i++) {
+            assertSame(future,
+                    new StreamPointBuilder("batched", 1).setData("{}").submit(handler));
+        }
+        assertFalse(future.isDone());
+
+        handler.flush();
+        assertTrue(future.await(2000, TimeUnit.MILLISECONDS));
+        assertEquals(3, future.getCount());
+
+        // The next batch gets its own future
+        StreamFuture next = new StreamPointBuilder("batched", 1).setData("{}").submit(handler);
+        assertNotSame(future, next);
+        handler.flush();
+        assertTrue(next.await(2000, TimeUnit.MILLISECONDS));
+        assertEquals(1, next.getCount());
+    }
+
+    public void testFutureWaitsForRowsWhichAreRetried() throws Exception {
+        ScriptedProvider provider = new ScriptedProvider(2);
+        AsyncBulkInsertHandler handler = handler(provider, new CircuitBreaker());
+        StreamFuture future = null;
+        for (int i = 0; i < 3; i++) {
+            future = new StreamPointBuilder("batched", 1).setData("{}").submit(handler);
+        }
+        handler.flush();
+        provider.awaitCalls(1);
+        assertFalse(future.await(50, TimeUnit.MILLISECONDS));
+
+        assertTrue(future.await(AsyncBulkInsertHandler.RETRY_DELAY * 4, TimeUnit.MILLISECONDS));
+        assertEquals(3, future.getCount());
+        assertEquals(Arrays.asList(3, 1), Arrays.asList(provider.getBatches()));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class AutoStreamTransportTest extends TestCase {
+
+    private static final long SECOND = 1000 * 1000 * 1000L;
+
+    private static final StreamTransport NOOP = new StreamTransport() {
+        @Override
+        public void write(StreamPointBuilder point) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private AutoStreamTransport mTransport;
+
+    /**
+     * Records the data of the points written to it
+     */
+    private static class RecordingTransport implements StreamTransport {
+        final List<String> mData = new ArrayList<String>();
+
+        @Override
+        public synchronized void write(StreamPointBuilder point) {
+            mData.add(point.getData());
+            notifyAll();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        synchronized List<String> getData() {
+            return new ArrayList<String>(mData);
+        }
+
+        synchronized void awaitPoints(int points) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mData.size() < points) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("only got " + mData.size() + " points", remaining > 0);
+                wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * A writer whose points are only sent once {@link #mSent} completes
+     */
+    private static class PendingWriter extends RecordingTransport implements StreamPointWriter {
+        final StreamFuture mSent = new StreamFuture();
+
+        @Override
+        public void write(String streamId, int streamVersion, String metadata, String data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public StreamFuture flush() {
+            return mSent;
+        }
+
+        @Override
+        public StreamFuture drain(long timeout) {
+            return mSent;
+        }
+
+        @Override
+        public void setDedupFilter(StreamDedupFilter filter) {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTransport = new AutoStreamTransport(NOOP, NOOP, NOOP);
+    }
+
+    /**
+     * Writes points at a steady rate and returns the path of the last one
+     */
+    private int writeAt(AutoStreamTransport.StreamState state, long start, long interval,
+                        int points) {
+        int path = -1;
+        for (int i = 0; i < points; i++) {
+            path = mTransport.choosePath(state, start + i * interval, 100);
+        }
+        return path;
+    }
+
+    public void testSlowStreamStaysOnSinglePath() {
+        AutoStreamTransport.StreamState state = new AutoStreamTransport.StreamState();
+        assertEquals(AutoStreamTransport.PATH_SINGLE, writeAt(state, SECOND, SECOND, 10));
+    }
+
+    public void testFastStreamMovesToBatchPath() {
+        AutoStreamTransport.StreamState state = new AutoStreamTransport.StreamState();
+        assertEquals(AutoStreamTransport.PATH_BATCH, writeAt(state, SECOND, SECOND / 10, 20));
+    }
+
+    public void testVeryFastStreamMovesToStreamPath() {
+        AutoStreamTransport.StreamState state = new AutoStreamTransport.StreamState();
+        assertEquals(AutoStreamTransport.PATH_STREAM, writeAt(state, SECOND, SECOND / 100, 300));
+    }
+
+    public void testStaysOnPathForDwellTime() {
+        AutoStreamTransport.StreamState state = new AutoStreamTransport.StreamState();
+        assertEquals(AutoStreamTransport.PATH_SINGLE, writeAt(state, SECOND, SECOND / 10, 5));
+    }
+
+    public void testSlowedStreamReturnsToSinglePath() {
+        AutoStreamTransport.StreamState state = new AutoStreamTransport.StreamState();
+        writeAt(state, SECOND, SECOND / 10, 20);
+        assertEquals(AutoStreamTransport.PATH_SINGLE, writeAt(state, 4 * SECOND, 2 * SECOND, 20));
+    }
+
+    private static StreamPointBuilder point(int streamVersion, int index) {
+        return new StreamPointBuilder("auto", streamVersion).setData("{\"i\":" + index + "}");
+    }
+
+    /**
+     * Writes points through the transport at a steady rate
+     *
+     * @return the time after the last point
+     */
+    private static long writeAt(AutoStreamTransport transport, int streamVersion, long start,
+                                long interval, int first, int points) throws Exception {
+        for (int i = 0; i < points; i++) {
+            transport.write(point(streamVersion, first + i), start + i * interval);
+        }
+        return start + points * interval;
+    }
+
+    public void testVersionsOfAStreamArePickedApart() throws Exception {
+        RecordingTransport single = new RecordingTransport();
+        RecordingTransport batch = new RecordingTransport();
+        AutoStreamTransport transport = new AutoStreamTransport(single, batch);
+        for (int i = 0; i < 40; i++) {
+            long now = SECOND + i * SECOND / 10;
+            transport.write(point(1, i), now);
+            if (i % 10 == 0)
+                transport.write(point(2, 100 + i), now);
+        }
+        // Only the fast version moved to the batch path
+        List<String> slow = Arrays.asList("{\"i\":100}", "{\"i\":110}", "{\"i\":120}",
+                "{\"i\":130}");
+        assertTrue(single.getData().containsAll(slow));
+        assertEquals(30, batch.getData().size());
+        assertEquals("{\"i\":39}", batch.getData().get(29));
+    }
+
+    public void testPointsWaitForThePreviousPathWithoutBlocking() throws Exception {
+        RecordingTransport single = new RecordingTransport();
+        RecordingTransport batch = new RecordingTransport();
+        PendingWriter writer = new PendingWriter();
+        AutoStreamTransport transport = new AutoStreamTransport(single, batch,
+                new StreamWriterTransport(writer));
+
+        // Single, then batch, then stream once the rate passes the stream threshold
+        long now = writeAt(transport, 1, SECOND, SECOND / 100, 0, 300);
+        assertFalse(writer.getData().isEmpty());
+        int batched = batch.getData().size();
+
+        // Slows down enough to go back to the batch path while the writer hasn't sent its points
+        writeAt(transport, 1, now, SECOND / 10, 300, 20);
+        int streamed = writer.getData().size();
+        assertEquals(batched, batch.getData().size());
+        int held = 300 + 20 - streamed - batched - single.getData().size();
+        assertTrue(held > 0);
+
+        writer.mSent.complete(streamed);
+        batch.awaitPoints(batched + held);
+        List<String> released = batch.getData().subList(batched, batched + held);
+        for (int i = 0; i < held; i++) {
+            assertEquals("{\"i\":" + (320 - held + i) + "}", released.get(i));
+        }
+
+        // Nothing is held anymore
+        transport.write(point(1, 320), now + 3 * SECOND);
+        batch.awaitPoints(batched + held + 1);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+
+    public void testOpensAfterFailuresInARow() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000, 60000);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allowWrite());
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertTrue(breaker.allowWrite());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+        assertFalse(breaker.allowWrite());
+        assertTrue(breaker.getRetryDelay() > 0);
+    }
+
+    public void testSuccessResetsFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 1000, 60000);
+        breaker.allowWrite();
+        breaker.onFailure();
+        breaker.allowWrite();
+        breaker.onSuccess(0);
+        breaker.allowWrite();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState());
+    }
+
+    public void testSlowWriteCountsAsFailure() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, 60000);
+        assertTrue(breaker.allowWrite());
+        breaker.onSuccess(2000 * 1000000L);
+        assertEquals(CircuitBreaker.STATE_OPEN, breaker.getState());
+    }
+
+    public void testHalfOpenLetsOneTrialThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, 0);
+        breaker.allowWrite();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowWrite());
+        assertFalse(breaker.allowWrite());
+        breaker.onSuccess(0);
+        assertEquals(CircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertTrue(breaker.allowWrite());
+    }
+
+    public void testFailedTrialOpensAgain() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000, 0);
+        for (int i = 0; i < 3; i++) {
+            breaker.allowWrite();
+            breaker.onFailure();
+        }
+        assertTrue(breaker.allowWrite());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowWrite());
+        assertFalse(breaker.allowWrite());
+    }
+
+    public void testSkippedTrialKeepsState() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, 0);
+        breaker.allowWrite();
+        breaker.onFailure();
+        assertTrue(breaker.allowWrite());
+        breaker.onSkipped();
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        // The trial slot is free again, and a failed trial opens the breaker again
+        assertTrue(breaker.allowWrite());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowWrite());
+        assertFalse(breaker.allowWrite());
+    }
+}
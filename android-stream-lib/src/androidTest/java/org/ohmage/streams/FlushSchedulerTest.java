@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.Intent;
+import android.os.SystemClock;
+
+import junit.framework.TestCase;
+
+/**
+ * Sends the power and screen broadcasts straight to the receiver of the scheduler, so it runs as a
+ * plain instrumentation test without Robolectric shadows
+ */
+public class FlushSchedulerTest extends TestCase {
+
+    private static final long DELAY = 500;
+
+    private FlushScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new FlushScheduler(null);
+    }
+
+    private void send(String action) {
+        mScheduler.mReceiver.onReceive(null, new Intent(action));
+    }
+
+    private void assertFlushTime(float scale, long tick) {
+        long earliest = SystemClock.uptimeMillis() + (long) (DELAY * scale);
+        long time = mScheduler.getFlushTime(DELAY);
+        long latest = SystemClock.uptimeMillis() + (long) (DELAY * scale) + tick;
+        assertEquals(0, time % tick);
+        assertTrue(time >= earliest);
+        assertTrue(time < latest);
+    }
+
+    public void testInteractiveOnBatteryUsesNormalScale() {
+        assertTrue(mScheduler.isInteractive());
+        assertFalse(mScheduler.isCharging());
+        assertFlushTime(FlushScheduler.NORMAL_SCALE, FlushScheduler.NORMAL_TICK);
+    }
+
+    public void testChargingAndInteractiveUsesFastScale() {
+        send(Intent.ACTION_POWER_CONNECTED);
+        assertTrue(mScheduler.isCharging());
+        assertFlushTime(FlushScheduler.FAST_SCALE, FlushScheduler.FAST_TICK);
+    }
+
+    public void testScreenOffOnBatteryUsesIdleScale() {
+        send(Intent.ACTION_SCREEN_OFF);
+        assertFalse(mScheduler.isInteractive());
+        assertFlushTime(FlushScheduler.IDLE_SCALE, FlushScheduler.IDLE_TICK);
+
+        send(Intent.ACTION_POWER_CONNECTED);
+        assertFlushTime(FlushScheduler.NORMAL_SCALE, FlushScheduler.NORMAL_TICK);
+
+        send(Intent.ACTION_POWER_DISCONNECTED);
+        send(Intent.ACTION_SCREEN_ON);
+        assertFlushTime(FlushScheduler.NORMAL_SCALE, FlushScheduler.NORMAL_TICK);
+    }
+}
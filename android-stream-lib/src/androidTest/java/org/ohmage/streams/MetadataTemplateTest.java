@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class MetadataTemplateTest extends TestCase {
+
+    private static MetadataTemplate template() throws JSONException {
+        return new MetadataTemplate(new JSONObject().put("app", "test").put("rate", 50));
+    }
+
+    public void testFieldsAreSplicedAfterPointFields() throws JSONException {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1)
+                .withId("a")
+                .withTemplate(template());
+        assertEquals("{\"id\":\"a\",\"app\":\"test\",\"rate\":50}", point.encodeMetadata());
+    }
+
+    public void testTemplateOnlyMetadata() throws JSONException {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1).withTemplate(template());
+        assertEquals("{\"app\":\"test\",\"rate\":50}", point.encodeMetadata());
+    }
+
+    public void testMetadataIsOnlyRebuiltWhenChanged() throws JSONException {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1)
+                .withId("a")
+                .withLocation(1, 2, 3, 4)
+                .withTemplate(template());
+        String first = point.encodeMetadata();
+        assertSame(first, point.encodeMetadata());
+
+        // The same fix doesn't change the metadata
+        point.withLocation(1, 2, 3, 4);
+        assertSame(first, point.encodeMetadata());
+
+        point.withId("b");
+        String second = point.encodeMetadata();
+        assertNotSame(first, second);
+        assertTrue(second.startsWith("{\"id\":\"b\","));
+        assertTrue(second.endsWith("\"app\":\"test\",\"rate\":50}"));
+    }
+
+    public void testSetMetadataDropsTemplate() throws JSONException {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1).withTemplate(template());
+        point.setMetadata("{\"b\":1}");
+        assertEquals("{\"b\":1}", point.encodeMetadata());
+    }
+
+    public void testPointFieldsAreRejected() throws JSONException {
+        String[] names = {"id", "timestamp", "location"};
+        for (String name : names) {
+            try {
+                new MetadataTemplate(new JSONObject().put(name, "x"));
+                fail(name + " was accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testEmptyTemplateIsRejected() {
+        try {
+            new MetadataTemplate(new JSONObject());
+            fail("empty template was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
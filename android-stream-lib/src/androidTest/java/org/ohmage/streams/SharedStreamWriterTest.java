@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.test.mock.MockContext;
+
+import junit.framework.TestCase;
+
+public class SharedStreamWriterTest extends TestCase {
+
+    /**
+     * Counts binds and unbinds without connecting to anything
+     */
+    private static class BindingContext extends MockContext {
+        int mBound;
+
+        int mUnbound;
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+            mBound++;
+            return true;
+        }
+
+        @Override
+        public void unbindService(ServiceConnection conn) {
+            mUnbound++;
+        }
+    }
+
+    private BindingContext mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new BindingContext();
+    }
+
+    public void testHandlesShareOneConnection() {
+        SharedStreamWriter first = SharedStreamWriter.obtain(mContext);
+        SharedStreamWriter second = SharedStreamWriter.obtain(mContext);
+        assertNotSame(first, second);
+        assertSame(first.getWriter(), second.getWriter());
+        assertEquals(1, mContext.mBound);
+
+        first.close();
+        assertEquals(0, mContext.mUnbound);
+        second.close();
+        assertEquals(1, mContext.mUnbound);
+    }
+
+    public void testClosingTwiceReleasesOnce() {
+        SharedStreamWriter first = SharedStreamWriter.obtain(mContext);
+        SharedStreamWriter second = SharedStreamWriter.obtain(mContext);
+        first.close();
+        first.close();
+        assertEquals(0, mContext.mUnbound);
+        assertFalse(first.connect());
+        assertTrue(second.connect());
+        second.close();
+        assertEquals(1, mContext.mUnbound);
+    }
+
+    public void testClosedHandleRejectsPoints() throws Exception {
+        SharedStreamWriter handle = SharedStreamWriter.obtain(mContext);
+        handle.close();
+        try {
+            handle.write("stream", 1, null, "{}");
+            fail("A closed handle accepted a point");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testFirstHandleTakesOverPrewarmedConnection() {
+        SharedStreamWriter.prewarm(mContext);
+        SharedStreamWriter.prewarm(mContext);
+        assertEquals(1, mContext.mBound);
+
+        SharedStreamWriter handle = SharedStreamWriter.obtain(mContext);
+        assertEquals(1, mContext.mBound);
+        handle.close();
+        assertEquals(1, mContext.mUnbound);
+    }
+
+    public void testConnectsAgainAfterLastHandleIsClosed() {
+        SharedStreamWriter first = SharedStreamWriter.obtain(mContext);
+        StreamWriter writer = first.getWriter();
+        first.close();
+
+        SharedStreamWriter second = SharedStreamWriter.obtain(mContext);
+        assertNotSame(writer, second.getWriter());
+        assertEquals(2, mContext.mBound);
+        second.close();
+        assertEquals(2, mContext.mUnbound);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StreamCountsCacheTest extends TestCase {
+
+    private static final String STREAM = "counted";
+
+    private static final int VERSION = 1;
+
+    /**
+     * Points saved by the provider
+     */
+    private volatile long mSaved;
+
+    /**
+     * Points the provider writes locally while it is being queried
+     */
+    private volatile int mWrittenDuringQuery;
+
+    private volatile boolean mFailQuery;
+
+    private StreamCountsCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(StreamContract.CONTENT_AUTHORITY, new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder) {
+                if (mFailQuery)
+                    throw new IllegalStateException("Query failed");
+                MatrixCursor cursor = new MatrixCursor(projection);
+                cursor.addRow(new Object[]{STREAM, VERSION, mSaved});
+                int written = mWrittenDuringQuery;
+                mWrittenDuringQuery = 0;
+                StreamCountsCache.pointsWritten(STREAM, VERSION, written);
+                return cursor;
+            }
+        });
+        mCache = new StreamCountsCache(resolver);
+        // Waits for the first refresh in the background so it doesn't run during a test
+        final CountDownLatch loaded = new CountDownLatch(1);
+        mCache.setOnCountsChangedListener(new StreamCountsCache.OnCountsChangedListener() {
+            @Override
+            public void onCountsChanged(StreamCountsCache cache) {
+                loaded.countDown();
+            }
+        });
+        mCache.start();
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+        mCache.setOnCountsChangedListener(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.stop();
+        super.tearDown();
+    }
+
+    private void assertCount(long expected) {
+        assertEquals(expected, mCache.getCount(STREAM, VERSION));
+    }
+
+    public void testLocalPointsAreCountedRightAway() {
+        mSaved = 10;
+        mCache.refresh();
+        assertCount(10);
+
+        StreamCountsCache.pointsWritten(STREAM, VERSION, 5);
+        assertCount(15);
+    }
+
+    public void testCountDoesNotDipBeforeProviderCatchesUp() {
+        mSaved = 10;
+        mCache.refresh();
+        StreamCountsCache.pointsWritten(STREAM, VERSION, 5);
+
+        // None of the points were saved yet
+        mCache.refresh();
+        assertCount(15);
+
+        mSaved = 13;
+        mCache.refresh();
+        assertCount(15);
+
+        mSaved = 15;
+        mCache.refresh();
+        assertCount(15);
+
+        // The local points are all included in the count from the provider now
+        mSaved = 12;
+        mCache.refresh();
+        assertCount(12);
+    }
+
+    public void testPointsWrittenDuringRefreshAreKept() {
+        mSaved = 10;
+        mCache.refresh();
+        StreamCountsCache.pointsWritten(STREAM, VERSION, 1);
+
+        mSaved = 11;
+        mWrittenDuringQuery = 2;
+        mCache.refresh();
+        assertCount(13);
+    }
+
+    public void testLocalPointsWhichAreNeverSavedAgeOut() {
+        mSaved = 10;
+        mCache.refresh();
+        StreamCountsCache.pointsWritten(STREAM, VERSION, 5);
+
+        mSaved = 12;
+        for (int i = 1; i < StreamCountsCache.LOCAL_REFRESHES; i++) {
+            mCache.refresh();
+            assertCount(15);
+        }
+        mCache.refresh();
+        assertCount(12);
+    }
+
+    public void testFailedQueryKeepsTheCounts() {
+        mSaved = 10;
+        mCache.refresh();
+        StreamCountsCache.pointsWritten(STREAM, VERSION, 2);
+
+        mFailQuery = true;
+        mCache.refresh();
+        assertCount(12);
+
+        mFailQuery = false;
+        mSaved = 12;
+        mCache.refresh();
+        assertCount(12);
+    }
+}
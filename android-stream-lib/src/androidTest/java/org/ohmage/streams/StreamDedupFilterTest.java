@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+public class StreamDedupFilterTest extends TestCase {
+
+    public void testDuplicateIsDropped() {
+        StreamDedupFilter filter = new StreamDedupFilter(100, 0.001,
+                StreamDedupFilter.DEFAULT_WINDOW);
+        assertFalse(filter.checkAndAdd("a"));
+        assertTrue(filter.checkAndAdd("a"));
+        assertFalse(filter.checkAndAdd("b"));
+        assertEquals(1, filter.getDroppedCount());
+    }
+
+    public void testFalsePositiveRate() {
+        int points = 10000;
+        double rate = 0.01;
+        StreamDedupFilter filter = new StreamDedupFilter(points, rate,
+                StreamDedupFilter.DEFAULT_WINDOW);
+        for (int i = 0; i < points; i++) {
+            filter.put("sent-" + i);
+        }
+        int falsePositives = 0;
+        int checked = 100000;
+        for (int i = 0; i < checked; i++) {
+            if (filter.mightContain("new-" + i))
+                falsePositives++;
+        }
+        // Each filter gets half the rate so both together stay within it
+        assertTrue("rate " + (double) falsePositives / checked,
+                falsePositives <= checked * rate / 2 * 1.5);
+    }
+
+    public void testPendingIdIsDroppedUntilSent() {
+        StreamDedupFilter filter = new StreamDedupFilter(100, 0.001,
+                StreamDedupFilter.DEFAULT_WINDOW);
+        String metadata = "{\"id\":\"point\"}";
+        long hash = filter.checkMetadata(metadata);
+        assertTrue(hash != 0 && hash != -1);
+        assertEquals(-1, filter.checkMetadata(metadata));
+        filter.putHash(hash);
+        assertEquals(-1, filter.checkMetadata(metadata));
+        assertTrue(filter.mightContain("point"));
+    }
+
+    public void testReleasedIdCanBeSentAgain() {
+        StreamDedupFilter filter = new StreamDedupFilter(100, 0.001,
+                StreamDedupFilter.DEFAULT_WINDOW);
+        String metadata = "{\"id\":\"point\"}";
+        long hash = filter.checkMetadata(metadata);
+        filter.releaseHash(hash);
+        assertEquals(hash, filter.checkMetadata(metadata));
+        assertFalse(filter.mightContain("point"));
+    }
+
+    public void testPointsWithoutIdAreKept() {
+        StreamDedupFilter filter = new StreamDedupFilter(100, 0.001,
+                StreamDedupFilter.DEFAULT_WINDOW);
+        assertEquals(0, filter.checkMetadata("{\"time\":1}"));
+        assertEquals(0, filter.checkMetadata("{\"time\":1}"));
+        assertEquals(0, filter.checkMetadata(null));
+    }
+}
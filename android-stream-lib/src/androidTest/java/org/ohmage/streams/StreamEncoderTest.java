@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StreamEncoderTest extends TestCase {
+
+    /**
+     * Rejects the first point with a runtime exception and counts the rest
+     */
+    private static class FailingTransport implements StreamTransport {
+        final AtomicInteger written = new AtomicInteger();
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void write(StreamPointBuilder point) {
+            if (calls.getAndIncrement() == 0)
+                throw new RuntimeException("Must specify data");
+            written.incrementAndGet();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public void testRuntimeExceptionDoesNotStopTheLane() throws InterruptedException {
+        FailingTransport transport = new FailingTransport();
+        StreamEncoder encoder = new StreamEncoder(transport, 1, 16);
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(encoder.submit(point));
+        }
+        encoder.close();
+
+        assertEquals(1, encoder.getInvalidCount());
+        assertEquals(9, transport.written.get());
+        assertEquals(0, encoder.getRejectedCount());
+    }
+}
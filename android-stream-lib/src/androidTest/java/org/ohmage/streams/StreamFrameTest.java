@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Round trips frames between {@link StreamFrameWriter} and {@link StreamFrameReader} over a plain
+ * pipe
+ */
+public class StreamFrameTest extends TestCase {
+
+    private Pipe mPipe;
+
+    private StreamFrameWriter mWriter;
+
+    private StreamFrameReader mReader;
+
+    private final StreamFrameReader.Frame mFrame = new StreamFrameReader.Frame();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPipe = Pipe.open();
+        mWriter = new StreamFrameWriter(mPipe.sink(), 64);
+        mReader = new StreamFrameReader(mPipe.source(), 16);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPipe.sink().close();
+        mPipe.source().close();
+        super.tearDown();
+    }
+
+    private void assertFrame(String streamId, int streamVersion, String metadata, String data)
+            throws IOException {
+        assertTrue(mReader.readFrame(mFrame));
+        assertEquals(streamId, mFrame.getStreamId());
+        assertEquals(streamVersion, mFrame.getStreamVersion());
+        assertEquals(metadata, mFrame.getMetadata());
+        assertEquals(data, mFrame.getData());
+    }
+
+    public void testRoundTrip() throws IOException {
+        mWriter.writeFrame("stream", 1, "{\"id\":\"a\"}", "{\"x\":1}");
+        mWriter.writeFrame("stream", 2, null, "{\"y\":\"é中\"}");
+        mWriter.writeFrame(StreamHandle.obtain("other", 3), "{}", "{\"z\":true}");
+        mWriter.close();
+
+        assertFrame("stream", 1, "{\"id\":\"a\"}", "{\"x\":1}");
+        assertFrame("stream", 2, null, "{\"y\":\"é中\"}");
+        assertFrame("other", 3, "{}", "{\"z\":true}");
+        assertFalse(mReader.readFrame(mFrame));
+    }
+
+    public void testMalformedUtf8DataIsReplaced() throws IOException {
+        byte[] bytes = {'"', (byte) 0xc3, '"', (byte) 0xed, (byte) 0xa0, (byte) 0x80, '"'};
+        Utf8CharSequence data = new Utf8CharSequence(ByteBuffer.wrap(bytes));
+        assertFalse(data.isValidUtf8());
+        mWriter.writeFrame("stream", 1, null, data);
+        mWriter.close();
+
+        assertTrue(mReader.readFrame(mFrame));
+        assertEquals(data.toString(), mFrame.getData());
+        assertTrue(mFrame.getData().indexOf('\ufffd') != -1);
+    }
+
+    public void testUtf8Validation() {
+        assertTrue(isValid(0x24, 0xc2, 0xa2, 0xe2, 0x82, 0xac, 0xf0, 0x90, 0x8d, 0x88));
+        // Overlong
+        assertFalse(isValid(0xc0, 0xaf));
+        assertFalse(isValid(0xe0, 0x80, 0xaf));
+        // Surrogate
+        assertFalse(isValid(0xed, 0xa0, 0x80));
+        // Past U+10FFFF
+        assertFalse(isValid(0xf4, 0x90, 0x80, 0x80));
+        // Truncated
+        assertFalse(isValid(0xe2, 0x82));
+        // Stray continuation byte
+        assertFalse(isValid(0x80));
+    }
+
+    private static boolean isValid(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return Utf8CharSequence.isValidUtf8(ByteBuffer.wrap(bytes));
+    }
+
+    public void testFrameLargerThanBuffers() throws IOException {
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'a');
+        final String data = "{\"a\":\"" + new String(chars) + "\"}";
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mWriter.writeFrame("stream", 1, null, data);
+                    mWriter.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        assertFrame("stream", 1, null, data);
+        assertFalse(mReader.readFrame(mFrame));
+    }
+
+    public void testUtf8Data() throws IOException {
+        byte[] bytes = "{\"b\":\"é中😀\"}".getBytes("UTF-8");
+        mWriter.writeFrame("stream", 1, null, new Utf8CharSequence(ByteBuffer.wrap(bytes)));
+        mWriter.close();
+        assertFrame("stream", 1, null, "{\"b\":\"é中😀\"}");
+    }
+
+    public void testUtf8DataReadsAsDecodedChars() throws IOException {
+        String text = "{\"b\":\"é中😀\"}";
+        byte[] bytes = text.getBytes("UTF-8");
+        Utf8CharSequence data = new Utf8CharSequence(ByteBuffer.wrap(bytes));
+        assertEquals(bytes.length, data.byteLength());
+        assertEquals(text.length(), data.length());
+        assertEquals('é', data.charAt(6));
+        assertEquals("中", data.subSequence(7, 8).toString());
+        assertEquals(StreamMemoryBudget.sizeOf(null, null, new String(new char[bytes.length])),
+                StreamMemoryBudget.sizeOf(null, null, data));
+
+        StringBuilder quoted = new StringBuilder();
+        StreamSchema.quote(quoted, data);
+        StringBuilder expected = new StringBuilder();
+        StreamSchema.quote(expected, text);
+        assertEquals(expected.toString(), quoted.toString());
+    }
+
+    public void testNullDataStillCompiles() {
+        assertNull(new StreamPointBuilder().setData(null).getData());
+    }
+
+    public void testUnwrittenFramesAreKept() throws IOException {
+        // Accepts the first frame and a few bytes of the second before failing
+        WritableByteChannel failing = new WritableByteChannel() {
+            private int mAllowed = -1;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (mAllowed == -1)
+                    mAllowed = src.getInt(src.position()) + 4 + 3;
+                if (mAllowed == 0)
+                    throw new IOException("broken pipe");
+                int count = Math.min(mAllowed, src.remaining());
+                src.position(src.position() + count);
+                mAllowed -= count;
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        StreamFrameWriter writer = new StreamFrameWriter(failing);
+        writer.writeFrame("stream", 1, null, "{\"n\":1}");
+        writer.writeFrame("stream", 1, null, "{\"n\":2}");
+        writer.writeFrame("stream", 1, null, "{\"n\":3}");
+        try {
+            writer.flush();
+            fail("flush should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        mReader = writer.takeUnwritten();
+        assertNotNull(mReader);
+        assertFrame("stream", 1, null, "{\"n\":2}");
+        assertFrame("stream", 1, null, "{\"n\":3}");
+        assertFalse(mReader.readFrame(mFrame));
+        assertNull(writer.takeUnwritten());
+    }
+
+    /**
+     * Writes raw ints to the pipe, followed by padding so a reader which ignores the frame length
+     * would find bytes to read
+     */
+    private void writeRaw(int... values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4 + 256);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        buffer.position(buffer.limit());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            mPipe.sink().write(buffer);
+        }
+    }
+
+    private void assertMalformed() {
+        try {
+            mReader.readFrame(mFrame);
+            fail("malformed frame was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testFrameShorterThanFieldsIsRejected() throws IOException {
+        // Frame of 4 bytes holding only an empty stream id, without a version or strings
+        writeRaw(4, 0);
+        assertMalformed();
+    }
+
+    public void testStringLongerThanFrameIsRejected() throws IOException {
+        // Empty stream id, version 1, no metadata and 100 bytes of data in a 16 byte frame
+        writeRaw(16, 0, 1, -1, 100);
+        assertMalformed();
+    }
+
+    public void testHugeFrameIsRejected() throws IOException {
+        writeRaw(StreamFrameReader.MAX_FRAME_LENGTH + 1);
+        assertMalformed();
+    }
+}
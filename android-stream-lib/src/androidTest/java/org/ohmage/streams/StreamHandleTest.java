@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class StreamHandleTest extends TestCase {
+
+    private static final String STREAM = "handle";
+
+    @Override
+    protected void tearDown() throws Exception {
+        StreamPolicies.clear();
+        StreamRateLimiter.clearLimit(STREAM);
+        ConcordiaSchema.register(STREAM, 1, null);
+        super.tearDown();
+    }
+
+    public void testSameHandleForSameStream() {
+        StreamHandle handle = StreamHandle.obtain(STREAM, 1);
+        assertSame(handle, StreamHandle.obtain(STREAM, 1));
+        assertNotSame(handle, StreamHandle.obtain(STREAM, 2));
+        assertEquals(STREAM, handle.getStreamId());
+        assertEquals(1, handle.getStreamVersion());
+    }
+
+    public void testPolicyIsCachedUntilPoliciesChange() throws JSONException {
+        StreamHandle handle = StreamHandle.obtain(STREAM, 1);
+        StreamPolicy policy = handle.getPolicy();
+        assertSame(policy, handle.getPolicy());
+
+        StreamPolicies.load(new JSONObject().put("streams", new JSONObject().put(STREAM,
+                new JSONObject().put("validation", "none"))));
+        StreamPolicy loaded = handle.getPolicy();
+        assertNotSame(policy, loaded);
+        assertSame(StreamPolicies.forStream(STREAM, 1), loaded);
+        assertSame(loaded, handle.getPolicy());
+    }
+
+    public void testSchemaIsCachedUntilRegistryChanges() {
+        StreamHandle handle = StreamHandle.obtain(STREAM, 1);
+        assertNull(handle.getSchema());
+
+        ConcordiaSchema schema = new StreamSchema.Builder().addString("activity").build()
+                .toConcordiaSchema();
+        ConcordiaSchema.register(STREAM, 1, schema);
+        assertSame(schema, handle.getSchema());
+
+        ConcordiaSchema.register(STREAM, 1, null);
+        assertNull(handle.getSchema());
+    }
+
+    public void testLimitIsLookedUpAgainAfterItChanges() {
+        StreamHandle handle = StreamHandle.obtain(STREAM, 1);
+        assertEquals(StreamRateLimiter.ADMIT, handle.admit(false));
+        assertEquals(StreamRateLimiter.ADMIT, handle.admit(false));
+
+        StreamRateLimiter.setLimit(STREAM, 0.001, 1, StreamRateLimiter.POLICY_DROP);
+        assertEquals(StreamRateLimiter.ADMIT, handle.admit(false));
+        assertEquals(StreamRateLimiter.REJECT, handle.admit(false));
+
+        StreamRateLimiter.clearLimit(STREAM);
+        assertEquals(StreamRateLimiter.ADMIT, handle.admit(false));
+    }
+
+    public void testOtherVersionKeepsItsOwnLimit() {
+        StreamHandle limited = StreamHandle.obtain(STREAM, 1);
+        StreamHandle other = StreamHandle.obtain(STREAM, 2);
+        StreamRateLimiter.setLimit(STREAM, 1, 0.001, 1, StreamRateLimiter.POLICY_DROP);
+        try {
+            assertEquals(StreamRateLimiter.ADMIT, limited.admit(false));
+            assertEquals(StreamRateLimiter.REJECT, limited.admit(false));
+            assertEquals(StreamRateLimiter.ADMIT, other.admit(false));
+            assertEquals(StreamRateLimiter.ADMIT, other.admit(false));
+        } finally {
+            StreamRateLimiter.clearLimit(STREAM, 1);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class StreamImporterTest extends TestCase {
+
+    public void testParseValueKeepsNonCanonicalNumbers() {
+        assertEquals("0123", StreamImporter.parseValue("0123"));
+        assertEquals("+1", StreamImporter.parseValue("+1"));
+        assertEquals(".5", StreamImporter.parseValue(".5"));
+        assertEquals("1.", StreamImporter.parseValue("1."));
+        assertEquals("12345678901234567890", StreamImporter.parseValue("12345678901234567890"));
+        assertEquals("abc", StreamImporter.parseValue("abc"));
+    }
+
+    public void testParseValueConvertsNumbers() {
+        assertEquals(0L, StreamImporter.parseValue("0"));
+        assertEquals(-42L, StreamImporter.parseValue("-42"));
+        assertEquals(1.5, StreamImporter.parseValue("1.5"));
+        assertEquals(2e10, StreamImporter.parseValue("2e10"));
+    }
+
+    public void testReadsLinesAndSkipsByteOrderMark() throws IOException {
+        byte[] file = "\uFEFFa,b\r\n1,2\n\nlast".getBytes("UTF-8");
+        StreamImporter.LineReader reader =
+                new StreamImporter.LineReader(new ByteArrayInputStream(file));
+        int offset = reader.skipByteOrderMark();
+        assertEquals(3, offset);
+        offset += reader.readLine();
+        assertEquals("a,b", reader.decodeLine());
+        offset += reader.readLine();
+        assertEquals("1,2", reader.decodeLine());
+        offset += reader.readLine();
+        assertEquals("", reader.decodeLine());
+        offset += reader.readLine();
+        assertEquals("last", reader.decodeLine());
+        assertEquals(file.length, offset);
+        assertEquals(-1, reader.readLine());
+    }
+
+    public void testReadsLinesLongerThanBuffer() throws IOException {
+        char[] chars = new char[20000];
+        Arrays.fill(chars, 'x');
+        String line = new String(chars);
+        StreamImporter.LineReader reader = new StreamImporter.LineReader(
+                new ByteArrayInputStream((line + "\nnext\n").getBytes("UTF-8")));
+        assertEquals(0, reader.skipByteOrderMark());
+        assertEquals(line.length() + 1, reader.readLine());
+        assertEquals(line, reader.decodeLine());
+        assertEquals(5, reader.readLine());
+        assertEquals("next", reader.decodeLine());
+        assertEquals(-1, reader.readLine());
+    }
+
+    public void testShortBatchKeepsCheckpointAtLastSavedLine() throws IOException {
+        // Saves only the first three points it is given until it gets more room
+        final int[] room = {3};
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(StreamContract.CONTENT_AUTHORITY, new MockContentProvider() {
+            @Override
+            public int bulkInsert(Uri uri, ContentValues[] values) {
+                int inserted = Math.min(room[0], values.length);
+                room[0] -= inserted;
+                return inserted;
+            }
+        });
+        StreamImporter importer = new StreamImporter(resolver, "imported", 1,
+                StreamImporter.FORMAT_CSV).setBatchSize(2);
+        byte[] file = "value\n1\n2\n3\n4\n".getBytes("UTF-8");
+        try {
+            importer.importStream(new ByteArrayInputStream(file), 0);
+            fail("the short batch was not reported");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(3, importer.getImportedCount());
+        // The header and the first three rows were saved
+        long checkpoint = importer.getCheckpoint();
+        assertEquals("value\n1\n2\n3\n".length(), checkpoint);
+
+        room[0] = Integer.MAX_VALUE;
+        assertEquals(file.length, importer.importStream(new ByteArrayInputStream(file,
+                (int) checkpoint, file.length - (int) checkpoint), checkpoint));
+        assertEquals(1, importer.getImportedCount());
+    }
+}
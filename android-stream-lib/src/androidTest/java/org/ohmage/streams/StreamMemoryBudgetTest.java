@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+public class StreamMemoryBudgetTest extends TestCase {
+
+    private static class TestBuffer implements StreamBuffer {
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public boolean dropOldest() {
+            return false;
+        }
+
+        @Override
+        public void trimBuffer() {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        StreamMemoryBudget.setOverflowPolicy(StreamMemoryBudget.POLICY_DROP_NEWEST, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        StreamMemoryBudget.setLimit(StreamMemoryBudget.DEFAULT_LIMIT);
+        super.tearDown();
+    }
+
+    public void testReserveAndRelease() {
+        TestBuffer buffer = new TestBuffer();
+        StreamMemoryBudget.Account account = StreamMemoryBudget.register(buffer);
+        long start = StreamMemoryBudget.getUsage();
+        StreamMemoryBudget.setLimit(start + 1000);
+
+        assertTrue(StreamMemoryBudget.reserve(600, account, false));
+        assertFalse(StreamMemoryBudget.reserve(600, account, false));
+        assertEquals(start + 600, StreamMemoryBudget.getUsage());
+
+        StreamMemoryBudget.release(600, account);
+        assertTrue(StreamMemoryBudget.reserve(600, account, false));
+        StreamMemoryBudget.release(600, account);
+        assertEquals(start, StreamMemoryBudget.getUsage());
+    }
+
+    public void testCollectedBufferGivesBackBytes() throws InterruptedException {
+        long start = StreamMemoryBudget.getUsage();
+        StreamMemoryBudget.Account account = StreamMemoryBudget.register(new TestBuffer());
+        assertTrue(StreamMemoryBudget.reserve(500, account, true));
+        account = null;
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (StreamMemoryBudget.getUsage() != start && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+            // Registering reclaims the accounts of collected buffers
+            StreamMemoryBudget.register(new TestBuffer());
+        }
+        assertEquals(start, StreamMemoryBudget.getUsage());
+    }
+}
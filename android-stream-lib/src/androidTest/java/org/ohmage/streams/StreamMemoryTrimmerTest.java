@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ComponentCallbacks2;
+
+import junit.framework.TestCase;
+
+/**
+ * Calls the {@link ComponentCallbacks2} methods of the trimmer directly, so it runs as a plain
+ * instrumentation test without Robolectric shadows
+ */
+public class StreamMemoryTrimmerTest extends TestCase {
+
+    private StreamMemoryTrimmer mTrimmer;
+
+    private int mTrims;
+
+    private StreamMemoryBudget.Account mAccount;
+
+    private final StreamBuffer mBuffer = new StreamBuffer() {
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public boolean dropOldest() {
+            return false;
+        }
+
+        @Override
+        public void trimBuffer() {
+            mTrims++;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTrimmer = new StreamMemoryTrimmer();
+        mAccount = StreamMemoryBudget.register(mBuffer);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        StreamMemoryBudget.setBatchScale(1f);
+        super.tearDown();
+    }
+
+    public void testTrimShrinksBatchesAndTrimsBuffers() {
+        mTrimmer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(0.5f, StreamMemoryBudget.getBatchScale(), 0);
+        assertEquals(300, StreamMemoryBudget.scaleBatch(600));
+        assertEquals(1, mTrims);
+
+        mTrimmer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0.25f, StreamMemoryBudget.getBatchScale(), 0);
+        assertEquals(2, mTrims);
+    }
+
+    public void testMilderTrimKeepsSmallerScale() {
+        mTrimmer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        mTrimmer.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0.25f, StreamMemoryBudget.getBatchScale(), 0);
+    }
+
+    public void testRecoverRestoresBatches() {
+        mTrimmer.onLowMemory();
+        assertEquals(1, StreamMemoryBudget.scaleBatch(2));
+        mTrimmer.recover();
+        assertEquals(1f, StreamMemoryBudget.getBatchScale(), 0);
+        assertEquals(600, StreamMemoryBudget.scaleBatch(600));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+public class StreamPointBuilderTest extends TestCase {
+
+    /**
+     * Allowed difference in ms between the wall clock and a deferred time, since the wall clock
+     * is only read again once a minute
+     */
+    private static final long CLOCK_TOLERANCE = 50;
+
+    public void testDeferredTimeIsTheCaptureTime() {
+        long before = System.currentTimeMillis();
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1).deferTimestamps(true).now();
+        long after = System.currentTimeMillis();
+        long time = point.timeMillis();
+        assertTrue(time + " before " + before, time >= before - CLOCK_TOLERANCE);
+        assertTrue(time + " after " + after, time <= after + CLOCK_TOLERANCE);
+    }
+
+    public void testDeferredTimesAreMonotonic() {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1).deferTimestamps(true);
+        long last = point.now().timeMillis();
+        for (int i = 0; i < 1000; i++) {
+            long time = point.now().timeMillis();
+            assertTrue(time >= last);
+            last = time;
+        }
+    }
+
+    public void testTimeIsOnlyKeptForDeferredCapture() {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1);
+        assertEquals(-1, point.timeMillis());
+
+        point.deferTimestamps(true).now();
+        assertTrue(point.timeMillis() > 0);
+        point.withTime("2013-01-01T00:00:00.000Z");
+        assertEquals(-1, point.timeMillis());
+
+        point.now().clearMetadata();
+        assertEquals(-1, point.timeMillis());
+    }
+
+    public void testCopyKeepsTheCaptureTime() {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1).deferTimestamps(true).now();
+        assertEquals(point.timeMillis(), point.copy().timeMillis());
+    }
+
+    public void testSharedLocationMatchesTheFix() {
+        StreamPointBuilder fix = new StreamPointBuilder("stream", 1).withLocation(1, 2, 3, 4);
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1).withLocationOf(fix);
+        assertNotNull(point.encodeMetadata());
+        assertEquals(fix.encodeMetadata(), point.encodeMetadata());
+    }
+
+    public void testChangedFixIsEncodedAgain() {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1).withLocation(1, 2, 3, 4);
+        String first = point.encodeMetadata();
+        point.withLocation(1, 2, 3, 5);
+        assertFalse(first.equals(point.encodeMetadata()));
+
+        StreamPointBuilder other = new StreamPointBuilder("stream", 1).withLocation(1, 2, 3, 4);
+        assertEquals(first, other.encodeMetadata());
+    }
+
+    public void testLocationOfPointWithoutFixClearsLocation() {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1)
+                .withId("a")
+                .withLocation(1, 2, 3, 4);
+        point.withLocationOf(new StreamPointBuilder("stream", 1));
+        assertEquals("{\"id\":\"a\"}", point.encodeMetadata());
+    }
+
+    public void testCopyKeepsTheLocation() {
+        StreamPointBuilder point = new StreamPointBuilder("stream", 1).withLocation(1, 2, 3, 4);
+        assertEquals(point.encodeMetadata(), point.copy().encodeMetadata());
+    }
+}
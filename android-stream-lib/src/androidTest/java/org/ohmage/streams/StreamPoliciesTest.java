@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class StreamPoliciesTest extends TestCase {
+
+    private static final String STREAM = "policy";
+
+    @Override
+    protected void tearDown() throws Exception {
+        StreamPolicies.clear();
+        super.tearDown();
+    }
+
+    private static JSONObject limit(int burst) throws JSONException {
+        return new JSONObject().put("rateLimit",
+                new JSONObject().put("pointsPerSecond", 0.001).put("burst", burst));
+    }
+
+    private static int admitted(String streamId, int streamVersion, int points) {
+        int admitted = 0;
+        for (int i = 0; i < points; i++) {
+            if (StreamRateLimiter.admitNow(streamId, streamVersion))
+                admitted++;
+        }
+        return admitted;
+    }
+
+    public void testVersionPolicyOnlyLimitsItsVersion() throws JSONException {
+        StreamPolicies.load(new JSONObject().put("streams",
+                new JSONObject().put(STREAM + ":2", limit(1))));
+        assertEquals(1, admitted(STREAM, 2, 5));
+        assertEquals(5, admitted(STREAM, 1, 5));
+    }
+
+    public void testVersionPolicyTakesPrecedenceOverIdPolicy() throws JSONException {
+        StreamPolicies.load(new JSONObject().put("streams", new JSONObject()
+                .put(STREAM, limit(1))
+                .put(STREAM + ":2", limit(3))));
+        assertEquals(3, admitted(STREAM, 2, 5));
+        assertEquals(1, admitted(STREAM, 1, 5));
+    }
+
+    public void testDefaultLimitAppliesToStreamsWithoutPolicy() throws JSONException {
+        StreamPolicies.load(new JSONObject().put("default", limit(2)));
+        assertEquals(2, admitted(STREAM, 1, 5));
+        assertEquals(2, admitted("other", 1, 5));
+        assertEquals(3, StreamRateLimiter.getRejectedCount("other", 1));
+    }
+
+    public void testClearRemovesPolicyLimits() throws JSONException {
+        StreamPolicies.load(new JSONObject().put("default", limit(1)));
+        assertEquals(1, admitted(STREAM, 1, 5));
+        StreamPolicies.clear();
+        assertEquals(5, admitted(STREAM, 1, 5));
+    }
+
+    public void testHandleUsesPolicyLimit() throws JSONException {
+        StreamHandle handle = StreamHandle.obtain(STREAM, 7);
+        StreamPolicies.load(new JSONObject().put("streams",
+                new JSONObject().put(STREAM + ":7", limit(1))));
+        assertEquals(StreamRateLimiter.ADMIT, handle.admit(false));
+        assertEquals(StreamRateLimiter.REJECT, handle.admit(false));
+        assertEquals(1, handle.getRejectedCount());
+    }
+
+    public void testValidationNoneSkipsChecks() throws JSONException {
+        try {
+            StreamWriter.checkPoint(STREAM, 1, null, "not json", null, null);
+            fail("invalid data was accepted");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        StreamPolicies.load(new JSONObject().put("streams",
+                new JSONObject().put(STREAM, new JSONObject().put("validation", "none"))));
+        StreamWriter.checkPoint(STREAM, 1, null, "not json", null, null);
+        StreamHandle handle = StreamHandle.obtain(STREAM, 1);
+        StreamWriter.checkPoint(STREAM, 1, null, "not json", handle, handle.getPolicy());
+    }
+
+    public void testUnlimitedStreamStaysUnlimitedUntilPoliciesChange() throws JSONException {
+        StreamPolicies.load(new JSONObject().put("streams",
+                new JSONObject().put(STREAM, limit(1))));
+        assertNull(StreamRateLimiter.bucketFor("other", 1));
+        assertNull(StreamRateLimiter.bucketFor("other", 1));
+        assertEquals(5, admitted("other", 1, 5));
+
+        StreamPolicies.load(new JSONObject().put("default", limit(1)));
+        assertNotNull(StreamRateLimiter.bucketFor("other", 1));
+    }
+
+    public void testBuilderResolvesPolicyOncePerStream() throws JSONException {
+        StreamPointBuilder builder = new StreamPointBuilder().setStream(STREAM, 1);
+        StreamPolicy policy = builder.getPolicy();
+        assertSame(policy, builder.setStream(STREAM, 1).getPolicy());
+
+        StreamPolicies.load(new JSONObject().put("streams",
+                new JSONObject().put(STREAM, limit(1))));
+        assertNotSame(policy, builder.getPolicy());
+        assertEquals(StreamRateLimiter.ADMIT, builder.admit(false));
+        assertEquals(StreamRateLimiter.REJECT, builder.admit(false));
+        // Another stream on the same builder gets its own policy and limit
+        assertEquals(StreamRateLimiter.ADMIT, builder.setStream("other", 1).admit(false));
+        assertEquals(StreamRateLimiter.ADMIT, builder.admit(false));
+    }
+}
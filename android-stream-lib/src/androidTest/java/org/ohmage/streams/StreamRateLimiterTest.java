@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+public class StreamRateLimiterTest extends TestCase {
+
+    private static final String STREAM = "limited";
+
+    @Override
+    protected void tearDown() throws Exception {
+        StreamRateLimiter.clearLimit(STREAM);
+        StreamRateLimiter.clearLimit(STREAM, 2);
+        super.tearDown();
+    }
+
+    public void testBurstIsAdmittedThenDropped() {
+        StreamRateLimiter.setLimit(STREAM, 0.001, 3, StreamRateLimiter.POLICY_DROP);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(StreamRateLimiter.admitNow(STREAM, 1));
+        }
+        assertFalse(StreamRateLimiter.admitNow(STREAM, 1));
+        assertEquals(1, StreamRateLimiter.getRejectedCount(STREAM));
+    }
+
+    public void testSampleKeepsOneOfEveryInterval() {
+        StreamRateLimiter.setLimit(STREAM, 0.001, 1, StreamRateLimiter.POLICY_SAMPLE);
+        assertTrue(StreamRateLimiter.admitNow(STREAM, 1));
+        int kept = 0;
+        for (int i = 0; i < StreamRateLimiter.SAMPLE_INTERVAL * 3; i++) {
+            if (StreamRateLimiter.admitNow(STREAM, 1))
+                kept++;
+        }
+        assertEquals(3, kept);
+    }
+
+    public void testDeferReturnsDelay() {
+        StreamRateLimiter.setLimit(STREAM, 10, 1, StreamRateLimiter.POLICY_DEFER);
+        assertEquals(StreamRateLimiter.ADMIT, StreamRateLimiter.admit(STREAM, 1, true));
+        long delay = StreamRateLimiter.admit(STREAM, 1, true);
+        assertTrue(delay > 0);
+        assertTrue(delay <= 100 * 1000 * 1000L);
+        // Writes which can't be held back drop the point instead
+        assertEquals(StreamRateLimiter.REJECT, StreamRateLimiter.admit(STREAM, 1, false));
+    }
+
+    public void testUnlimitedStreamsAreAdmitted() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(StreamRateLimiter.admitNow("unlimited", 1));
+        }
+    }
+
+    public void testVersionLimitTakesPrecedence() {
+        StreamRateLimiter.setLimit(STREAM, 0.001, 1, StreamRateLimiter.POLICY_DROP);
+        StreamRateLimiter.setLimit(STREAM, 2, 0.001, 3, StreamRateLimiter.POLICY_DROP);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(StreamRateLimiter.admitNow(STREAM, 2));
+        }
+        assertFalse(StreamRateLimiter.admitNow(STREAM, 2));
+        assertEquals(1, StreamRateLimiter.getRejectedCount(STREAM, 2));
+
+        // Other versions share the limit of the stream id
+        assertTrue(StreamRateLimiter.admitNow(STREAM, 1));
+        assertFalse(StreamRateLimiter.admitNow(STREAM, 3));
+        assertEquals(1, StreamRateLimiter.getRejectedCount(STREAM));
+    }
+}
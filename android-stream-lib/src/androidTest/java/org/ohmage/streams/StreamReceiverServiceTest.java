@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.test.ServiceTestCase;
+
+import org.ohmage.streams.StreamContract.Streams;
+
+/**
+ * Runs on a device or emulator since the service saves points with SQLite
+ */
+public class StreamReceiverServiceTest extends ServiceTestCase<StreamReceiverService> {
+
+    public StreamReceiverServiceTest() {
+        super(StreamReceiverService.class);
+    }
+
+    public void testSentPointsAreSaved() throws Exception {
+        IStreamReceiver receiver = IStreamReceiver.Stub.asInterface(
+                bindService(new Intent(StreamWriter.ACTION_WRITE)));
+        StreamsDatabase db = StreamsDatabase.getInstance(getContext());
+        db.getWritableDatabase().delete(StreamsDatabase.TABLE_STREAMS, null, null);
+
+        receiver.sendStream("service", 1, null, "{\"a\":1}");
+        receiver.sendStream("service", 1, null, "{\"a\":2}");
+
+        // Writes are committed in order, so the points were saved once this one is
+        ContentValues marker = new ContentValues();
+        marker.put(Streams.STREAM_ID, "marker");
+        marker.put(Streams.STREAM_VERSION, 1);
+        marker.put(Streams.STREAM_DATA, "{}");
+        assertTrue(db.insert(marker) != -1);
+
+        Cursor cursor = db.getReadableDatabase().query(StreamsDatabase.TABLE_STREAMS, null,
+                Streams.STREAM_ID + "=?", new String[]{"service"}, null, null, null, null);
+        try {
+            assertEquals(2, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+public class StreamSchemaTest extends TestCase {
+
+    private StreamSchema mSchema;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSchema = new StreamSchema.Builder()
+                .addString("activity")
+                .addNumberArray("samples")
+                .addBooleanArray("flags").optional()
+                .build();
+    }
+
+    public void testEncodesPrimitiveArrays() {
+        StreamSchema.Encoder encoder = mSchema.newJsonEncoder();
+        encoder.reset().beginObject().put("walking")
+                .beginArray().put(1).put(2.5).endArray()
+                .endObject();
+        assertEquals("{\"activity\":\"walking\",\"samples\":[1,2.5]}", encoder.toJson());
+    }
+
+    public void testArrayElementsMustMatchTheType() {
+        StreamSchema.Encoder encoder = mSchema.newJsonEncoder();
+        encoder.reset().beginObject().put("walking").beginArray();
+        try {
+            encoder.put("not a number");
+            fail("A string was accepted in a number array");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testValidatorSharesTheSchema() {
+        ConcordiaSchema validator = mSchema.toConcordiaSchema();
+        StreamSchema.Encoder encoder = mSchema.newJsonEncoder();
+        encoder.reset().beginObject().put("running")
+                .beginArray().put(3).endArray()
+                .beginArray().put(true).put(false).endArray()
+                .endObject();
+        assertTrue(validator.isValid(encoder.toJson()));
+
+        assertFalse(validator.isValid("{\"activity\":\"running\",\"samples\":[\"3\"]}"));
+        assertFalse(validator.isValid("{\"samples\":[3]}"));
+        assertTrue(validator.isValid("{\"activity\":\"running\",\"samples\":[],\"flags\":null}"));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import junit.framework.TestCase;
+
+public class StreamTracerTest extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        StreamTracer.reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        StreamTracer.setEnabled(false);
+        StreamTracer.setSampleInterval(100);
+        StreamTracer.reset();
+        super.tearDown();
+    }
+
+    private static long[] record(long... latencies) {
+        for (long latency : latencies) {
+            StreamTracer.record(StreamTracer.STAGE_IPC, 1000, 1000 + latency);
+        }
+        return StreamTracer.getHistogram(StreamTracer.STAGE_IPC);
+    }
+
+    public void testLatenciesGoInPowerOfTwoBuckets() {
+        long[] histogram = record(1, 1023, 1024, 2047, 2048);
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[9]);
+        assertEquals(2, histogram[10]);
+        assertEquals(1, histogram[11]);
+    }
+
+    public void testOutOfRangeLatenciesAreClamped() {
+        long[] histogram = record(0, -5, Long.MAX_VALUE / 2);
+        assertEquals(2, histogram[0]);
+        assertEquals(1, histogram[StreamTracer.BUCKETS - 1]);
+    }
+
+    public void testUnsampledPointsAreNotRecorded() {
+        StreamTracer.record(StreamTracer.STAGE_IPC, 0, 1000);
+        for (long count : StreamTracer.getHistogram(StreamTracer.STAGE_IPC)) {
+            assertEquals(0, count);
+        }
+    }
+
+    public void testStagesAreKeptApart() {
+        record(100);
+        for (long count : StreamTracer.getHistogram(StreamTracer.STAGE_TOTAL)) {
+            assertEquals(0, count);
+        }
+    }
+
+    public void testPercentileIsUpperBoundOfBucket() {
+        for (int i = 0; i < 90; i++) {
+            record(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            record(1500);
+        }
+        assertEquals(16, StreamTracer.getPercentile(StreamTracer.STAGE_IPC, 50));
+        assertEquals(16, StreamTracer.getPercentile(StreamTracer.STAGE_IPC, 90));
+        assertEquals(2048, StreamTracer.getPercentile(StreamTracer.STAGE_IPC, 91));
+        assertEquals(2048, StreamTracer.getPercentile(StreamTracer.STAGE_IPC, 100));
+    }
+
+    public void testPercentileOfEmptyHistogramIsZero() {
+        assertEquals(0, StreamTracer.getPercentile(StreamTracer.STAGE_IPC, 99));
+    }
+
+    public void testOnlyEnabledTracerSamples() {
+        StreamTracer.setSampleInterval(1);
+        assertEquals(0, StreamTracer.sample());
+        StreamTracer.setEnabled(true);
+        assertTrue(StreamTracer.sample() != 0);
+    }
+
+    public void testSamplesOneInInterval() {
+        StreamTracer.setEnabled(true);
+        StreamTracer.setSampleInterval(4);
+        int sampled = 0;
+        for (int i = 0; i < 40; i++) {
+            if (StreamTracer.sample() != 0)
+                sampled++;
+        }
+        assertEquals(10, sampled);
+    }
+
+    public void testInvalidSampleIntervalThrows() {
+        try {
+            StreamTracer.setSampleInterval(0);
+            fail("An interval of 0 was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import junit.framework.TestCase;
+
+import org.ohmage.streams.StreamContract.Streams;
+
+public class StreamsDatabaseTest extends TestCase {
+
+    /**
+     * A database which can't be opened, so its writer fails right away
+     */
+    private static class BrokenDatabase extends StreamsDatabase {
+        int opened;
+
+        BrokenDatabase() {
+            super(null, null);
+        }
+
+        @Override
+        public synchronized SQLiteDatabase getWritableDatabase() {
+            opened++;
+            throw new SQLiteException("broken");
+        }
+    }
+
+    private static ContentValues point() {
+        ContentValues values = new ContentValues();
+        values.put(Streams.STREAM_ID, "stream");
+        values.put(Streams.STREAM_VERSION, 1);
+        values.put(Streams.STREAM_DATA, "{}");
+        return values;
+    }
+
+    public void testFailedWriterFailsPendingWrites() {
+        BrokenDatabase db = new BrokenDatabase();
+        assertEquals(0, db.bulkInsert(new ContentValues[]{point(), point()}));
+        assertEquals(-1, db.insert(point()));
+        // Each write started a new writer instead of waiting for the one which failed
+        assertEquals(2, db.opened);
+        db.close();
+    }
+}
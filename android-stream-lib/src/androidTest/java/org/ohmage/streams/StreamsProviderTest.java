@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.ProviderTestCase2;
+
+import org.ohmage.streams.StreamContract.StreamCounts;
+import org.ohmage.streams.StreamContract.Streams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs on a device or emulator since the provider needs SQLite
+ */
+public class StreamsProviderTest extends ProviderTestCase2<StreamsProvider> {
+
+    public StreamsProviderTest() {
+        super(StreamsProvider.class, StreamContract.CONTENT_AUTHORITY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getProvider().shutdown();
+        super.tearDown();
+    }
+
+    private static ContentValues point(String streamId, int streamVersion, String data) {
+        ContentValues values = new ContentValues();
+        values.put(Streams.STREAM_ID, streamId);
+        values.put(Streams.STREAM_VERSION, streamVersion);
+        values.put(Streams.STREAM_DATA, data);
+        return values;
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = getMockContentResolver().query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testInsertAndQuery() {
+        ContentResolver resolver = getMockContentResolver();
+        Uri uri = resolver.insert(Streams.CONTENT_URI, point("stream", 1, "{\"a\":1}"));
+        assertNotNull(uri);
+
+        Cursor cursor = resolver.query(uri, null, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToNext());
+            assertEquals("stream",
+                    cursor.getString(cursor.getColumnIndexOrThrow(Streams.STREAM_ID)));
+            assertEquals("{\"a\":1}",
+                    cursor.getString(cursor.getColumnIndexOrThrow(Streams.STREAM_DATA)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testBulkInsertAndCounts() {
+        ContentResolver resolver = getMockContentResolver();
+        assertEquals(3, resolver.bulkInsert(Streams.CONTENT_URI, new ContentValues[]{
+                point("a", 1, "{}"), point("a", 1, "{}"), point("b", 2, "{}")
+        }));
+        assertEquals(3, count(Streams.CONTENT_URI));
+
+        Cursor cursor = resolver.query(StreamCounts.CONTENT_URI, null, null, null,
+                StreamCounts.STREAM_ID);
+        try {
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToNext());
+            assertEquals(2, cursor.getInt(cursor.getColumnIndexOrThrow(StreamCounts.COUNT)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testBulkInsertStopsAtInvalidRow() {
+        // Rows without data break a constraint, so only the first row is written
+        assertEquals(1, getMockContentResolver().bulkInsert(Streams.CONTENT_URI,
+                new ContentValues[]{
+                        point("a", 1, "{}"), point("a", 1, null), point("a", 1, "{}")
+                }));
+        assertEquals(1, count(Streams.CONTENT_URI));
+    }
+
+    public void testUpdateIsNotSupported() {
+        try {
+            getMockContentResolver().update(Streams.CONTENT_URI, new ContentValues(), null, null);
+            fail("points were updated");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private void insertPaged(int points) {
+        ContentValues[] values = new ContentValues[points + 1];
+        for (int i = 0; i < points; i++) {
+            values[i] = point("paged", 1, "{\"i\":" + i + "}");
+        }
+        // Rows of other streams are skipped by the selection
+        values[points] = point("other", 1, "{}");
+        assertEquals(points + 1, getMockContentResolver().bulkInsert(Streams.CONTENT_URI, values));
+    }
+
+    private List<String> readPages(int pageSize, boolean descending) throws InterruptedException {
+        StreamPager pager = new StreamPager(getMockContentResolver(), Streams.CONTENT_URI,
+                BaseColumns._ID, new String[]{Streams.STREAM_DATA},
+                Streams.STREAM_ID + "=? AND " + Streams.STREAM_VERSION + "=?",
+                new String[]{"paged", "1"}, pageSize, descending);
+        ArrayList<String> data = new ArrayList<String>();
+        StreamPager.Row row = new StreamPager.Row();
+        try {
+            while (pager.next(row)) {
+                assertTrue(row.getId() > 0);
+                assertNull(row.getMetadata());
+                data.add(row.getData());
+            }
+        } finally {
+            pager.close();
+        }
+        return data;
+    }
+
+    public void testPagerReadsEveryPointInOrder() throws InterruptedException {
+        insertPaged(5);
+        assertEquals(Arrays.asList("{\"i\":0}", "{\"i\":1}", "{\"i\":2}", "{\"i\":3}",
+                "{\"i\":4}"), readPages(2, false));
+    }
+
+    public void testPagerReadsDescending() throws InterruptedException {
+        insertPaged(5);
+        assertEquals(Arrays.asList("{\"i\":4}", "{\"i\":3}", "{\"i\":2}", "{\"i\":1}",
+                "{\"i\":0}"), readPages(2, true));
+    }
+
+    public void testPagerStopsAfterFullLastPage() throws InterruptedException {
+        insertPaged(4);
+        assertEquals(4, readPages(2, false).size());
+    }
+
+    public void testPagerForStreamReadsOneVersion() throws InterruptedException {
+        insertPaged(3);
+        StreamPager pager = StreamPager.forStream(getMockContentResolver(), "paged", 1, null);
+        StreamPager.Row row = new StreamPager.Row();
+        int rows = 0;
+        while (pager.next(row)) {
+            assertEquals("paged", row.getStreamId());
+            assertEquals(1, row.getStreamVersion());
+            rows++;
+        }
+        pager.close();
+        assertEquals(3, rows);
+    }
+}
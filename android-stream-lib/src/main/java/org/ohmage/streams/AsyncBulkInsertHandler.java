@@ -23,15 +23,30 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A helper class to help make handling asynchronous {@link android.content.ContentResolver#bulkInsert}
  * operations easier.
+ * <p/>
+ * Buffered points are counted against the process wide {@link StreamMemoryBudget}.
+ * <p/>
+ * Batches which fail or are only partly inserted are retried with a backoff, and a
+ * {@link CircuitBreaker} stops writes for a while if the provider keeps failing or is too slow.
+ * A partly inserted batch is taken to have inserted its first rows, so the provider must insert
+ * rows in order and return how many it inserted before it stopped. The default
+ * {@link android.content.ContentProvider#bulkInsert} does, and so does a provider which inserts
+ * each batch in one transaction and returns 0 if it fails.
  */
 public class AsyncBulkInsertHandler extends Handler {
+    private static final String TAG = "AsyncBulkInsertHandler";
+
     /**
      * Maximum number of points which should be in the buffer at any give time
      */
@@ -46,6 +61,31 @@ public class AsyncBulkInsertHandler extends Handler {
 
     private static final int EVENT_ARG_BULK_INSERT = 1;
 
+    private static final int EVENT_ARG_FLUSH = 2;
+
+    /**
+     * Number of times the rest of a batch is retried before it is dropped
+     */
+    public static final int MAX_RETRIES = 6;
+
+    /**
+     * Delay in ms before the first retry. Each retry after that waits up to twice as long.
+     */
+    public static final long RETRY_DELAY = 500;
+
+    /**
+     * Longest delay in ms between retries
+     */
+    public static final long MAX_RETRY_DELAY = 60000;
+
+    /**
+     * Number of batches of points held in the buffer while the circuit breaker is open. Older
+     * points are dropped to make room for new ones after that.
+     */
+    public static final int MAX_HELD_BATCHES = 10;
+
+    private static final Random sRandom = new Random();
+
     final WeakReference<ContentResolver> mResolver;
 
     /**
@@ -62,6 +102,105 @@ public class AsyncBulkInsertHandler extends Handler {
 
     private ArrayList<ContentValues> values;
 
+    /**
+     * Bytes counted against the {@link StreamMemoryBudget} for the points in {@link #values}
+     */
+    private long mBufferedBytes;
+
+    /**
+     * The arguments of each point in {@link #values}, which hold its future and sequence number
+     */
+    private final ArrayList<WorkerArgs> mPoints = new ArrayList<WorkerArgs>();
+
+    private final Object mFutureLock = new Object();
+
+    /**
+     * The future new points are added to until the next batch is written
+     */
+    private StreamFuture mOpenFuture;
+
+    private int mOpenPoints;
+
+    /**
+     * Flushes which are waiting for points submitted before them, oldest first
+     */
+    private final ArrayList<PendingFlush> mFlushes = new ArrayList<PendingFlush>();
+
+    /**
+     * Sequence number of the next admitted point. Guarded by {@link #mFlushes}.
+     */
+    private long mSubmitted;
+
+    /**
+     * Number of admitted points which were written or dropped. Guarded by {@link #mFlushes}.
+     */
+    private long mFinished;
+
+    /**
+     * Capture and enqueue times of the first traced point in the current batch. Only used on the
+     * worker thread.
+     */
+    private long mTraceCapture;
+
+    private long mTraceEnqueue;
+
+    private final CircuitBreaker mBreaker;
+
+    /**
+     * Number of points in the last batch sent to the provider, or 0 if no batch was sent. Only
+     * used on the worker thread.
+     */
+    private int mBatchLength;
+
+    /**
+     * Number of times in a row the current batch was retried. Only used on the worker thread.
+     */
+    private int mRetries;
+
+    /**
+     * Uptime in ms before which no bulk insert should run because of a retry backoff or an open
+     * circuit breaker
+     */
+    private volatile long mRetryAt;
+
+    private final StreamBuffer mBudgetBuffer = new StreamBuffer() {
+        @Override
+        public void flushBuffer() {
+            queueBulkInsert(true);
+        }
+
+        @Override
+        public boolean dropOldest() {
+            long size;
+            WorkerArgs point;
+            synchronized (values) {
+                if (values.isEmpty())
+                    return false;
+                size = StreamMemoryBudget.sizeOf(values.remove(0));
+                point = mPoints.remove(0);
+                mBufferedBytes -= size;
+            }
+            StreamMemoryBudget.release(size, mBudget);
+            finishPoints(new WorkerArgs[]{point}, 1, 0);
+            return true;
+        }
+
+        @Override
+        public void trimBuffer() {
+            queueBulkInsert(true);
+            mWorkerThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (values) {
+                        values.trimToSize();
+                    }
+                }
+            });
+        }
+    };
+
+    private final StreamMemoryBudget.Account mBudget;
+
     private static Looper sLooper = null;
 
     private Handler mWorkerThreadHandler;
@@ -72,6 +211,49 @@ public class AsyncBulkInsertHandler extends Handler {
         public Object result;
 
         public ContentValues values;
+
+        StreamPointBuilder point;
+
+        long size;
+
+        /**
+         * Order in which the point was admitted, used to find the flushes which wait for it
+         */
+        long seq;
+
+        /**
+         * Shared by the points of a batch and finished when the point is written
+         */
+        StreamFuture batchFuture;
+
+        /**
+         * Capture and enqueue times if the point is traced by {@link StreamTracer}, or 0
+         */
+        long traceNanos;
+
+        long enqueueNanos;
+    }
+
+    /**
+     * A flush which waits for every point submitted before it to be written or dropped
+     */
+    private static final class PendingFlush {
+        /**
+         * Points with a lower sequence number were submitted before the flush
+         */
+        final long before;
+
+        final StreamFuture future;
+
+        long remaining;
+
+        int inserted;
+
+        PendingFlush(long before, long remaining, StreamFuture future) {
+            this.before = before;
+            this.remaining = remaining;
+            this.future = future;
+        }
     }
 
     protected class WorkerHandler extends Handler {
@@ -82,23 +264,63 @@ public class AsyncBulkInsertHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
             final ContentResolver resolver = mResolver.get();
-            if (resolver == null) return;
-
             WorkerArgs args = (WorkerArgs) msg.obj;
+            if (resolver == null) {
+                // Nothing can be written anymore so give back the memory
+                long bytes;
+                WorkerArgs[] points;
+                synchronized (values) {
+                    values.clear();
+                    points = mPoints.toArray(new WorkerArgs[mPoints.size()]);
+                    mPoints.clear();
+                    bytes = mBufferedBytes + args.size;
+                    mBufferedBytes = 0;
+                }
+                StreamMemoryBudget.release(bytes, mBudget);
+                sealOpenFuture();
+                finishPoints(points, points.length, 0);
+                if (msg.what == EVENT_ARG_INSERT)
+                    finishPoints(new WorkerArgs[]{args}, 1, 0);
+                return;
+            }
 
             switch (msg.what) {
                 case EVENT_ARG_INSERT:
-                    values.add(args.values);
-                    queueBulkInsert(values.size() > mMaxBufferSize);
+                    if (args.point != null) {
+                        args.point.encodeMetadata();
+                        args.values = args.point.toContentValues();
+                        args.point = null;
+                        long size = StreamMemoryBudget.sizeOf(args.values);
+                        StreamMemoryBudget.adjust(size - args.size, mBudget);
+                        args.size = size;
+                    }
+                    if (args.traceNanos != 0 && mTraceCapture == 0) {
+                        mTraceCapture = args.traceNanos;
+                        mTraceEnqueue = args.enqueueNanos;
+                    }
+                    int count;
+                    synchronized (values) {
+                        values.add(args.values);
+                        mPoints.add(args);
+                        mBufferedBytes += args.size;
+                        count = values.size();
+                    }
+                    queueBulkInsert(count > StreamMemoryBudget.scaleBatch(mMaxBufferSize));
                     break;
 
+                case EVENT_ARG_FLUSH:
+                    // Everything is written now so there is no need for a pending bulk insert
+                    removeMessages(EVENT_ARG_BULK_INSERT);
+                    // fall through
                 case EVENT_ARG_BULK_INSERT:
-                    args.result = resolver.bulkInsert(mUri, values.toArray(new ContentValues[]{}));
-                    values.clear();
-
-                    Message reply = args.handler.obtainMessage(msg.what);
-                    reply.obj = args;
-                    reply.sendToTarget();
+                    args.result = writeBatch(resolver, msg.what == EVENT_ARG_FLUSH);
+
+                    // Only batches which were sent are reported
+                    if (mBatchLength > 0) {
+                        Message reply = args.handler.obtainMessage(msg.what);
+                        reply.obj = args;
+                        reply.sendToTarget();
+                    }
                     break;
             }
         }
@@ -124,6 +346,14 @@ public class AsyncBulkInsertHandler extends Handler {
      * @param maxBufferSize the maximum number of points to keep in the buffer before flushing
      */
     public AsyncBulkInsertHandler(ContentResolver cr, Uri uri, long delay, int maxBufferSize) {
+        this(cr, uri, delay, maxBufferSize, new CircuitBreaker());
+    }
+
+    /**
+     * @param breaker the circuit breaker which guards writes to the uri
+     */
+    AsyncBulkInsertHandler(ContentResolver cr, Uri uri, long delay, int maxBufferSize,
+                           CircuitBreaker breaker) {
         super();
         mResolver = new WeakReference<ContentResolver>(cr);
         synchronized (org.ohmage.streams.AsyncBulkInsertHandler.class) {
@@ -137,9 +367,11 @@ public class AsyncBulkInsertHandler extends Handler {
         mWorkerThreadHandler = createHandler(sLooper);
 
         mUri = uri;
+        mBreaker = breaker;
         mMaxBufferSize = maxBufferSize;
         mDelay = delay;
         values = new ArrayList<ContentValues>(mMaxBufferSize);
+        mBudget = StreamMemoryBudget.register(mBudgetBuffer);
     }
 
     protected Handler createHandler(Looper looper) {
@@ -152,22 +384,357 @@ public class AsyncBulkInsertHandler extends Handler {
      * @param values the ContentValues parameter passed to the insert operation.
      */
     public final void startInsert(ContentValues values) {
+        enqueue(values, null, null, false, 0);
+    }
+
+    /**
+     * Begins an asynchronous insert and returns a {@link StreamFuture} which completes once the
+     * batch containing this point has been written to the db. Points in the same batch share a
+     * single future.
+     *
+     * @param values the ContentValues parameter passed to the insert operation.
+     * @return a {@link StreamFuture} which completes with the number of points written from the
+     * points which share it
+     */
+    public final StreamFuture submitInsert(ContentValues values) {
+        return enqueue(values, null, null, true, 0);
+    }
+
+    /**
+     * Same as {@link #startInsert(ContentValues)} for a point from a {@link StreamPointBuilder}
+     *
+     * @param handle     the handle of the stream, or null
+     * @param traceNanos the capture stamp of the point, or 0
+     */
+    final void startInsert(ContentValues values, StreamHandle handle, long traceNanos) {
+        enqueue(values, null, handle, false, traceNanos);
+    }
+
+    /**
+     * Same as {@link #submitInsert(ContentValues)} for a point from a {@link StreamPointBuilder}
+     *
+     * @param handle     the handle of the stream, or null
+     * @param traceNanos the capture stamp of the point, or 0
+     */
+    final StreamFuture submitInsert(ContentValues values, StreamHandle handle, long traceNanos) {
+        return enqueue(values, null, handle, true, traceNanos);
+    }
+
+    /**
+     * Begins an asynchronous insert of a point whose metadata has not been built yet. The metadata
+     * is built on the worker thread.
+     *
+     * @param point a copy of the point which is not used by any other thread
+     */
+    final void startInsert(StreamPointBuilder point) {
+        enqueue(null, point, point.getHandle(), false, point.getTraceNanos());
+    }
+
+    /**
+     * Same as {@link #startInsert(StreamPointBuilder)} but returns a {@link StreamFuture} like
+     * {@link #submitInsert(ContentValues)}.
+     */
+    final StreamFuture submitInsert(StreamPointBuilder point) {
+        return enqueue(null, point, point.getHandle(), true, point.getTraceNanos());
+    }
+
+    private StreamFuture enqueue(ContentValues values, StreamPointBuilder point,
+                                 StreamHandle handle, boolean withFuture, long traceNanos) {
+        // The metadata of a point isn't known yet so its size is corrected once it is built
+        long size = values != null ? StreamMemoryBudget.sizeOf(values)
+                : StreamMemoryBudget.sizeOf(point.getStreamId(), null, point.getDataChars());
+        if (!StreamMemoryBudget.reserve(size, mBudget, true))
+            return withFuture ? StreamFuture.completed(0) : null;
+
+        // Reserved first so a point the budget drops doesn't use up the rate limit
+        long delay;
+        if (point != null)
+            delay = point.admit(true);
+        else if (handle != null)
+            delay = handle.admit(true);
+        else
+            delay = StreamRateLimiter.admit(values, true);
+        if (delay == StreamRateLimiter.REJECT) {
+            StreamMemoryBudget.release(size, mBudget);
+            return withFuture ? StreamFuture.completed(0) : null;
+        }
+        if (handle != null)
+            handle.countPoint();
+
         Message msg = mWorkerThreadHandler.obtainMessage(EVENT_ARG_INSERT);
 
         WorkerArgs args = new WorkerArgs();
         args.values = values;
+        args.point = point;
+        args.size = size;
+        args.traceNanos = traceNanos;
+        args.enqueueNanos = StreamTracer.enqueued(traceNanos);
+        if (withFuture)
+            args.batchFuture = openFuture();
+        synchronized (mFlushes) {
+            args.seq = mSubmitted++;
+        }
         msg.obj = args;
 
-        mWorkerThreadHandler.sendMessage(msg);
+        if (delay > 0) {
+            // Held back by the rate limit of the stream. Flushes still wait for it since it has a
+            // sequence number.
+            mWorkerThreadHandler.sendMessageDelayed(msg,
+                    TimeUnit.NANOSECONDS.toMillis(delay) + 1);
+        } else {
+            mWorkerThreadHandler.sendMessage(msg);
+        }
+        return args.batchFuture;
+    }
+
+    /**
+     * Writes the next batch of buffered points. Called on the worker thread.
+     * <p/>
+     * Batches are at most the max buffer size so points held back while writes were failing are
+     * trickled back in. If the write fails or only some rows are inserted, the rows after the
+     * ones which were inserted are put back at the front of the buffer and retried after a
+     * jittered exponential backoff.
+     * While the circuit breaker is open no writes are tried and points are held in the buffer, up
+     * to {@link #MAX_HELD_BATCHES} batches.
+     *
+     * @param all true to write every buffered point instead of one batch
+     * @return the number of rows inserted
+     */
+    private int writeBatch(ContentResolver resolver, boolean all) {
+        mBatchLength = 0;
+        int limit = StreamMemoryBudget.scaleBatch(mMaxBufferSize);
+        // An empty buffer doesn't need the breaker, so a flush can't use up its trial write
+        boolean tryWrite = bufferedPoints() > 0;
+        if (tryWrite && !mBreaker.allowWrite()) {
+            // Keep the newest points and try again once the breaker lets writes through
+            boolean dropped = false;
+            while (bufferedPoints() > limit * MAX_HELD_BATCHES && mBudgetBuffer.dropOldest())
+                dropped = true;
+            if (dropped)
+                Log.w(TAG, "Dropped points while writes to " + mUri + " are failing");
+            scheduleRetry(Math.max(RETRY_DELAY, mBreaker.getRetryDelay()));
+            return 0;
+        }
+
+        ContentValues[] batch;
+        WorkerArgs[] points;
+        long bytes = 0;
+        boolean more;
+        synchronized (values) {
+            int count = all ? values.size() : Math.min(values.size(), limit);
+            batch = values.subList(0, count).toArray(new ContentValues[count]);
+            points = mPoints.subList(0, count).toArray(new WorkerArgs[count]);
+            if (count == values.size()) {
+                bytes = mBufferedBytes;
+                values.clear();
+                mPoints.clear();
+            } else {
+                for (ContentValues value : batch) {
+                    bytes += StreamMemoryBudget.sizeOf(value);
+                }
+                values.subList(0, count).clear();
+                mPoints.subList(0, count).clear();
+            }
+            mBufferedBytes -= bytes;
+            more = !values.isEmpty();
+        }
+        // Points written after this batch get a new future
+        sealOpenFuture();
+        mBatchLength = batch.length;
+
+        long trace = mTraceCapture;
+        long start = System.nanoTime();
+        StreamTracer.record(StreamTracer.STAGE_FLUSH, mTraceEnqueue, start);
+        mTraceCapture = 0;
+        mTraceEnqueue = 0;
+        int inserted = 0;
+        if (batch.length > 0) {
+            boolean failed = false;
+            boolean section = StreamTracer.beginSection("bulkInsert");
+            try {
+                inserted = resolver.bulkInsert(mUri, batch);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "bulkInsert to " + mUri + " failed", e);
+                failed = true;
+            } finally {
+                StreamTracer.endSection(section);
+            }
+            if (failed || inserted < batch.length)
+                mBreaker.onFailure();
+            else
+                mBreaker.onSuccess(System.nanoTime() - start);
+        } else if (tryWrite) {
+            // The points were dropped before they were written so the breaker learned nothing
+            mBreaker.onSkipped();
+        }
+        StreamTracer.written(trace, start);
+        StreamCountsCache.pointsWritten(batch, inserted);
+
+        int finished = batch.length;
+        if (inserted < batch.length && mRetries < MAX_RETRIES) {
+            // Put the rest back in front of newer points so the order is kept
+            int rest = batch.length - inserted;
+            long restBytes = 0;
+            synchronized (values) {
+                for (int i = batch.length - 1; i >= inserted; i--) {
+                    values.add(0, batch[i]);
+                    mPoints.add(0, points[i]);
+                    restBytes += StreamMemoryBudget.sizeOf(batch[i]);
+                }
+                mBufferedBytes += restBytes;
+            }
+            bytes -= restBytes;
+            finished = inserted;
+            mRetries++;
+            scheduleRetry(Math.max(retryDelay(mRetries, sRandom), mBreaker.getRetryDelay()));
+            Log.w(TAG, "Retrying " + rest + " points in " + mUri);
+        } else {
+            if (inserted < batch.length)
+                Log.e(TAG, "Dropped " + (batch.length - inserted) + " points after "
+                        + MAX_RETRIES + " retries");
+            mRetries = 0;
+            mRetryAt = 0;
+            if (more)
+                queueBulkInsert(false);
+        }
+
+        StreamMemoryBudget.release(bytes, mBudget);
+        finishPoints(points, finished, inserted);
+        return inserted;
+    }
+
+    /**
+     * Picks the delay before a retry. The delay doubles with each retry up to
+     * {@link #MAX_RETRY_DELAY}, and a random half of it is taken off so handlers which failed
+     * together don't retry together.
+     *
+     * @param retries the number of the retry, starting at 1
+     * @return the delay in ms
+     */
+    static long retryDelay(int retries, Random random) {
+        long backoff = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(30, retries - 1));
+        return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+    }
+
+    private boolean isFlushPending() {
+        synchronized (mFlushes) {
+            return !mFlushes.isEmpty();
+        }
+    }
+
+    private int bufferedPoints() {
+        synchronized (values) {
+            return values.size();
+        }
+    }
+
+    /**
+     * Holds bulk inserts back for a while
+     *
+     * @param delay time in ms to wait
+     */
+    private void scheduleRetry(long delay) {
+        mRetryAt = SystemClock.uptimeMillis() + delay;
+        queueBulkInsert(false);
+    }
+
+    /**
+     * Returns the future which new points share and adds a point to it
+     */
+    private StreamFuture openFuture() {
+        synchronized (mFutureLock) {
+            if (mOpenFuture == null
+                    || mOpenPoints >= StreamMemoryBudget.scaleBatch(mMaxBufferSize)) {
+                if (mOpenFuture != null)
+                    mOpenFuture.seal();
+                mOpenFuture = new StreamFuture();
+                mOpenPoints = 0;
+            }
+            mOpenPoints++;
+            mOpenFuture.add();
+            return mOpenFuture;
+        }
+    }
+
+    /**
+     * Stops adding points to the open future so it can complete once its points are written
+     */
+    private void sealOpenFuture() {
+        synchronized (mFutureLock) {
+            if (mOpenFuture != null) {
+                mOpenFuture.seal();
+                mOpenFuture = null;
+            }
+        }
+    }
+
+    /**
+     * Finishes the first points of a batch which were written or dropped, along with any flushes
+     * waiting for them. If fewer rows were inserted than finished, the first rows are assumed to
+     * be the ones which were written.
+     *
+     * @param batch    the points of the batch, oldest first
+     * @param count    the number of points at the start of the batch which finished
+     * @param inserted the number of those points which were inserted
+     */
+    private void finishPoints(WorkerArgs[] batch, int count, int inserted) {
+        StreamFuture current = null;
+        int points = 0;
+        int written = 0;
+        for (int i = 0; i < count; i++) {
+            StreamFuture future = batch[i].batchFuture;
+            if (future != current) {
+                if (current != null)
+                    current.finish(points, written);
+                current = future;
+                points = 0;
+                written = 0;
+            }
+            points++;
+            if (i < inserted)
+                written++;
+        }
+        if (current != null)
+            current.finish(points, written);
+
+        synchronized (mFlushes) {
+            mFinished += count;
+            for (int i = mFlushes.size() - 1; i >= 0; i--) {
+                PendingFlush flush = mFlushes.get(i);
+                for (int j = 0; j < count; j++) {
+                    if (batch[j].seq < flush.before) {
+                        flush.remaining--;
+                        if (j < inserted)
+                            flush.inserted++;
+                    }
+                }
+                if (flush.remaining <= 0) {
+                    mFlushes.remove(i);
+                    flush.future.complete(flush.inserted);
+                }
+            }
+        }
     }
 
     /**
      * This method queues an asynchronous bulk insert. When the bulk insert operation is
      * done {@link #onBulkInsertComplete} is called.
+     * <p/>
+     * A delayed bulk insert is scheduled once per batch, relative to the first point which was
+     * buffered. Later points don't push it back, so a steady stream is still flushed on time.
+     * While a flush is waiting, the bulk insert runs after the messages which are already queued
+     * instead, so points which arrive late, like ones held back by a rate limit, aren't delayed.
      *
      * @param immediate if true the bulk insert will be performed immediately
      */
     private final void queueBulkInsert(boolean immediate) {
+        long retryAt = mRetryAt;
+        boolean backingOff = retryAt > SystemClock.uptimeMillis();
+        boolean flushing = !immediate && !backingOff && isFlushPending();
+        if (!immediate && !backingOff && !flushing
+                && mWorkerThreadHandler.hasMessages(EVENT_ARG_BULK_INSERT))
+            return;
+
         mWorkerThreadHandler.removeMessages(EVENT_ARG_BULK_INSERT);
 
         Message msg = mWorkerThreadHandler.obtainMessage(EVENT_ARG_BULK_INSERT);
@@ -176,13 +743,70 @@ public class AsyncBulkInsertHandler extends Handler {
         args.handler = this;
         msg.obj = args;
 
-        if (immediate) {
+        FlushScheduler scheduler = FlushScheduler.getInstance();
+        if (backingOff) {
+            // Writes are backing off so don't try any sooner
+            mWorkerThreadHandler.sendMessageAtTime(msg, retryAt);
+        } else if (immediate) {
             mWorkerThreadHandler.sendMessageAtFrontOfQueue(msg);
+        } else if (flushing) {
+            mWorkerThreadHandler.sendMessage(msg);
+        } else if (scheduler != null) {
+            mWorkerThreadHandler.sendMessageAtTime(msg, scheduler.getFlushTime(mDelay));
         } else {
             mWorkerThreadHandler.sendMessageDelayed(msg, mDelay);
         }
     }
 
+    /**
+     * Writes all points which were inserted before this call to the db now instead of waiting for
+     * the flush delay. This makes it possible to use long flush delays and still make sure points
+     * are written at the end of a session.
+     * <p/>
+     * The future only completes once every point inserted before this call was written, or was
+     * dropped after {@link #MAX_RETRIES} retries or to make room. Points which are retried or held
+     * back by the circuit breaker keep it waiting. So do points held back by a
+     * {@link StreamRateLimiter#POLICY_DEFER} rate limit, for up to
+     * {@link StreamRateLimiter#MAX_DEFER_MS}. They are written as soon as they are released.
+     *
+     * @return a {@link StreamFuture} which completes with the number of those points which were
+     * inserted
+     */
+    public StreamFuture flush() {
+        StreamFuture future = new StreamFuture();
+        synchronized (mFlushes) {
+            if (mSubmitted == mFinished)
+                future.complete(0);
+            else
+                mFlushes.add(new PendingFlush(mSubmitted, mSubmitted - mFinished, future));
+        }
+        Message msg = mWorkerThreadHandler.obtainMessage(EVENT_ARG_FLUSH);
+
+        WorkerArgs args = new WorkerArgs();
+        args.handler = this;
+        msg.obj = args;
+
+        // Queued behind any pending inserts so they are included in the flush
+        mWorkerThreadHandler.sendMessage(msg);
+        return future;
+    }
+
+    /**
+     * Flushes all points inserted before this call and waits for them to be written to the db or
+     * dropped, as described in {@link #flush()}. Must not be called from the worker thread.
+     *
+     * @param timeout the maximum time in ms to wait
+     * @return a {@link StreamFuture} which is done if the points finished before the timeout
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public StreamFuture drain(long timeout) throws InterruptedException {
+        if (Looper.myLooper() == sLooper)
+            throw new IllegalStateException("drain() would deadlock on the worker thread");
+        StreamFuture future = flush();
+        future.await(timeout, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
     /**
      * Called when an asynchronous bulk insert is completed.
      *
@@ -198,6 +822,7 @@ public class AsyncBulkInsertHandler extends Handler {
 
         switch (msg.what) {
             case EVENT_ARG_BULK_INSERT:
+            case EVENT_ARG_FLUSH:
                 onBulkInsertComplete((Integer) args.result);
                 break;
         }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.AsyncQueryHandler;
+
+/**
+ * A {@link StreamTransport} which inserts each point asynchronously with
+ * {@link StreamPointBuilder#writeAsync(AsyncQueryHandler, int, Object)}.
+ */
+public class AsyncQueryTransport implements StreamTransport {
+
+    private final AsyncQueryHandler mHandler;
+
+    private final int mToken;
+
+    private final Object mCookie;
+
+    public AsyncQueryTransport(AsyncQueryHandler handler) {
+        this(handler, 0, null);
+    }
+
+    /**
+     * @param handler the {@link AsyncQueryHandler} used to insert points
+     * @param token   passed into {@link AsyncQueryHandler#onInsertComplete} for every point
+     * @param cookie  passed into {@link AsyncQueryHandler#onInsertComplete} for every point
+     */
+    public AsyncQueryTransport(AsyncQueryHandler handler, int token, Object cookie) {
+        mHandler = handler;
+        mToken = token;
+        mCookie = cookie;
+    }
+
+    @Override
+    public void write(StreamPointBuilder point) {
+        point.writeAsync(mHandler, mToken, mCookie);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link StreamTransport} which picks the cheapest path for each stream at runtime.
+ * <p/>
+ * The transport keeps a moving average of the arrival rate and payload size for every version of
+ * every stream. A stream starts on the single point path and is moved to the batch path once
+ * points start arriving faster than {@link #BATCH_ENTER_RATE}. If a stream path was given, very
+ * fast streams with small payloads are moved to it once they pass {@link #STREAM_ENTER_RATE}. Each
+ * threshold has a lower exit rate and a stream must stay on a path for at least
+ * {@link #MIN_DWELL_NANOS} so bursty streams don't flip back and forth between paths.
+ * <p/>
+ * When a stream switches paths, its next points are held until the points it sent on the old path
+ * are done, and are then sent on the new path in order from a background thread. Writes never wait
+ * for this. Points on a {@link BulkInsertTransport} are done once the batch holding the last one
+ * was written, and points on a {@link StreamWriterTransport} once its writer sent them. Points
+ * held back are validated when they are sent, so a point which is invalid is logged and dropped
+ * instead of throwing from {@link #write}. An {@link android.content.AsyncQueryHandler} doesn't
+ * report when its inserts are done, so points leaving an {@link AsyncQueryTransport}, or any
+ * other transport, are not held.
+ */
+public class AutoStreamTransport implements StreamTransport {
+
+    private static final String TAG = "AutoStreamTransport";
+
+    static final int PATH_SINGLE = 0;
+
+    static final int PATH_BATCH = 1;
+
+    static final int PATH_STREAM = 2;
+
+    /**
+     * Points per second above which a stream is moved to the batch path
+     */
+    public static final float BATCH_ENTER_RATE = 4f;
+
+    /**
+     * Points per second below which a stream is moved back to the single point path
+     */
+    public static final float BATCH_EXIT_RATE = 1f;
+
+    /**
+     * Points per second above which a stream is moved to the stream path
+     */
+    public static final float STREAM_ENTER_RATE = 50f;
+
+    /**
+     * Points per second below which a stream is moved back to the batch path
+     */
+    public static final float STREAM_EXIT_RATE = 20f;
+
+    /**
+     * Largest average payload in characters which will be sent over the stream path. Larger
+     * points risk filling the binder transaction buffer.
+     */
+    public static final int MAX_STREAM_PAYLOAD = 16 * 1024;
+
+    /**
+     * Minimum time a stream stays on a path before it can be switched again
+     */
+    public static final long MIN_DWELL_NANOS = 1000 * 1000 * 1000;
+
+    /**
+     * Weight given to the newest sample in the moving averages
+     */
+    private static final float ALPHA = 0.2f;
+
+    private static Looper sLooper = null;
+
+    private final StreamTransport[] mPaths;
+
+    private final Handler mReleaseHandler;
+
+    private final ConcurrentHashMap<StreamHandle, StreamState> mStates =
+            new ConcurrentHashMap<StreamHandle, StreamState>();
+
+    static final class StreamState {
+        int path = PATH_SINGLE;
+
+        long lastSwitch;
+
+        long lastArrival;
+
+        float interval;
+
+        float size;
+
+        /**
+         * The path the last point which was sent went on
+         */
+        int sentPath = PATH_SINGLE;
+
+        /**
+         * The future of the batch holding the last point sent on the batch path, or null
+         */
+        StreamFuture batchFuture;
+
+        /**
+         * Copies of the points held until the points on their previous path are done, and the
+         * path each one goes on, or null if no points are held
+         */
+        ArrayList<StreamPointBuilder> held;
+
+        ArrayList<Integer> heldPaths;
+    }
+
+    /**
+     * Create an {@link AutoStreamTransport} which switches between a single point path and a batch
+     * path.
+     *
+     * @param single the transport used for slow streams
+     * @param batch  the transport used for fast streams
+     */
+    public AutoStreamTransport(StreamTransport single, StreamTransport batch) {
+        this(single, batch, null);
+    }
+
+    /**
+     * Create an {@link AutoStreamTransport} which switches between a single point path, a batch
+     * path and a stream path.
+     *
+     * @param single the transport used for slow streams, usually an {@link AsyncQueryTransport}
+     * @param batch  the transport used for fast streams, usually a {@link BulkInsertTransport}
+     * @param stream the transport used for very fast streams with small payloads, usually a
+     *               {@link StreamWriterTransport}. May be null.
+     */
+    public AutoStreamTransport(StreamTransport single, StreamTransport batch,
+                               StreamTransport stream) {
+        if (single == null || batch == null)
+            throw new IllegalArgumentException("single and batch transports are required");
+        mPaths = new StreamTransport[]{single, batch, stream};
+        synchronized (AutoStreamTransport.class) {
+            if (sLooper == null) {
+                HandlerThread thread = new HandlerThread("AutoStreamTransport");
+                thread.start();
+
+                sLooper = thread.getLooper();
+            }
+        }
+        mReleaseHandler = new Handler(sLooper);
+    }
+
+    @Override
+    public void write(StreamPointBuilder point) throws RemoteException {
+        write(point, System.nanoTime());
+    }
+
+    /**
+     * @param now the arrival time of the point from {@link System#nanoTime()}
+     */
+    void write(StreamPointBuilder point, long now) throws RemoteException {
+        StreamHandle handle = point.getHandle();
+        if (handle == null)
+            handle = StreamHandle.obtain(point.getStreamId(), point.getStreamVersion());
+        StreamState state = mStates.get(handle);
+        if (state == null) {
+            state = new StreamState();
+            StreamState existing = mStates.putIfAbsent(handle, state);
+            if (existing != null)
+                state = existing;
+        }
+
+        CharSequence data = point.getDataChars();
+        int size = data instanceof Utf8CharSequence ? ((Utf8CharSequence) data).byteLength()
+                : data != null ? data.length() : 0;
+
+        int path;
+        synchronized (state) {
+            path = choosePath(state, now, size);
+            if (state.held != null) {
+                // Points which are already held go first
+                hold(state, point, path);
+                return;
+            }
+            if (path != state.sentPath) {
+                StreamFuture previous = pendingOn(state.sentPath, state);
+                if (previous != null && !previous.isDone()) {
+                    state.held = new ArrayList<StreamPointBuilder>();
+                    state.heldPaths = new ArrayList<Integer>();
+                    hold(state, point, path);
+                    releaseWhenDone(previous, state);
+                    return;
+                }
+            }
+            state.sentPath = path;
+        }
+        send(state, point, path);
+    }
+
+    private static void hold(StreamState state, StreamPointBuilder point, int path) {
+        state.held.add(point.copy());
+        state.heldPaths.add(path);
+    }
+
+    /**
+     * Returns a future which completes once the points of the stream sent on the path are done
+     *
+     * @return the future, or null if the path can't tell when its points are done
+     */
+    private StreamFuture pendingOn(int path, StreamState state) {
+        switch (path) {
+            case PATH_BATCH:
+                return state.batchFuture;
+            case PATH_STREAM:
+                if (mPaths[PATH_STREAM] instanceof StreamWriterTransport)
+                    return ((StreamWriterTransport) mPaths[PATH_STREAM]).flush();
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private void send(StreamState state, StreamPointBuilder point, int path)
+            throws RemoteException {
+        if (path == PATH_BATCH && mPaths[PATH_BATCH] instanceof BulkInsertTransport) {
+            StreamFuture future = ((BulkInsertTransport) mPaths[PATH_BATCH]).submit(point);
+            synchronized (state) {
+                state.batchFuture = future;
+            }
+        } else {
+            mPaths[path].write(point);
+        }
+    }
+
+    private void releaseWhenDone(StreamFuture previous, final StreamState state) {
+        previous.whenDone(new Runnable() {
+            @Override
+            public void run() {
+                mReleaseHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        release(state);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends the held points of a stream in order. Stops again at the next point which goes on
+     * another path until the points before it are done. Called on the release thread.
+     */
+    private void release(StreamState state) {
+        synchronized (state) {
+            while (state.held != null && !state.held.isEmpty()) {
+                int path = state.heldPaths.get(0);
+                if (path != state.sentPath) {
+                    StreamFuture previous = pendingOn(state.sentPath, state);
+                    if (previous != null && !previous.isDone()) {
+                        releaseWhenDone(previous, state);
+                        return;
+                    }
+                    state.sentPath = path;
+                }
+                StreamPointBuilder point = state.held.remove(0);
+                state.heldPaths.remove(0);
+                try {
+                    // Sent while holding the lock so new points can't pass the held ones
+                    send(state, point, path);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Unable to send a held point", e);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Dropped a held point", e);
+                }
+            }
+            state.held = null;
+            state.heldPaths = null;
+        }
+    }
+
+    /**
+     * Updates the moving averages for a new point and returns the path it should be sent on.
+     * Must be called while holding the lock on {@code state}.
+     */
+    int choosePath(StreamState state, long now, int size) {
+        if (state.lastArrival == 0) {
+            state.lastSwitch = now;
+            state.size = size;
+        } else if (state.interval == 0) {
+            // Start the average at the first interval so the rate isn't overestimated
+            state.interval = now - state.lastArrival;
+            state.size += ALPHA * (size - state.size);
+        } else {
+            state.interval += ALPHA * ((now - state.lastArrival) - state.interval);
+            state.size += ALPHA * (size - state.size);
+        }
+        state.lastArrival = now;
+
+        if (now - state.lastSwitch < MIN_DWELL_NANOS)
+            return state.path;
+
+        float rate = state.interval > 0 ? 1e9f / state.interval : 0;
+        boolean streamAllowed = mPaths[PATH_STREAM] != null && state.size <= MAX_STREAM_PAYLOAD;
+
+        int path = state.path;
+        switch (path) {
+            case PATH_SINGLE:
+                if (rate > BATCH_ENTER_RATE)
+                    path = PATH_BATCH;
+                break;
+            case PATH_BATCH:
+                if (rate < BATCH_EXIT_RATE)
+                    path = PATH_SINGLE;
+                else if (streamAllowed && rate > STREAM_ENTER_RATE)
+                    path = PATH_STREAM;
+                break;
+            case PATH_STREAM:
+                if (!streamAllowed || rate < STREAM_EXIT_RATE)
+                    path = PATH_BATCH;
+                break;
+        }
+
+        if (path != state.path) {
+            state.path = path;
+            state.lastSwitch = now;
+        }
+        return path;
+    }
+
+    /**
+     * Closes all of the transports this {@link AutoStreamTransport} switches between
+     */
+    @Override
+    public void close() {
+        // Held points are sent right away since nothing can be sent once the paths are closed
+        for (StreamState state : mStates.values()) {
+            synchronized (state) {
+                if (state.held == null)
+                    continue;
+                for (int i = 0; i < state.held.size(); i++) {
+                    try {
+                        mPaths[state.heldPaths.get(i)].write(state.held.get(i));
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Unable to send a held point", e);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Dropped a held point", e);
+                    }
+                }
+                state.held = null;
+                state.heldPaths = null;
+            }
+        }
+        for (StreamTransport path : mPaths) {
+            if (path != null)
+                path.close();
+        }
+        mStates.clear();
+    }
+}
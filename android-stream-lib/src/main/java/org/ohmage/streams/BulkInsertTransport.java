@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+/**
+ * A {@link StreamTransport} which batches points with an {@link AsyncBulkInsertHandler} using
+ * {@link StreamPointBuilder#writeAsync(AsyncBulkInsertHandler)}.
+ */
+public class BulkInsertTransport implements StreamTransport {
+
+    private final AsyncBulkInsertHandler mHandler;
+
+    public BulkInsertTransport(AsyncBulkInsertHandler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void write(StreamPointBuilder point) {
+        point.writeAsync(mHandler);
+    }
+
+    /**
+     * Same as {@link #write(StreamPointBuilder)}
+     *
+     * @return the future of the batch the point is written in
+     * @see StreamPointBuilder#submit(AsyncBulkInsertHandler)
+     */
+    StreamFuture submit(StreamPointBuilder point) {
+        return point.submit(mHandler);
+    }
+
+    /**
+     * Writes the buffered points and waits for them
+     *
+     * @see AsyncBulkInsertHandler#drain(long)
+     */
+    public StreamFuture drain(long timeout) throws InterruptedException {
+        return mHandler.drain(timeout);
+    }
+
+    @Override
+    public void close() {
+        // The handler flushes on its own after its delay
+    }
+}
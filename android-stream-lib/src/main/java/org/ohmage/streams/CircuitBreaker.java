@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.SystemClock;
+
+/**
+ * Stops writes to ohmage for a while after they keep failing or taking too long, so a broken or
+ * overloaded provider isn't called again for every batch.
+ * <p/>
+ * The breaker starts closed and lets every write through. After {@link #getFailureThreshold()}
+ * failed or slow writes in a row it opens and lets no writes through until the open time has
+ * passed. Then it is half open and lets a single write through. If that write succeeds the breaker
+ * closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+    public static final int STATE_CLOSED = 0;
+
+    public static final int STATE_OPEN = 1;
+
+    public static final int STATE_HALF_OPEN = 2;
+
+    /**
+     * Default number of failed or slow writes in a row which open the breaker
+     */
+    public static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * Default time in ms after which a write counts as slow
+     */
+    public static final long SLOW_WRITE_MS = 2000;
+
+    /**
+     * Default time in ms the breaker stays open
+     */
+    public static final long OPEN_MS = 30000;
+
+    private final int mFailureThreshold;
+
+    private final long mSlowWriteNanos;
+
+    private final long mOpenMillis;
+
+    private int mState = STATE_CLOSED;
+
+    private int mFailures;
+
+    private long mOpenedAt;
+
+    private boolean mTrialRunning;
+
+    public CircuitBreaker() {
+        this(FAILURE_THRESHOLD, SLOW_WRITE_MS, OPEN_MS);
+    }
+
+    /**
+     * @param failureThreshold number of failed or slow writes in a row which open the breaker
+     * @param slowWriteMillis  time in ms after which a write counts as failed
+     * @param openMillis       time in ms the breaker stays open before a write is tried again
+     */
+    public CircuitBreaker(int failureThreshold, long slowWriteMillis, long openMillis) {
+        mFailureThreshold = failureThreshold;
+        mSlowWriteNanos = slowWriteMillis * 1000000;
+        mOpenMillis = openMillis;
+    }
+
+    public int getFailureThreshold() {
+        return mFailureThreshold;
+    }
+
+    /**
+     * @return one of the STATE constants
+     */
+    public synchronized int getState() {
+        if (mState == STATE_OPEN && getRetryDelay() == 0)
+            return STATE_HALF_OPEN;
+        return mState;
+    }
+
+    /**
+     * Checks if a write may be tried now. Every call which returns true must be followed by
+     * {@link #onSuccess(long)}, {@link #onFailure()} or {@link #onSkipped()}.
+     *
+     * @return true if the write should be tried
+     */
+    public synchronized boolean allowWrite() {
+        switch (mState) {
+            case STATE_CLOSED:
+                return true;
+            case STATE_OPEN:
+                if (getRetryDelay() > 0)
+                    return false;
+                mState = STATE_HALF_OPEN;
+                // Fall through to let one trial write through
+            default:
+                if (mTrialRunning)
+                    return false;
+                mTrialRunning = true;
+                return true;
+        }
+    }
+
+    /**
+     * Records a write which finished
+     *
+     * @param latencyNanos how long the write took
+     */
+    public synchronized void onSuccess(long latencyNanos) {
+        if (latencyNanos > mSlowWriteNanos) {
+            onFailure();
+            return;
+        }
+        mTrialRunning = false;
+        mFailures = 0;
+        mState = STATE_CLOSED;
+    }
+
+    /**
+     * Records a write which was allowed but not tried, such as one which had nothing to write.
+     * Lets the next write through without changing the state.
+     */
+    public synchronized void onSkipped() {
+        mTrialRunning = false;
+    }
+
+    /**
+     * Records a write which failed
+     */
+    public synchronized void onFailure() {
+        mTrialRunning = false;
+        mFailures++;
+        if (mState == STATE_HALF_OPEN || mFailures >= mFailureThreshold) {
+            mState = STATE_OPEN;
+            mOpenedAt = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * @return the time in ms until the open breaker lets a write through, or 0
+     */
+    public synchronized long getRetryDelay() {
+        if (mState != STATE_OPEN)
+            return 0;
+        return Math.max(0, mOpenedAt + mOpenMillis - SystemClock.uptimeMillis());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled <a href="https://github.com/jojenki/Concordia">Concordia</a> definition which can
+ * check that the data of a point matches the stream before it is sent to ohmage.
+ * <p/>
+ * The definition is compiled once into a tree of {@link SchemaNode}s, the same representation the
+ * encoders of {@link StreamSchema} are built on. Points are checked by walking the
+ * tree while reading the JSON as a stream of tokens, so no {@link JSONObject} is built for the
+ * point. Register a schema for a stream with {@link #register(String, int, ConcordiaSchema)} and
+ * every write for that stream will be checked. Points which don't match are rejected with a
+ * {@link RuntimeException} just like points with invalid JSON.
+ */
+public final class ConcordiaSchema {
+
+    private static final ConcurrentHashMap<String, Versions> sSchemas =
+            new ConcurrentHashMap<String, Versions>();
+
+    /**
+     * The schemas registered for each version of a stream. Replaced instead of modified so it can
+     * be read without locking.
+     */
+    private static final class Versions {
+        final int[] versions;
+
+        final ConcordiaSchema[] schemas;
+
+        Versions(int[] versions, ConcordiaSchema[] schemas) {
+            this.versions = versions;
+            this.schemas = schemas;
+        }
+    }
+
+    /**
+     * Changes whenever a schema is registered so cached lookups know to look again
+     */
+    private static volatile int sGeneration;
+
+    private final SchemaNode mRoot;
+
+    /**
+     * The last string which was found to be valid. Reused builders often send the same data
+     * string many times so it doesn't need to be checked again.
+     */
+    private volatile String mLastValid;
+
+    ConcordiaSchema(SchemaNode root) {
+        mRoot = root;
+    }
+
+    /**
+     * Compiles a Concordia definition. The definition can either be the type definition itself or
+     * the stream creation JSON which holds the definition in its {@code definition} field.
+     *
+     * @param definition the definition as a JSON string
+     * @return the compiled schema
+     * @throws JSONException if the definition is not valid
+     */
+    public static ConcordiaSchema compile(String definition) throws JSONException {
+        return compile(new JSONObject(definition));
+    }
+
+    /**
+     * @see #compile(String)
+     */
+    public static ConcordiaSchema compile(JSONObject definition) throws JSONException {
+        return new ConcordiaSchema(SchemaNode.compile(definition));
+    }
+
+    /**
+     * Check all points written for a stream and version against the schema
+     *
+     * @param streamId
+     * @param streamVersion
+     * @param schema        the schema, or null to stop checking the stream
+     */
+    public static synchronized void register(String streamId, int streamVersion,
+                                             ConcordiaSchema schema) {
+        Versions old = sSchemas.get(streamId);
+        int[] versions = old != null ? old.versions : new int[0];
+        ConcordiaSchema[] schemas = old != null ? old.schemas : new ConcordiaSchema[0];
+
+        int index = -1;
+        for (int i = 0; i < versions.length; i++) {
+            if (versions[i] == streamVersion)
+                index = i;
+        }
+
+        if (index == -1) {
+            if (schema == null)
+                return;
+            int[] newVersions = new int[versions.length + 1];
+            ConcordiaSchema[] newSchemas = new ConcordiaSchema[schemas.length + 1];
+            System.arraycopy(versions, 0, newVersions, 0, versions.length);
+            System.arraycopy(schemas, 0, newSchemas, 0, schemas.length);
+            newVersions[versions.length] = streamVersion;
+            newSchemas[schemas.length] = schema;
+            sSchemas.put(streamId, new Versions(newVersions, newSchemas));
+            sGeneration++;
+        } else if (schema != null) {
+            ConcordiaSchema[] newSchemas = schemas.clone();
+            newSchemas[index] = schema;
+            sSchemas.put(streamId, new Versions(versions, newSchemas));
+            sGeneration++;
+        } else if (versions.length == 1) {
+            sSchemas.remove(streamId);
+            sGeneration++;
+        } else {
+            int[] newVersions = new int[versions.length - 1];
+            ConcordiaSchema[] newSchemas = new ConcordiaSchema[schemas.length - 1];
+            for (int i = 0, j = 0; i < versions.length; i++) {
+                if (i != index) {
+                    newVersions[j] = versions[i];
+                    newSchemas[j++] = schemas[i];
+                }
+            }
+            sSchemas.put(streamId, new Versions(newVersions, newSchemas));
+            sGeneration++;
+        }
+    }
+
+    /**
+     * @return the schema registered for the stream and version, or null
+     */
+    public static ConcordiaSchema forStream(String streamId, int streamVersion) {
+        if (streamId == null)
+            return null;
+        Versions versions = sSchemas.get(streamId);
+        if (versions == null)
+            return null;
+        for (int i = 0; i < versions.versions.length; i++) {
+            if (versions.versions[i] == streamVersion)
+                return versions.schemas[i];
+        }
+        return null;
+    }
+
+    static int generation() {
+        return sGeneration;
+    }
+
+    /**
+     * Checks the data against the schema registered for the stream, if there is one
+     *
+     * @throws RuntimeException if the data doesn't match the schema
+     */
+    static void check(String streamId, int streamVersion, CharSequence data) {
+        ConcordiaSchema schema = forStream(streamId, streamVersion);
+        if (schema != null)
+            schema.validate(data);
+    }
+
+    /**
+     * @param data the data of a point
+     * @return true if the data matches the schema
+     */
+    public boolean isValid(CharSequence data) {
+        try {
+            validate(data);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks that the data matches the schema
+     *
+     * @param data the data of a point
+     * @throws RuntimeException if the data doesn't match the schema
+     */
+    public void validate(CharSequence data) {
+        if (data == null)
+            throw new RuntimeException("Must specify data");
+        if (data == mLastValid)
+            return;
+        // Field names can only be matched against decoded text
+        if (data instanceof Utf8CharSequence)
+            data = data.toString();
+
+        JsonPullParser parser = JsonPullParser.forThread();
+        parser.reset(data);
+        try {
+            mRoot.validate(parser);
+            parser.endDocument();
+        } catch (JSONException e) {
+            throw new RuntimeException("data does not match schema: " + e.getMessage());
+        }
+
+        if (data instanceof String)
+            mLastValid = (String) data;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentResolver;
+
+/**
+ * A {@link StreamTransport} which blocks until each point has been inserted with
+ * {@link StreamPointBuilder#write(ContentResolver)}.
+ */
+public class ContentResolverTransport implements StreamTransport {
+
+    private final ContentResolver mResolver;
+
+    public ContentResolverTransport(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    @Override
+    public void write(StreamPointBuilder point) {
+        point.write(mResolver);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+}
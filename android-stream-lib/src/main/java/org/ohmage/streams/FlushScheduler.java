@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+/**
+ * Schedules the delayed flushes of {@link AsyncBulkInsertHandler}s and
+ * {@link PipeStreamTransport}s based on the power state of the device.
+ * <p/>
+ * Once installed with {@link #install(Context)}, flush delays are stretched while the screen is off
+ * and the device is on battery, and shortened while the device is charging and interactive. Flush
+ * times are also rounded up to a tick which is shared by every buffer in the process, so a
+ * trickle of points on many streams wakes the CPU once per tick instead of once per stream.
+ * <p/>
+ * If the scheduler is not installed, flushes happen after exactly the configured delay.
+ */
+public class FlushScheduler {
+
+    /**
+     * Delay multiplier and tick length while charging and interactive
+     */
+    static final float FAST_SCALE = 0.5f;
+
+    static final long FAST_TICK = 100;
+
+    /**
+     * Delay multiplier and tick length while either charging or interactive
+     */
+    static final float NORMAL_SCALE = 1f;
+
+    static final long NORMAL_TICK = 250;
+
+    /**
+     * Delay multiplier and tick length while the screen is off on battery
+     */
+    static final float IDLE_SCALE = 4f;
+
+    static final long IDLE_TICK = 2000;
+
+    private static volatile FlushScheduler sInstance;
+
+    private final Context mContext;
+
+    private volatile boolean mInteractive = true;
+
+    private volatile boolean mCharging;
+
+    final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_SCREEN_ON.equals(action))
+                mInteractive = true;
+            else if (Intent.ACTION_SCREEN_OFF.equals(action))
+                mInteractive = false;
+            else if (Intent.ACTION_POWER_CONNECTED.equals(action))
+                mCharging = true;
+            else if (Intent.ACTION_POWER_DISCONNECTED.equals(action))
+                mCharging = false;
+        }
+    };
+
+    FlushScheduler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Install the process wide scheduler. Calling this more than once has no effect.
+     *
+     * @param context
+     * @return the installed scheduler
+     */
+    public static synchronized FlushScheduler install(Context context) {
+        if (sInstance == null) {
+            FlushScheduler scheduler = new FlushScheduler(context.getApplicationContext());
+            scheduler.start();
+            sInstance = scheduler;
+        }
+        return sInstance;
+    }
+
+    /**
+     * Remove the process wide scheduler and go back to fixed flush delays
+     */
+    public static synchronized void uninstall() {
+        if (sInstance != null) {
+            sInstance.mContext.unregisterReceiver(sInstance.mReceiver);
+            sInstance = null;
+        }
+    }
+
+    /**
+     * @return the installed scheduler or null
+     */
+    static FlushScheduler getInstance() {
+        return sInstance;
+    }
+
+    private void start() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        mContext.registerReceiver(mReceiver, filter);
+        refresh();
+    }
+
+    /**
+     * Reads the current power state from the system. The state is kept up to date by broadcasts
+     * after the scheduler is installed, but tests can call this after changing the shadow
+     * {@link PowerManager} or battery broadcast.
+     */
+    public void refresh() {
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (pm != null)
+            mInteractive = pm.isScreenOn();
+
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null)
+            mCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    public boolean isInteractive() {
+        return mInteractive;
+    }
+
+    public boolean isCharging() {
+        return mCharging;
+    }
+
+    /**
+     * Returns when a flush which was requested now with the given delay should happen
+     *
+     * @param delay the configured flush delay in ms
+     * @return the time of the flush in the {@link SystemClock#uptimeMillis()} time base
+     */
+    public long getFlushTime(long delay) {
+        float scale;
+        long tick;
+        if (mCharging && mInteractive) {
+            scale = FAST_SCALE;
+            tick = FAST_TICK;
+        } else if (mCharging || mInteractive) {
+            scale = NORMAL_SCALE;
+            tick = NORMAL_TICK;
+        } else {
+            scale = IDLE_SCALE;
+            tick = IDLE_TICK;
+        }
+
+        long time = SystemClock.uptimeMillis() + (long) (delay * scale);
+        return (time + tick - 1) / tick * tick;
+    }
+}
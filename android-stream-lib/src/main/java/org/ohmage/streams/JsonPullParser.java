@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import org.json.JSONException;
+
+/**
+ * A small streaming JSON parser which reads tokens straight from a {@link CharSequence} without
+ * building any objects. Used to validate points without parsing them into a {@link
+ * org.json.JSONObject}. The parser can be reset and reused for the next document. It is not thread
+ * safe.
+ */
+final class JsonPullParser {
+
+    static final int BEGIN_OBJECT = 1;
+
+    static final int END_OBJECT = 2;
+
+    static final int BEGIN_ARRAY = 3;
+
+    static final int END_ARRAY = 4;
+
+    static final int NAME = 5;
+
+    static final int STRING = 6;
+
+    static final int NUMBER = 7;
+
+    static final int BOOLEAN = 8;
+
+    static final int NULL = 9;
+
+    static final int END_DOCUMENT = 10;
+
+    private static final int NONE = 0;
+
+    // States of the containers on the stack
+    private static final int EMPTY_ARRAY = 1;
+
+    private static final int NONEMPTY_ARRAY = 2;
+
+    private static final int EMPTY_OBJECT = 3;
+
+    private static final int DANGLING_NAME = 4;
+
+    private static final int NONEMPTY_OBJECT = 5;
+
+    private static final int EMPTY_DOCUMENT = 6;
+
+    private static final int NONEMPTY_DOCUMENT = 7;
+
+    private static final ThreadLocal<JsonPullParser> sParser = new ThreadLocal<JsonPullParser>() {
+        @Override
+        protected JsonPullParser initialValue() {
+            return new JsonPullParser();
+        }
+    };
+
+    private CharSequence mIn;
+
+    private int mPos;
+
+    private int[] mStack = new int[32];
+
+    private int mDepth;
+
+    private int mPeeked;
+
+    /**
+     * The text of the last name, string or number
+     */
+    private final StringBuilder mText = new StringBuilder();
+
+    private boolean mBoolean;
+
+    /**
+     * @return a parser which is only used by the current thread
+     */
+    static JsonPullParser forThread() {
+        return sParser.get();
+    }
+
+    /**
+     * Checks that the input is a single valid JSON object
+     *
+     * @return true if the input is a JSON object
+     */
+    static boolean isObject(CharSequence in) {
+        JsonPullParser parser = forThread();
+        parser.reset(in);
+        try {
+            if (parser.peek() != BEGIN_OBJECT)
+                return false;
+            parser.skipValue();
+            parser.endDocument();
+            return true;
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Start parsing a new document
+     */
+    void reset(CharSequence in) {
+        mIn = in;
+        mPos = 0;
+        mDepth = 0;
+        mPeeked = NONE;
+        push(EMPTY_DOCUMENT);
+    }
+
+    /**
+     * Returns the type of the next token without consuming it
+     */
+    int peek() throws JSONException {
+        if (mPeeked != NONE)
+            return mPeeked;
+
+        int top = mStack[mDepth - 1];
+        int c;
+        switch (top) {
+            case EMPTY_ARRAY:
+                mStack[mDepth - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']')
+                    return mPeeked = END_ARRAY;
+                if (c != -1)
+                    mPos--;
+                break;
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']')
+                    return mPeeked = END_ARRAY;
+                if (c != ',')
+                    throw syntaxError("Expected ',' or ']'");
+                break;
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                mStack[mDepth - 1] = DANGLING_NAME;
+                c = nextNonWhitespace();
+                if (c == '}')
+                    return mPeeked = END_OBJECT;
+                if (top == NONEMPTY_OBJECT) {
+                    if (c != ',')
+                        throw syntaxError("Expected ',' or '}'");
+                    c = nextNonWhitespace();
+                }
+                if (c != '"')
+                    throw syntaxError("Expected name");
+                readString();
+                return mPeeked = NAME;
+            case DANGLING_NAME:
+                mStack[mDepth - 1] = NONEMPTY_OBJECT;
+                if (nextNonWhitespace() != ':')
+                    throw syntaxError("Expected ':'");
+                break;
+            case EMPTY_DOCUMENT:
+                mStack[mDepth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            case NONEMPTY_DOCUMENT:
+                if (nextNonWhitespace() != -1)
+                    throw syntaxError("Unexpected data after document");
+                return mPeeked = END_DOCUMENT;
+        }
+
+        c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return mPeeked = BEGIN_OBJECT;
+            case '[':
+                return mPeeked = BEGIN_ARRAY;
+            case '"':
+                readString();
+                return mPeeked = STRING;
+            case 't':
+                readLiteral("true");
+                mBoolean = true;
+                return mPeeked = BOOLEAN;
+            case 'f':
+                readLiteral("false");
+                mBoolean = false;
+                return mPeeked = BOOLEAN;
+            case 'n':
+                readLiteral("null");
+                return mPeeked = NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    mPos--;
+                    readNumber();
+                    return mPeeked = NUMBER;
+                }
+                throw syntaxError("Expected value");
+        }
+    }
+
+    void beginObject() throws JSONException {
+        expect(BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    void endObject() throws JSONException {
+        expect(END_OBJECT);
+        mDepth--;
+    }
+
+    void beginArray() throws JSONException {
+        expect(BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    void endArray() throws JSONException {
+        expect(END_ARRAY);
+        mDepth--;
+    }
+
+    /**
+     * @return true if the current object or array has more elements
+     */
+    boolean hasNext() throws JSONException {
+        int p = peek();
+        return p != END_OBJECT && p != END_ARRAY && p != END_DOCUMENT;
+    }
+
+    /**
+     * @return the next name. The returned text is only valid until the next call to the parser.
+     */
+    CharSequence nextName() throws JSONException {
+        expect(NAME);
+        return mText;
+    }
+
+    /**
+     * @return the next string. The returned text is only valid until the next call to the parser.
+     */
+    CharSequence nextString() throws JSONException {
+        expect(STRING);
+        return mText;
+    }
+
+    /**
+     * @return the text of the next number. Only valid until the next call to the parser.
+     */
+    CharSequence nextNumber() throws JSONException {
+        expect(NUMBER);
+        return mText;
+    }
+
+    boolean nextBoolean() throws JSONException {
+        expect(BOOLEAN);
+        return mBoolean;
+    }
+
+    void nextNull() throws JSONException {
+        expect(NULL);
+    }
+
+    /**
+     * Skips the next value, including everything inside of it if it is an object or array
+     */
+    void skipValue() throws JSONException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("Unexpected end of document");
+                default:
+                    mPeeked = NONE;
+            }
+        } while (depth != 0);
+    }
+
+    /**
+     * Checks that the whole document was read
+     */
+    void endDocument() throws JSONException {
+        expect(END_DOCUMENT);
+    }
+
+    private void expect(int token) throws JSONException {
+        if (peek() != token)
+            throw syntaxError("Unexpected token");
+        mPeeked = NONE;
+    }
+
+    private void push(int state) {
+        if (mDepth == mStack.length) {
+            int[] larger = new int[mStack.length * 2];
+            System.arraycopy(mStack, 0, larger, 0, mDepth);
+            mStack = larger;
+        }
+        mStack[mDepth++] = state;
+    }
+
+    private int nextNonWhitespace() {
+        int length = mIn.length();
+        while (mPos < length) {
+            char c = mIn.charAt(mPos++);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+                return c;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a string into {@link #mText}. The opening quote has already been read.
+     */
+    private void readString() throws JSONException {
+        mText.setLength(0);
+        int length = mIn.length();
+        while (mPos < length) {
+            char c = mIn.charAt(mPos++);
+            if (c == '"')
+                return;
+            if (c < 0x20)
+                throw syntaxError("Unescaped control character");
+            if (c != '\\') {
+                mText.append(c);
+                continue;
+            }
+            if (mPos == length)
+                break;
+            c = mIn.charAt(mPos++);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    mText.append(c);
+                    break;
+                case 'b':
+                    mText.append('\b');
+                    break;
+                case 'f':
+                    mText.append('\f');
+                    break;
+                case 'n':
+                    mText.append('\n');
+                    break;
+                case 'r':
+                    mText.append('\r');
+                    break;
+                case 't':
+                    mText.append('\t');
+                    break;
+                case 'u':
+                    if (mPos + 4 > length)
+                        throw syntaxError("Unterminated escape");
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(mIn.charAt(mPos++), 16);
+                        if (digit == -1)
+                            throw syntaxError("Invalid escape");
+                        value = (value << 4) | digit;
+                    }
+                    mText.append((char) value);
+                    break;
+                default:
+                    throw syntaxError("Invalid escape");
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void readLiteral(String literal) throws JSONException {
+        int end = mPos - 1 + literal.length();
+        if (end > mIn.length())
+            throw syntaxError("Expected value");
+        for (int i = 1; i < literal.length(); i++) {
+            if (mIn.charAt(mPos++) != literal.charAt(i))
+                throw syntaxError("Expected value");
+        }
+    }
+
+    /**
+     * Reads and checks the syntax of a number into {@link #mText}
+     */
+    private void readNumber() throws JSONException {
+        mText.setLength(0);
+        int start = mPos;
+        if (peekChar() == '-')
+            mPos++;
+        if (peekChar() == '0') {
+            mPos++;
+        } else if (!readDigits()) {
+            throw syntaxError("Invalid number");
+        }
+        if (peekChar() == '.') {
+            mPos++;
+            if (!readDigits())
+                throw syntaxError("Invalid number");
+        }
+        int c = peekChar();
+        if (c == 'e' || c == 'E') {
+            mPos++;
+            c = peekChar();
+            if (c == '+' || c == '-')
+                mPos++;
+            if (!readDigits())
+                throw syntaxError("Invalid number");
+        }
+        mText.append(mIn, start, mPos);
+    }
+
+    private boolean readDigits() {
+        int start = mPos;
+        int c;
+        while ((c = peekChar()) >= '0' && c <= '9') {
+            mPos++;
+        }
+        return mPos > start;
+    }
+
+    private int peekChar() {
+        return mPos < mIn.length() ? mIn.charAt(mPos) : -1;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos);
+    }
+}
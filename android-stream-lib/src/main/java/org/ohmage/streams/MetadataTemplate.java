@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import org.json.JSONObject;
+
+/**
+ * Metadata fields which are the same for every point of a stream. The fields are encoded once when
+ * the template is created and are spliced into the metadata of every point which uses the template
+ * with {@link StreamPointBuilder#withTemplate(MetadataTemplate)}. Only the id, timestamp and
+ * location of each point are encoded per point.
+ * <p/>
+ * The template must not contain {@code id}, {@code timestamp} or {@code location} fields since
+ * those are set on the builder.
+ */
+public final class MetadataTemplate {
+
+    /**
+     * The encoded fields without the surrounding braces
+     */
+    private final String mFields;
+
+    /**
+     * Create a template from the constant metadata fields.
+     *
+     * @param fields a JSON object with at least one field
+     * @throws IllegalArgumentException if there are no fields, or there is an {@code id},
+     *                                  {@code timestamp} or {@code location} field
+     */
+    public MetadataTemplate(JSONObject fields) {
+        if (fields.length() == 0)
+            throw new IllegalArgumentException("A template needs at least one field");
+        if (fields.has("id") || fields.has("timestamp") || fields.has("location"))
+            throw new IllegalArgumentException(
+                    "id, timestamp and location are set on the builder, not the template");
+        String encoded = fields.toString();
+        mFields = encoded.substring(1, encoded.length() - 1);
+    }
+
+    String getFields() {
+        return mFields;
+    }
+}
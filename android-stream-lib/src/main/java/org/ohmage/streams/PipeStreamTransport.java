@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * A {@link StreamTransport} for sustained high-rate streams. Instead of making a binder call for
+ * every point or batch, this transport opens a pipe to ohmage once over the service connection of
+ * a {@link StreamWriter} and writes points to it as frames using a {@link StreamFrameWriter}.
+ * <p/>
+ * Frames are buffered and written to the pipe when the buffer fills up, when {@link #flush()} is
+ * called or at most {@link #FLUSH_DELAY} ms after the first point in the buffer was written. Writes
+ * block if ohmage falls behind reading the pipe. Until the writer is connected, and whenever the
+ * pipe breaks, points are sent through {@link StreamWriter#write} instead. Frames which were
+ * buffered but not written when the pipe broke are replayed through the writer without being
+ * checked against the rate limit again, and a new pipe is only opened after a backoff starting at
+ * {@link #REOPEN_DELAY}. Point ids are checked against the dedup filter of the writer.
+ * <p/>
+ * Pipes are only opened if the receiving service declares the
+ * {@link StreamContract#META_DATA_PIPE_VERSION} meta-data, since older versions of ohmage drop
+ * the pipe without reading it. Requires API level 9. On older devices, or if the receiver doesn't
+ * support pipes, all points are sent through the {@link StreamWriter}.
+ */
+public class PipeStreamTransport implements StreamTransport {
+
+    private static final String TAG = "PipeStreamTransport";
+
+    /**
+     * Maximum number of milliseconds points wait in the buffer before they are written to the pipe
+     */
+    public static final long FLUSH_DELAY = 500;
+
+    /**
+     * Time in ms to wait before opening a new pipe after one broke. The delay doubles for each
+     * pipe which breaks before it was flushed, up to {@link #MAX_REOPEN_DELAY}.
+     */
+    public static final long REOPEN_DELAY = 1000;
+
+    public static final long MAX_REOPEN_DELAY = 60 * 1000;
+
+    private static Looper sLooper = null;
+
+    private final StreamWriter mWriter;
+
+    /**
+     * The writer which was passed in, which is closed with the transport
+     */
+    private final StreamPointWriter mOwner;
+
+    private final Handler mFlushHandler;
+
+    private StreamFrameWriter mFrames;
+
+    /**
+     * Points framed since the last flush, keyed by {@link StreamCountsCache#key(String, int)}.
+     * They are added to the cached counts once they were written to the pipe.
+     */
+    private final HashMap<String, int[]> mFramed = new HashMap<String, int[]>();
+
+    private boolean mFlushQueued;
+
+    /**
+     * True if the receiver reads pipes, or null until it was checked
+     */
+    private Boolean mPipeSupported;
+
+    /**
+     * Uptime in ms before which no new pipe is opened
+     */
+    private long mReopenAt;
+
+    private long mReopenDelay = REOPEN_DELAY;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PipeStreamTransport.this) {
+                mFlushQueued = false;
+                flush();
+            }
+        }
+    };
+
+    public PipeStreamTransport(StreamWriter writer) {
+        this(writer, writer);
+    }
+
+    /**
+     * Opens the pipe over the connection shared by the handle. Closing the transport closes the
+     * handle.
+     */
+    public PipeStreamTransport(SharedStreamWriter handle) {
+        this(handle, handle.getWriter());
+    }
+
+    private PipeStreamTransport(StreamPointWriter owner, StreamWriter writer) {
+        mOwner = owner;
+        mWriter = writer;
+        synchronized (PipeStreamTransport.class) {
+            if (sLooper == null) {
+                HandlerThread thread = new HandlerThread("PipeStreamTransport");
+                thread.start();
+
+                sLooper = thread.getLooper();
+            }
+        }
+        mFlushHandler = new Handler(sLooper);
+    }
+
+    @Override
+    public synchronized void write(StreamPointBuilder point) throws RemoteException {
+        String metadata = point.encodeMetadata();
+        CharSequence data = point.getDataChars();
+
+        if (mFrames == null && !openPipe()) {
+            mWriter.write(point);
+            return;
+        }
+
+        StreamHandle handle = point.getHandle();
+        StreamWriter.checkPoint(point.getStreamId(), point.getStreamVersion(), metadata, data,
+                handle, point.getPolicy());
+        if (point.admit(false) != StreamRateLimiter.ADMIT)
+            return;
+        if (handle != null)
+            handle.countPoint();
+        StreamDedupFilter dedup = mWriter.getDedupFilter();
+        long idHash = dedup != null ? dedup.checkMetadata(metadata) : 0;
+        if (idHash == -1)
+            return;
+        boolean sent = false;
+        try {
+            if (handle != null)
+                mFrames.writeFrame(handle, metadata, data);
+            else
+                mFrames.writeFrame(point.getStreamId(), point.getStreamVersion(), metadata, data);
+            if (StreamCountsCache.isActive())
+                countFramed(point.getStreamId(), point.getStreamVersion());
+            if (!mFlushQueued) {
+                mFlushQueued = true;
+                FlushScheduler scheduler = FlushScheduler.getInstance();
+                if (scheduler != null)
+                    mFlushHandler.postAtTime(mFlushRunnable, scheduler.getFlushTime(FLUSH_DELAY));
+                else
+                    mFlushHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+            }
+            // Framed points are replayed through the writer if the pipe breaks
+            sent = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Pipe closed, falling back to the service connection", e);
+            pipeFailed();
+            mWriter.replay(point.getStreamId(), point.getStreamVersion(), metadata,
+                    point.getData());
+            sent = true;
+        } finally {
+            if (dedup != null) {
+                if (sent)
+                    dedup.putHash(idHash);
+                else
+                    dedup.releaseHash(idHash);
+            }
+        }
+    }
+
+    /**
+     * Opens the pipe to ohmage if the writer is connected
+     *
+     * @return true if the pipe is open
+     * @throws RemoteException if the pipe could not be sent to ohmage
+     */
+    private boolean openPipe() throws RemoteException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD
+                || SystemClock.uptimeMillis() < mReopenAt)
+            return false;
+        IStreamReceiver service = mWriter.getService();
+        if (service == null)
+            return false;
+        if (mPipeSupported == null)
+            mPipeSupported = receiverReadsPipes(mWriter.mContext);
+        if (!mPipeSupported)
+            return false;
+
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create pipe", e);
+            return false;
+        }
+
+        try {
+            service.openPipe(pipe[0]);
+        } finally {
+            // ohmage has its own copy of the read side now
+            closeQuietly(pipe[0]);
+        }
+
+        mFrames = new StreamFrameWriter(
+                new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]).getChannel());
+        return true;
+    }
+
+    /**
+     * Checks that the service which receives points declares that it reads pipes
+     */
+    static boolean receiverReadsPipes(Context context) {
+        ResolveInfo info = context.getPackageManager().resolveService(
+                new Intent(StreamWriter.ACTION_WRITE), PackageManager.GET_META_DATA);
+        if (info == null || info.serviceInfo == null || info.serviceInfo.metaData == null)
+            return false;
+        return info.serviceInfo.metaData.getInt(StreamContract.META_DATA_PIPE_VERSION, 0)
+                >= StreamContract.PIPE_VERSION;
+    }
+
+    /**
+     * Closes the pipe and sends any frames which were not written through the writer
+     *
+     * @throws RemoteException if the frames could not be sent
+     */
+    private void closePipe() throws RemoteException {
+        if (mFrames == null)
+            return;
+        StreamFrameWriter frames = mFrames;
+        mFrames = null;
+        try {
+            frames.close();
+            framesWritten();
+        } catch (IOException e) {
+            Log.e(TAG, "Pipe closed before all points were written", e);
+            // Frames which are replayed are counted when they are sent
+            mFramed.clear();
+        }
+
+        StreamFrameReader unwritten = frames.takeUnwritten();
+        if (unwritten == null)
+            return;
+        StreamFrameReader.Frame frame = new StreamFrameReader.Frame();
+        try {
+            while (unwritten.readFrame(frame)) {
+                mWriter.replay(frame.getStreamId(), frame.getStreamVersion(), frame.getMetadata(),
+                        frame.getData());
+            }
+        } catch (IOException e) {
+            // The frames are read from memory
+            Log.e(TAG, "Unable to read unwritten points", e);
+        }
+    }
+
+    /**
+     * Closes a broken pipe and holds off opening the next one
+     */
+    private void pipeFailed() throws RemoteException {
+        mReopenAt = SystemClock.uptimeMillis() + mReopenDelay;
+        mReopenDelay = Math.min(MAX_REOPEN_DELAY, mReopenDelay * 2);
+        closePipe();
+    }
+
+    private void countFramed(String streamId, int streamVersion) {
+        String key = StreamCountsCache.key(streamId, streamVersion);
+        int[] count = mFramed.get(key);
+        if (count == null) {
+            count = new int[1];
+            mFramed.put(key, count);
+        }
+        count[0]++;
+    }
+
+    /**
+     * Adds the framed points to the cached counts after they were written to the pipe
+     */
+    private void framesWritten() {
+        if (mFramed.isEmpty())
+            return;
+        StreamCountsCache.pointsWritten(mFramed);
+        mFramed.clear();
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        try {
+            fd.close();
+        } catch (IOException e) {
+            // Nothing else can be done
+        }
+    }
+
+    /**
+     * Writes any buffered points to the pipe
+     */
+    public synchronized void flush() {
+        if (mFrames == null)
+            return;
+        try {
+            mFrames.flush();
+            framesWritten();
+            mReopenDelay = REOPEN_DELAY;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to flush points to the pipe", e);
+            mFramed.clear();
+            try {
+                pipeFailed();
+            } catch (RemoteException re) {
+                Log.e(TAG, "Unable to send points which were not written to the pipe", re);
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes the pipe and closes the writer the transport was created with
+     */
+    @Override
+    public synchronized void close() {
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+        mFlushQueued = false;
+        try {
+            closePipe();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to send points which were not written to the pipe", e);
+        }
+        mOwner.close();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compiled Concordia type definition. {@link ConcordiaSchema} checks data by walking the tree
+ * and the encoders of {@link StreamSchema} use it to check and write each value, so a definition is
+ * only ever compiled one way.
+ */
+final class SchemaNode {
+
+    static final int TYPE_BOOLEAN = 0;
+    static final int TYPE_NUMBER = 1;
+    static final int TYPE_STRING = 2;
+    static final int TYPE_OBJECT = 3;
+    static final int TYPE_ARRAY = 4;
+
+    static final String[] TYPE_NAMES = {
+            "boolean", "number", "string", "object", "array"
+    };
+
+    final int type;
+
+    final String name;
+
+    /**
+     * The quoted name followed by a colon, ready to be appended to the JSON
+     */
+    final String jsonName;
+
+    boolean optional;
+
+    /**
+     * The fields of an object
+     */
+    SchemaNode[] fields;
+
+    /**
+     * The type of every element of an array with a {@code constType}
+     */
+    SchemaNode element;
+
+    /**
+     * The type of each element of an array with a {@code schema}
+     */
+    SchemaNode[] schema;
+
+    /**
+     * The number of elements of an array, or -1 if it can have any length
+     */
+    int length = -1;
+
+    SchemaNode(int type, String name, boolean optional) {
+        this.type = type;
+        this.name = name;
+        this.optional = optional;
+        if (name != null) {
+            StringBuilder jsonName = new StringBuilder();
+            StreamSchema.quote(jsonName, name);
+            this.jsonName = jsonName.append(':').toString();
+        } else {
+            this.jsonName = null;
+        }
+    }
+
+    /**
+     * Compiles a Concordia definition. The definition can either be the type definition itself or
+     * the stream creation JSON which holds the definition in its {@code definition} field.
+     *
+     * @throws JSONException if the definition is not valid
+     */
+    static SchemaNode compile(JSONObject definition) throws JSONException {
+        if (!definition.has("type") && definition.has("definition"))
+            definition = definition.getJSONObject("definition");
+        return compile(definition, null);
+    }
+
+    private static SchemaNode compile(JSONObject definition, String name) throws JSONException {
+        String typeName = definition.getString("type");
+        int type = -1;
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(typeName))
+                type = i;
+        }
+        if (type == -1)
+            throw new JSONException("Unknown type " + typeName);
+
+        SchemaNode node = new SchemaNode(type, name, definition.optBoolean("optional", false));
+        if (type == TYPE_OBJECT) {
+            JSONArray fields = definition.getJSONArray("fields");
+            node.fields = new SchemaNode[fields.length()];
+            for (int i = 0; i < fields.length(); i++) {
+                JSONObject field = fields.getJSONObject(i);
+                node.fields[i] = compile(field, field.getString("name"));
+            }
+        } else if (type == TYPE_ARRAY) {
+            node.length = definition.optInt("constLength", -1);
+            JSONObject constType = definition.optJSONObject("constType");
+            JSONArray schema = definition.optJSONArray("schema");
+            if (constType != null) {
+                node.element = compile(constType, null);
+            } else if (schema != null) {
+                node.schema = new SchemaNode[schema.length()];
+                for (int i = 0; i < schema.length(); i++) {
+                    node.schema[i] = compile(schema.getJSONObject(i), null);
+                }
+                node.length = node.schema.length;
+            } else {
+                throw new JSONException("Array needs a constType or schema");
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return the deepest nesting of objects and arrays at or below this node
+     */
+    int depth() {
+        int depth = 0;
+        if (fields != null) {
+            for (SchemaNode field : fields) {
+                depth = Math.max(depth, field.depth());
+            }
+        }
+        if (schema != null) {
+            for (SchemaNode node : schema) {
+                depth = Math.max(depth, node.depth());
+            }
+        }
+        if (element != null)
+            depth = element.depth();
+        return type == TYPE_OBJECT || type == TYPE_ARRAY ? depth + 1 : depth;
+    }
+
+    /**
+     * Checks the next value read from the parser
+     */
+    void validate(JsonPullParser parser) throws JSONException {
+        if (parser.peek() == JsonPullParser.NULL) {
+            if (!optional)
+                throw new JSONException("Required value is null");
+            parser.nextNull();
+            return;
+        }
+        switch (type) {
+            case TYPE_BOOLEAN:
+                parser.nextBoolean();
+                break;
+            case TYPE_NUMBER:
+                parser.nextNumber();
+                break;
+            case TYPE_STRING:
+                parser.nextString();
+                break;
+            case TYPE_OBJECT:
+                validateObject(parser);
+                break;
+            case TYPE_ARRAY:
+                validateArray(parser);
+                break;
+        }
+    }
+
+    private void validateObject(JsonPullParser parser) throws JSONException {
+        boolean[] seen = new boolean[fields.length];
+        parser.beginObject();
+        while (parser.hasNext()) {
+            int index = indexOf(parser.nextName());
+            if (index == -1)
+                throw new JSONException("Unknown field");
+            if (seen[index])
+                throw new JSONException("Duplicate field " + fields[index].name);
+            seen[index] = true;
+            fields[index].validate(parser);
+        }
+        parser.endObject();
+
+        for (int i = 0; i < fields.length; i++) {
+            if (!seen[i] && !fields[i].optional)
+                throw new JSONException("Missing field " + fields[i].name);
+        }
+    }
+
+    private void validateArray(JsonPullParser parser) throws JSONException {
+        parser.beginArray();
+        int count = 0;
+        while (parser.hasNext()) {
+            if (length != -1 && count >= length)
+                throw new JSONException("Array is longer than " + length);
+            if (schema != null)
+                schema[count].validate(parser);
+            else
+                element.validate(parser);
+            count++;
+        }
+        parser.endArray();
+        if (length != -1 && count != length)
+            throw new JSONException("Array is shorter than " + length);
+    }
+
+    private int indexOf(CharSequence name) {
+        for (int i = 0; i < fields.length; i++) {
+            if (contentEquals(fields[i].name, name))
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean contentEquals(String s, CharSequence cs) {
+        int length = s.length();
+        if (length != cs.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != cs.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
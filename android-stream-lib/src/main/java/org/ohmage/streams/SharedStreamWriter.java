@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.Context;
+import android.os.RemoteException;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A lightweight handle to a {@link StreamWriter} which shares a single service connection with
+ * every other handle in the process. Handles are obtained with {@link #obtain(Context)}, and the
+ * connection is only unbound once the last handle is closed. This saves each producer from binding
+ * to ohmage on its own and waiting for its own connection.
+ * <p/>
+ * Call {@link #prewarm(Context)} when the application starts to bind before the first point is
+ * written.
+ */
+public class SharedStreamWriter implements StreamPointWriter {
+
+    /**
+     * Notified when the shared connection connects or disconnects
+     */
+    public static interface ServiceConnectionChange {
+        public void onServiceConnected(SharedStreamWriter handle);
+
+        public void onServiceDisconnected(SharedStreamWriter handle);
+    }
+
+    /**
+     * The writer which owns the service connection. Guarded by the class lock, which is never
+     * taken while the lock of the writer is held.
+     */
+    private static StreamWriter sWriter;
+
+    /**
+     * Number of open handles plus one if the connection was prewarmed and no handle was obtained
+     * since
+     */
+    private static int sRefCount;
+
+    private static boolean sPrewarmed;
+
+    /**
+     * Open handles. Listeners are called with the lock of the writer held, so the handles are
+     * iterated without taking the class lock.
+     */
+    private static final CopyOnWriteArrayList<SharedStreamWriter> sHandles =
+            new CopyOnWriteArrayList<SharedStreamWriter>();
+
+    private static final StreamWriter.ServiceConnectionChange sListener =
+            new StreamWriter.ServiceConnectionChange() {
+                @Override
+                public void onServiceConnected(StreamWriter writer) {
+                    for (SharedStreamWriter handle : sHandles) {
+                        ServiceConnectionChange listener = handle.mListener;
+                        if (listener != null)
+                            listener.onServiceConnected(handle);
+                    }
+                }
+
+                @Override
+                public void onServiceDisconnected(StreamWriter writer) {
+                    for (SharedStreamWriter handle : sHandles) {
+                        ServiceConnectionChange listener = handle.mListener;
+                        if (listener != null)
+                            listener.onServiceDisconnected(handle);
+                    }
+                }
+            };
+
+    private final StreamWriter mWriter;
+
+    private volatile ServiceConnectionChange mListener;
+
+    private volatile boolean mClosed;
+
+    private SharedStreamWriter(StreamWriter writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * Returns a new handle to the shared connection. Each handle must be closed when it is no
+     * longer needed.
+     *
+     * @param context
+     * @return a new handle
+     */
+    public static synchronized SharedStreamWriter obtain(Context context) {
+        StreamWriter writer = acquire(context);
+        if (sPrewarmed) {
+            // The first handle takes over the reference held by prewarm()
+            sPrewarmed = false;
+            sRefCount--;
+        }
+        SharedStreamWriter handle = new SharedStreamWriter(writer);
+        sHandles.add(handle);
+        return handle;
+    }
+
+    /**
+     * Binds to ohmage ahead of time. The connection stays open at least until the first handle is
+     * obtained and closed.
+     *
+     * @param context
+     */
+    public static synchronized void prewarm(Context context) {
+        if (sPrewarmed)
+            return;
+        acquire(context);
+        sPrewarmed = true;
+    }
+
+    private static StreamWriter acquire(Context context) {
+        if (sWriter == null) {
+            sWriter = new StreamWriter(context.getApplicationContext());
+            sWriter.setServiceConnectionChangeListener(sListener);
+            sWriter.connect();
+        }
+        sRefCount++;
+        return sWriter;
+    }
+
+    private static synchronized void release(SharedStreamWriter handle) {
+        sHandles.remove(handle);
+        if (--sRefCount == 0) {
+            sWriter.close();
+            sWriter = null;
+        }
+    }
+
+    /**
+     * Returns the writer which owns the shared connection
+     */
+    StreamWriter getWriter() {
+        return mWriter;
+    }
+
+    /**
+     * The shared connection is connected when the first handle is obtained
+     *
+     * @return true if the shared connection is bound
+     */
+    public boolean connect() {
+        return !mClosed;
+    }
+
+    public void setServiceConnectionChangeListener(ServiceConnectionChange listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the filter on the shared connection, so it applies to the points of every handle
+     */
+    @Override
+    public void setDedupFilter(StreamDedupFilter filter) {
+        mWriter.setDedupFilter(filter);
+    }
+
+    /**
+     * Closes this handle. The shared connection is closed when the last handle is closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed)
+                return;
+            mClosed = true;
+        }
+        // Released without holding the handle lock so the class lock is never nested in it
+        release(this);
+    }
+
+    @Override
+    public void write(String streamId, int streamVersion, String metadata, String data)
+            throws RemoteException {
+        if (mClosed)
+            throw new IllegalStateException("Writer is closed");
+        mWriter.write(streamId, streamVersion, metadata, data);
+    }
+
+    @Override
+    public void write(StreamPointBuilder point) throws RemoteException {
+        if (mClosed)
+            throw new IllegalStateException("Writer is closed");
+        mWriter.write(point);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mWriter.isConnected();
+    }
+
+    @Override
+    public StreamFuture flush() {
+        return mWriter.flush();
+    }
+
+    @Override
+    public StreamFuture drain(long timeout) throws InterruptedException {
+        return mWriter.drain(timeout);
+    }
+}
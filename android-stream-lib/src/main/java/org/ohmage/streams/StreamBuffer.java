@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+/**
+ * A buffer of points which are waiting to be sent to ohmage. Buffers register with
+ * {@link StreamMemoryBudget} so it can ask them to give memory back.
+ */
+interface StreamBuffer {
+
+    /**
+     * Start sending the buffered points to ohmage now instead of waiting for the buffer to fill.
+     * This should not block.
+     */
+    void flushBuffer();
+
+    /**
+     * Remove the oldest point from the buffer and release its bytes from the budget.
+     *
+     * @return false if the buffer had no point to remove
+     */
+    boolean dropOldest();
+
+    /**
+     * Flush the buffered points and release any spare capacity held by the buffer.
+     */
+    void trimBuffer();
+}
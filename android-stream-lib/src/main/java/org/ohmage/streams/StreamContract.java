@@ -42,6 +42,18 @@ public final class StreamContract {
      */
     public static final String ACTION_VIEW = "org.ohmage.streams.ACTION_VIEW";
 
+    /**
+     * Meta-data name on the service which receives points. A receiver which reads the pipes handed
+     * to {@link IStreamReceiver#openPipe} sets it to the {@link #PIPE_VERSION} it understands.
+     * Writers only open pipes to receivers which declare it.
+     */
+    public static final String META_DATA_PIPE_VERSION = "org.ohmage.streams.PIPE_VERSION";
+
+    /**
+     * Version of the frame format written by {@link StreamFrameWriter}
+     */
+    public static final int PIPE_VERSION = 1;
+
     interface StreamColumns {
         /** Unique string identifying the stream */
         String STREAM_ID = "stream_id";
@@ -80,6 +92,9 @@ public final class StreamContract {
                 .build();
 
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.ohmage.streams.count";
+
+        /** Number of points in the stream */
+        public static final String COUNT = "count";
     }
 
     /**
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the counts from {@link StreamContract.StreamCounts} in memory so they can be read without
+ * querying ohmage each time.
+ * <p/>
+ * The counts are loaded once when the cache is started. After that a {@link ContentObserver}
+ * refreshes them when ohmage reports a change, at most once every {@link #REFRESH_DELAY} ms no
+ * matter how many points are written. Points written by this library in the same process are
+ * added to the cached counts right away, before ohmage reports the change. Points sent with a
+ * oneway call or through a pipe may not be saved yet when the counts are refreshed, so a local
+ * point is only dropped from the count once the count from ohmage has grown to include it. This
+ * way the counts never dip while ohmage catches up. Local points which are still missing from the
+ * count after {@link #LOCAL_REFRESHES} refreshes are dropped, since they were probably never
+ * saved.
+ */
+public class StreamCountsCache {
+
+    /**
+     * Minimum time in ms between refreshes
+     */
+    public static final long REFRESH_DELAY = 1000;
+
+    /**
+     * Number of refreshes local points are kept for while the count from ohmage doesn't include
+     * them
+     */
+    static final int LOCAL_REFRESHES = 5;
+
+    private static final String TAG = "StreamCountsCache";
+
+    /**
+     * Caches which are started, so writes can update their counts
+     */
+    private static volatile StreamCountsCache[] sCaches = new StreamCountsCache[0];
+
+    private static Handler sHandler;
+
+    public static interface OnCountsChangedListener {
+        /**
+         * Called on a background thread after the counts were refreshed from ohmage
+         */
+        public void onCountsChanged(StreamCountsCache cache);
+    }
+
+    /**
+     * The count of one stream version. The count from ohmage and the points written locally which
+     * it doesn't include yet are kept apart so a refresh can replace the first and reduce the
+     * second.
+     */
+    private static final class Count {
+        long loaded;
+
+        final AtomicLong local = new AtomicLong();
+
+        /**
+         * Number of refreshes in a row after which some local points were still missing
+         */
+        int age;
+
+        synchronized long get() {
+            return loaded + local.get();
+        }
+
+        /**
+         * Replaces the count from ohmage and drops the local points it now includes. All of the
+         * local points written before the count was read are dropped once some of them were
+         * missing for {@link #LOCAL_REFRESHES} refreshes in a row.
+         *
+         * @param count   the new count from ohmage
+         * @param written the local points which were written before the count was read
+         */
+        synchronized void update(long count, long written) {
+            long grown = Math.max(0, count - loaded);
+            loaded = count;
+            long dropped = Math.min(written, grown);
+            if (dropped == written) {
+                age = 0;
+            } else if (++age >= LOCAL_REFRESHES) {
+                dropped = written;
+                age = 0;
+            }
+            local.addAndGet(-dropped);
+        }
+    }
+
+    private final ContentResolver mResolver;
+
+    private final ConcurrentHashMap<String, Count> mCounts = new ConcurrentHashMap<String, Count>();
+
+    private final ContentObserver mObserver;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StreamCountsCache.this) {
+                mRefreshQueued = false;
+            }
+            refresh();
+        }
+    };
+
+    private boolean mRefreshQueued;
+
+    private boolean mStarted;
+
+    private volatile OnCountsChangedListener mListener;
+
+    public StreamCountsCache(ContentResolver resolver) {
+        mResolver = resolver;
+        mObserver = new ContentObserver(getHandler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                queueRefresh();
+            }
+        };
+    }
+
+    public void setOnCountsChangedListener(OnCountsChangedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Loads the counts in the background and starts watching for changes
+     */
+    public synchronized void start() {
+        if (mStarted)
+            return;
+        mStarted = true;
+        mResolver.registerContentObserver(StreamContract.Streams.CONTENT_URI, true, mObserver);
+        addCache(this);
+        getHandler().post(mRefresh);
+    }
+
+    /**
+     * Stops watching for changes. The last counts can still be read.
+     */
+    public synchronized void stop() {
+        if (!mStarted)
+            return;
+        mStarted = false;
+        mResolver.unregisterContentObserver(mObserver);
+        removeCache(this);
+        getHandler().removeCallbacks(mRefresh);
+        mRefreshQueued = false;
+    }
+
+    /**
+     * @return the number of points in the stream version, or 0 if it has none
+     */
+    public long getCount(String streamId, int streamVersion) {
+        Count count = mCounts.get(key(streamId, streamVersion));
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return a copy of the count for each stream version, keyed by {@code "version:streamId"}
+     */
+    public Map<String, Long> getCounts() {
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, Count> entry : mCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Reads the counts from ohmage now. Called on the background thread, so errors from ohmage
+     * are logged and the last counts are kept.
+     */
+    void refresh() {
+        // Points written after this might not be included in the counts which are read
+        HashMap<String, Long> written = new HashMap<String, Long>();
+        for (Map.Entry<String, Count> entry : mCounts.entrySet()) {
+            written.put(entry.getKey(), entry.getValue().local.get());
+        }
+
+        HashMap<String, Long> loaded = new HashMap<String, Long>();
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(StreamContract.StreamCounts.CONTENT_URI, new String[]{
+                    StreamContract.StreamCounts.STREAM_ID,
+                    StreamContract.StreamCounts.STREAM_VERSION, StreamContract.StreamCounts.COUNT
+            }, null, null, null);
+            if (cursor == null)
+                return;
+            while (cursor.moveToNext()) {
+                loaded.put(key(cursor.getString(0), cursor.getInt(1)), cursor.getLong(2));
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to read the counts from ohmage", e);
+            return;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        for (Map.Entry<String, Long> entry : loaded.entrySet()) {
+            Long local = written.get(entry.getKey());
+            getOrCreate(entry.getKey()).update(entry.getValue(), local != null ? local : 0);
+        }
+        for (Map.Entry<String, Count> entry : mCounts.entrySet()) {
+            if (!loaded.containsKey(entry.getKey())) {
+                Long local = written.get(entry.getKey());
+                entry.getValue().update(0, local != null ? local : 0);
+            }
+        }
+
+        OnCountsChangedListener listener = mListener;
+        if (listener != null)
+            listener.onCountsChanged(this);
+    }
+
+    private synchronized void queueRefresh() {
+        if (!mStarted || mRefreshQueued)
+            return;
+        mRefreshQueued = true;
+        getHandler().postDelayed(mRefresh, REFRESH_DELAY);
+    }
+
+    private Count getOrCreate(String key) {
+        Count count = mCounts.get(key);
+        if (count == null) {
+            Count created = new Count();
+            count = mCounts.putIfAbsent(key, created);
+            if (count == null)
+                count = created;
+        }
+        return count;
+    }
+
+    /**
+     * @return true if any cache is started, so writes should be counted
+     */
+    static boolean isActive() {
+        return sCaches.length != 0;
+    }
+
+    /**
+     * Adds points written by this process to every started cache
+     */
+    static void pointsWritten(String streamId, int streamVersion, int points) {
+        StreamCountsCache[] caches = sCaches;
+        if (caches.length == 0 || points <= 0 || streamId == null)
+            return;
+        String key = key(streamId, streamVersion);
+        for (StreamCountsCache cache : caches) {
+            cache.getOrCreate(key).local.addAndGet(points);
+        }
+    }
+
+    /**
+     * Adds the first rows of a batch which were inserted to every started cache
+     */
+    static void pointsWritten(ContentValues[] batch, int inserted) {
+        if (sCaches.length == 0)
+            return;
+        for (int i = 0; i < inserted && i < batch.length; i++) {
+            Integer version = batch[i].getAsInteger(StreamContract.Streams.STREAM_VERSION);
+            pointsWritten(batch[i].getAsString(StreamContract.Streams.STREAM_ID),
+                    version != null ? version : 0, 1);
+        }
+    }
+
+    /**
+     * Adds the number of points written for each key from {@link #key(String, int)} to every
+     * started cache
+     */
+    static void pointsWritten(Map<String, int[]> points) {
+        StreamCountsCache[] caches = sCaches;
+        for (Map.Entry<String, int[]> entry : points.entrySet()) {
+            for (StreamCountsCache cache : caches) {
+                cache.getOrCreate(entry.getKey()).local.addAndGet(entry.getValue()[0]);
+            }
+        }
+    }
+
+    static String key(String streamId, int streamVersion) {
+        return streamVersion + ":" + streamId;
+    }
+
+    private static synchronized void addCache(StreamCountsCache cache) {
+        StreamCountsCache[] caches = new StreamCountsCache[sCaches.length + 1];
+        System.arraycopy(sCaches, 0, caches, 0, sCaches.length);
+        caches[sCaches.length] = cache;
+        sCaches = caches;
+    }
+
+    private static synchronized void removeCache(StreamCountsCache cache) {
+        StreamCountsCache[] caches = sCaches;
+        for (int i = 0; i < caches.length; i++) {
+            if (caches[i] == cache) {
+                StreamCountsCache[] removed = new StreamCountsCache[caches.length - 1];
+                System.arraycopy(caches, 0, removed, 0, i);
+                System.arraycopy(caches, i + 1, removed, i, caches.length - i - 1);
+                sCaches = removed;
+                return;
+            }
+        }
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("StreamCountsCache");
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Remembers the ids of recently sent points so points which are sent again can be dropped. Ids
+ * are the ones set with {@link StreamPointBuilder#withId()}. Points without an id are never
+ * dropped.
+ * <p/>
+ * The ids are kept in two Bloom filters in one fixed array of longs, so memory use doesn't grow
+ * with the number of points. New ids are added to the current filter, and both filters are
+ * checked. After each window the older filter is cleared and becomes the current one, so an id is
+ * remembered for between one and two windows. Since an id is checked against both filters, each
+ * one is sized for half the false positive rate the filter was created with. A point which was
+ * never sent is wrongly taken for a duplicate with at most about that rate, as long as no more
+ * than the expected number of points are sent in a window.
+ * <p/>
+ * Set a filter on a {@link StreamWriter} with {@link StreamWriter#setDedupFilter} to drop points
+ * which are replayed after they were already sent. It checks points written to the writer, points
+ * it buffers until it connects, and points written to a {@link PipeStreamTransport} or a
+ * {@link StreamEncoder} over the writer. Points written with a
+ * {@link android.content.ContentResolver}, an {@link android.content.AsyncQueryHandler} or an
+ * {@link AsyncBulkInsertHandler} are not checked.
+ */
+public class StreamDedupFilter {
+
+    /**
+     * Default time in ms an id is remembered for at least
+     */
+    public static final long DEFAULT_WINDOW = 10 * 60 * 1000;
+
+    private final long[] mBits;
+
+    /**
+     * Number of bits in each of the two filters
+     */
+    private final int mBitsPerFilter;
+
+    private final int mHashes;
+
+    private final long mWindow;
+
+    /**
+     * Index of the filter new ids are added to
+     */
+    private int mCurrent;
+
+    private long mRotatedAt;
+
+    private long mDropped;
+
+    /**
+     * Hashes of ids which were checked but whose points are still being sent. A point with the
+     * same id is dropped until the first one was sent or failed.
+     */
+    private final HashSet<Long> mPending = new HashSet<Long>();
+
+    /**
+     * @param expectedPoints    the number of points expected to be sent in a window
+     * @param falsePositiveRate the chance of a new point being taken for a duplicate, such as 0.001
+     * @param windowMillis      the time in ms an id is remembered for at least
+     */
+    public StreamDedupFilter(int expectedPoints, double falsePositiveRate, long windowMillis) {
+        if (expectedPoints < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("Invalid filter size");
+        double ln2 = Math.log(2);
+        // Both filters are checked, so each one gets half the rate
+        long bits = (long) Math.ceil(
+                -expectedPoints * Math.log(falsePositiveRate / 2) / (ln2 * ln2));
+        // Round up to whole longs
+        int words = (int) Math.min(Integer.MAX_VALUE / 128, (bits + 63) / 64);
+        mBitsPerFilter = words * 64;
+        mHashes = Math.max(1, (int) Math.round((double) mBitsPerFilter / expectedPoints * ln2));
+        mBits = new long[words * 2];
+        mWindow = windowMillis;
+        mRotatedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the number of points which were dropped as duplicates
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Checks if a point with the id was sent recently and remembers the id if it wasn't
+     *
+     * @param id the point id
+     * @return true if the id was probably sent already
+     */
+    public synchronized boolean checkAndAdd(CharSequence id) {
+        long hash = hash(id);
+        if (contains(hash)) {
+            mDropped++;
+            return true;
+        }
+        add(hash);
+        return false;
+    }
+
+    /**
+     * Checks if a point with the id was sent recently without remembering it
+     */
+    public synchronized boolean mightContain(CharSequence id) {
+        return contains(hash(id));
+    }
+
+    /**
+     * Remembers that a point with the id was sent
+     */
+    public synchronized void put(CharSequence id) {
+        add(hash(id));
+    }
+
+    /**
+     * Checks the id in the metadata of a point and holds it as pending. The hash must be passed to
+     * {@link #putHash(long)} once the point was sent, or to {@link #releaseHash(long)} if it
+     * wasn't.
+     *
+     * @param metadata the metadata JSON of a point
+     * @return the hash of the id, 0 if the metadata has no id, or -1 if the point is a duplicate
+     */
+    synchronized long checkMetadata(CharSequence metadata) {
+        long hash = hashMetadataId(metadata);
+        if (hash == 0)
+            return 0;
+        if (mPending.contains(hash) || contains(hash)) {
+            mDropped++;
+            return -1;
+        }
+        mPending.add(hash);
+        return hash;
+    }
+
+    /**
+     * Remembers the id of a point which was sent
+     */
+    synchronized void putHash(long hash) {
+        if (hash != 0 && hash != -1) {
+            mPending.remove(hash);
+            add(hash);
+        }
+    }
+
+    /**
+     * Forgets the id of a point which could not be sent so it can be sent again
+     */
+    synchronized void releaseHash(long hash) {
+        mPending.remove(hash);
+    }
+
+    private boolean contains(long hash) {
+        rotate();
+        return contains(hash, 0) || contains(hash, 1);
+    }
+
+    private boolean contains(long hash, int filter) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long offset = (long) filter * mBitsPerFilter;
+        for (int i = 0; i < mHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBitsPerFilter;
+            long index = offset + bit;
+            if ((mBits[(int) (index >>> 6)] & (1L << index)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        rotate();
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long offset = (long) mCurrent * mBitsPerFilter;
+        for (int i = 0; i < mHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBitsPerFilter;
+            long index = offset + bit;
+            mBits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    /**
+     * Clears the older filter once a window has passed
+     */
+    private void rotate() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - mRotatedAt;
+        if (elapsed < mWindow)
+            return;
+        int words = mBitsPerFilter / 64;
+        if (elapsed >= 2 * mWindow) {
+            // Both filters are too old
+            Arrays.fill(mBits, 0);
+        } else {
+            mCurrent = 1 - mCurrent;
+            Arrays.fill(mBits, mCurrent * words, (mCurrent + 1) * words, 0);
+        }
+        mRotatedAt = now;
+    }
+
+    /**
+     * Hashes the id into two 32 bit hashes packed in a long. Never returns 0 or -1.
+     */
+    static long hash(CharSequence id) {
+        // 64 bit FNV-1a followed by a mix so both halves are well distributed
+        long h = 0xcbf29ce484222325L;
+        int length = id.length();
+        for (int i = 0; i < length; i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 || h == -1 ? 1 : h;
+    }
+
+    /**
+     * @return the hash of the id in the metadata, or 0 if there is no id
+     */
+    private static long hashMetadataId(CharSequence metadata) {
+        if (metadata == null)
+            return 0;
+        JsonPullParser parser = JsonPullParser.forThread();
+        parser.reset(metadata);
+        try {
+            parser.beginObject();
+            while (parser.hasNext()) {
+                CharSequence name = parser.nextName();
+                if (name.length() == 2 && name.charAt(0) == 'i' && name.charAt(1) == 'd'
+                        && parser.peek() == JsonPullParser.STRING)
+                    return hash(parser.nextString());
+                parser.skipValue();
+            }
+        } catch (JSONException e) {
+            // Points with invalid metadata are rejected elsewhere
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the expensive part of writing a point off of the producing thread. The producer only copies
+ * the fields of the point in {@link #submit(StreamPointBuilder)}. Building the metadata, formatting
+ * deferred timestamps, validating the JSON and handing the point to the {@link StreamTransport} all
+ * happen on a pool of encoding threads.
+ * <p/>
+ * Each stream is always encoded by the same thread, so points of a stream reach the transport in
+ * the order they were submitted. Different streams are encoded in parallel. Each thread takes up to
+ * {@link #BATCH_SIZE} points from its queue at a time. Since points are handed to the transport from
+ * several threads at once, the transport must be thread safe. All of the transports in this library
+ * are. Points are validated by the transport, and a point it rejects is dropped without stopping
+ * the thread.
+ */
+public class StreamEncoder {
+
+    private static final String TAG = "StreamEncoder";
+
+    /**
+     * Default number of points each encoding thread can hold before submissions are rejected
+     */
+    public static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * Maximum number of points an encoding thread takes from its queue at once
+     */
+    public static final int BATCH_SIZE = 64;
+
+    /**
+     * Maximum time in ms {@link #close()} waits for the encoding threads to finish
+     */
+    public static final long CLOSE_TIMEOUT = 10 * 1000;
+
+    /**
+     * Put on the queues to stop the encoding threads
+     */
+    private static final StreamPointBuilder STOP = new StreamPointBuilder();
+
+    private final StreamTransport mTransport;
+
+    private final Lane[] mLanes;
+
+    private final AtomicLong mRejected = new AtomicLong();
+
+    private final AtomicLong mInvalid = new AtomicLong();
+
+    private volatile boolean mClosed;
+
+    private class Lane extends Thread {
+        final ArrayBlockingQueue<StreamPointBuilder> queue;
+
+        Lane(int index, int capacity) {
+            super("StreamEncoder-" + index);
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<StreamPointBuilder>(capacity);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            ArrayList<StreamPointBuilder> batch = new ArrayList<StreamPointBuilder>(BATCH_SIZE);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    for (StreamPointBuilder point : batch) {
+                        if (point == STOP)
+                            return;
+                        encode(point);
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }
+    }
+
+    /**
+     * Create an encoder with one thread per core
+     *
+     * @param transport the thread safe transport encoded points are written to
+     */
+    public StreamEncoder(StreamTransport transport) {
+        this(transport, Runtime.getRuntime().availableProcessors(), QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param transport the thread safe transport encoded points are written to
+     * @param threads   the number of encoding threads
+     * @param capacity  the number of points each thread can hold before submissions are rejected
+     */
+    public StreamEncoder(StreamTransport transport, int threads, int capacity) {
+        mTransport = transport;
+        mLanes = new Lane[Math.max(1, threads)];
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new Lane(i, capacity);
+            mLanes[i].start();
+        }
+    }
+
+    /**
+     * Queues a copy of the point to be encoded and written. The builder can be reused as soon as
+     * this returns. Use {@link StreamPointBuilder#deferTimestamps(boolean)} so the timestamp is
+     * also formatted by the encoder.
+     *
+     * @param point the point to write
+     * @return false if the queue for the stream was full and the point was dropped
+     */
+    public boolean submit(StreamPointBuilder point) {
+        if (mClosed)
+            throw new IllegalStateException("Encoder is closed");
+        String streamId = point.getStreamId();
+        int hash = streamId != null ? streamId.hashCode() : 0;
+        Lane lane = mLanes[(hash & Integer.MAX_VALUE) % mLanes.length];
+        if (!lane.queue.offer(point.copy())) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void encode(StreamPointBuilder point) {
+        try {
+            mTransport.write(point);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to write point", e);
+        } catch (RuntimeException e) {
+            mInvalid.incrementAndGet();
+            Log.e(TAG, "Dropping invalid point: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of points which were dropped because their queue was full, or because
+     * they were still queued when {@link #close()} timed out
+     */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * @return the number of points which were dropped because the transport rejected them as
+     * not valid
+     */
+    public long getInvalidCount() {
+        return mInvalid.get();
+    }
+
+    /**
+     * Encodes the points which are already queued and stops the encoding threads. Blocks until all
+     * queued points have been handed to the transport, or for at most {@link #CLOSE_TIMEOUT} ms.
+     * Points which are still queued after the timeout are dropped. The transport is not closed.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        mClosed = true;
+        long deadline = SystemClock.uptimeMillis() + CLOSE_TIMEOUT;
+        for (Lane lane : mLanes) {
+            long wait = Math.max(0, deadline - SystemClock.uptimeMillis());
+            if (!lane.queue.offer(STOP, wait, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, lane.getName() + " did not finish in time, dropping "
+                        + lane.queue.size() + " points");
+                mRejected.addAndGet(lane.queue.size());
+                lane.interrupt();
+            }
+        }
+        for (Lane lane : mLanes) {
+            lane.join(Math.max(1, deadline - SystemClock.uptimeMillis()));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the frames written by a {@link StreamFrameWriter}. The receiving side of a
+ * {@link PipeStreamTransport} can use this class to read points from the pipe handed to
+ * {@link IStreamReceiver#openPipe}.
+ * <p/>
+ * Frames come from other apps, so every length is checked against the frame it is in and frames
+ * longer than {@link #MAX_FRAME_LENGTH} are refused. A malformed frame causes an
+ * {@link IOException}.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class StreamFrameReader {
+
+    /**
+     * Longest frame in bytes which is read. Longer frames are taken as a corrupt channel instead of
+     * allocating a buffer for them.
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private final ReadableByteChannel mChannel;
+
+    private ByteBuffer mBuffer;
+
+    /**
+     * The last stream id which was read. Points for the same stream usually come together so
+     * the string can be reused for the next frame instead of decoding it again.
+     */
+    private String mLastStreamId;
+
+    private byte[] mLastStreamIdBytes = new byte[0];
+
+    /**
+     * A point read from the channel. The same instance is filled by every call to
+     * {@link #readFrame(Frame)}.
+     */
+    public static class Frame {
+        String streamId;
+
+        int streamVersion;
+
+        String metadata;
+
+        String data;
+
+        public String getStreamId() {
+            return streamId;
+        }
+
+        public int getStreamVersion() {
+            return streamVersion;
+        }
+
+        public String getMetadata() {
+            return metadata;
+        }
+
+        public String getData() {
+            return data;
+        }
+    }
+
+    public StreamFrameReader(ReadableByteChannel channel) {
+        this(channel, StreamFrameWriter.BUFFER_SIZE);
+    }
+
+    public StreamFrameReader(ReadableByteChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(bufferSize);
+        mBuffer.flip();
+    }
+
+    /**
+     * Reads the next frame from the channel, blocking until it is available
+     *
+     * @param frame the frame to fill
+     * @return false if the channel was closed before another frame started
+     * @throws IOException if the channel could not be read, was closed in the middle of a frame or
+     *                     the frame is malformed
+     */
+    public boolean readFrame(Frame frame) throws IOException {
+        if (!fill(4, false))
+            return false;
+        int length = mBuffer.getInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length " + length);
+        fill(length, true);
+
+        // Fields are read from a view of the frame so they can't run into the next one
+        ByteBuffer body = mBuffer.slice();
+        body.limit(length);
+        mBuffer.position(mBuffer.position() + length);
+        try {
+            frame.streamId = readStreamId(body);
+            frame.streamVersion = body.getInt();
+            frame.metadata = readString(body);
+            frame.data = readString(body);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Frame is shorter than its contents");
+        }
+        if (body.hasRemaining())
+            throw new IOException("Frame is longer than its contents");
+        return true;
+    }
+
+    private static String readString(ByteBuffer body) throws IOException {
+        int length = body.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > body.remaining())
+            throw new IOException("Invalid string length " + length);
+        String s = new String(body.array(), body.arrayOffset() + body.position(), length,
+                StreamFrameWriter.UTF_8.name());
+        body.position(body.position() + length);
+        return s;
+    }
+
+    private String readStreamId(ByteBuffer body) throws IOException {
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining())
+            throw new IOException("Invalid stream id length " + length);
+
+        byte[] array = body.array();
+        int offset = body.arrayOffset() + body.position();
+        boolean same = length == mLastStreamIdBytes.length;
+        for (int i = 0; same && i < length; i++) {
+            same = array[offset + i] == mLastStreamIdBytes[i];
+        }
+        if (!same) {
+            mLastStreamIdBytes = new byte[length];
+            System.arraycopy(array, offset, mLastStreamIdBytes, 0, length);
+            mLastStreamId = new String(mLastStreamIdBytes, StreamFrameWriter.UTF_8.name());
+        }
+        body.position(body.position() + length);
+        return mLastStreamId;
+    }
+
+    /**
+     * Makes sure at least {@code count} bytes are available in the buffer
+     *
+     * @param count    the number of bytes needed
+     * @param required true if the channel must not end before the bytes are read
+     * @return false if the channel ended before any bytes were read and they were not required
+     */
+    private boolean fill(int count, boolean required) throws IOException {
+        if (mBuffer.remaining() >= count)
+            return true;
+
+        if (mBuffer.capacity() < count) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(count, mBuffer.capacity() * 2));
+            larger.put(mBuffer);
+            mBuffer = larger;
+        } else {
+            mBuffer.compact();
+        }
+
+        // The buffer is now in write mode
+        while (mBuffer.position() < count) {
+            if (mChannel.read(mBuffer) == -1) {
+                boolean empty = mBuffer.position() == 0;
+                mBuffer.flip();
+                if (!required && empty)
+                    return false;
+                throw new EOFException("Channel closed in the middle of a frame");
+            }
+        }
+        mBuffer.flip();
+        return true;
+    }
+
+    /**
+     * Closes the channel
+     */
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
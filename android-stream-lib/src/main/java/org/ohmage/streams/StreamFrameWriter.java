@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes stream points to a channel as length-prefixed frames. Frames are collected in a buffer and
+ * only written to the channel when the buffer fills up or {@link #flush()} is called.
+ * <p/>
+ * Each frame has the following layout. All integers are big endian and all strings are UTF-8.
+ * <ul>
+ * <li>int: number of bytes in the rest of the frame</li>
+ * <li>int: length of the stream id followed by the stream id</li>
+ * <li>int: stream version</li>
+ * <li>int: length of the metadata followed by the metadata, or -1 if there is no metadata</li>
+ * <li>int: length of the data followed by the data</li>
+ * </ul>
+ * This class is not thread safe.
+ */
+public class StreamFrameWriter {
+
+    /**
+     * Default size of the buffer frames are collected in
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final WritableByteChannel mChannel;
+
+    private final CharsetEncoder mEncoder;
+
+    private ByteBuffer mBuffer;
+
+    private int mFrames;
+
+    /**
+     * Frames which were not completely written when a flush failed
+     */
+    private byte[] mUnwritten;
+
+    public StreamFrameWriter(WritableByteChannel channel) {
+        this(channel, BUFFER_SIZE);
+    }
+
+    public StreamFrameWriter(WritableByteChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocate(bufferSize);
+        mEncoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Adds a frame to the buffer. If the buffer is full, the frames already in the buffer are
+     * written to the channel first. A frame which is larger than the buffer grows the buffer.
+     *
+     * @throws IOException if the channel could not be written to
+     */
+    public void writeFrame(CharSequence streamId, int streamVersion, CharSequence metadata,
+                           CharSequence data) throws IOException {
+        writeFrame(null, streamId, streamVersion, metadata, data);
+    }
+
+    /**
+     * Same as {@link #writeFrame(CharSequence, int, CharSequence, CharSequence)} but uses the stream
+     * id bytes the handle already encoded
+     *
+     * @throws IOException if the channel could not be written to
+     */
+    public void writeFrame(StreamHandle handle, CharSequence metadata, CharSequence data)
+            throws IOException {
+        writeFrame(handle, null, 0, metadata, data);
+    }
+
+    /**
+     * Encodes a frame with the stream of the handle, or with the stream id and version if there
+     * is no handle
+     */
+    private void writeFrame(StreamHandle handle, CharSequence streamId, int streamVersion,
+                            CharSequence metadata, CharSequence data) throws IOException {
+        while (true) {
+            int start = mBuffer.position();
+            boolean encoded = handle != null ? encodeFrame(handle, metadata, data)
+                    : encodeFrame(streamId, streamVersion, metadata, data);
+            if (encoded) {
+                mBuffer.putInt(start, mBuffer.position() - start - 4);
+                mFrames++;
+                return;
+            }
+
+            // The frame didn't fit so remove what was written of it
+            mBuffer.position(start);
+            if (start > 0) {
+                flush();
+            } else {
+                mBuffer = ByteBuffer.allocate(mBuffer.capacity() * 2);
+            }
+        }
+    }
+
+    private boolean encodeFrame(CharSequence streamId, int streamVersion, CharSequence metadata,
+                                CharSequence data) {
+        return putFrameLength() && putString(streamId)
+                && putBody(streamVersion, metadata, data);
+    }
+
+    private boolean encodeFrame(StreamHandle handle, CharSequence metadata, CharSequence data) {
+        byte[] streamId = handle.getStreamIdBytes();
+        if (!putFrameLength() || mBuffer.remaining() < 4 + streamId.length)
+            return false;
+        mBuffer.putInt(streamId.length).put(streamId);
+        return putBody(handle.getStreamVersion(), metadata, data);
+    }
+
+    /**
+     * Leaves room for the length of the frame, which is filled in once the frame is encoded
+     */
+    private boolean putFrameLength() {
+        if (mBuffer.remaining() < 4)
+            return false;
+        mBuffer.putInt(0);
+        return true;
+    }
+
+    /**
+     * Writes the part of the frame which follows the stream id
+     */
+    private boolean putBody(int streamVersion, CharSequence metadata, CharSequence data) {
+        if (mBuffer.remaining() < 4)
+            return false;
+        mBuffer.putInt(streamVersion);
+        return putString(metadata) && putString(data);
+    }
+
+    /**
+     * Writes the length of the string followed by its bytes
+     *
+     * @return false if the string didn't fit in the buffer
+     */
+    private boolean putString(CharSequence s) {
+        if (mBuffer.remaining() < 4)
+            return false;
+        int start = mBuffer.position();
+        if (s == null) {
+            mBuffer.putInt(-1);
+            return true;
+        }
+        if (s instanceof Utf8CharSequence) {
+            Utf8CharSequence utf8 = (Utf8CharSequence) s;
+            if (utf8.isValidUtf8()) {
+                // Already encoded so the bytes are copied as they are
+                ByteBuffer bytes = utf8.getBytes();
+                if (mBuffer.remaining() < 4 + bytes.remaining())
+                    return false;
+                mBuffer.putInt(bytes.remaining()).put(bytes);
+                return true;
+            }
+            // Malformed bytes are replaced when decoded, the same as on every other write path
+            s = utf8.toString();
+        }
+        mBuffer.putInt(0);
+        mEncoder.reset();
+        CharBuffer in = CharBuffer.wrap(s);
+        CoderResult result = mEncoder.encode(in, mBuffer, true);
+        if (result.isOverflow())
+            return false;
+        result = mEncoder.flush(mBuffer);
+        if (result.isOverflow())
+            return false;
+        mBuffer.putInt(start, mBuffer.position() - start - 4);
+        return true;
+    }
+
+    /**
+     * @return the number of frames which are waiting in the buffer
+     */
+    public int getBufferedFrames() {
+        return mFrames;
+    }
+
+    /**
+     * Writes all buffered frames to the channel. If the channel fails, the frames which were not
+     * completely written are kept for {@link #takeUnwritten()}.
+     *
+     * @throws IOException if the channel could not be written to
+     */
+    public void flush() throws IOException {
+        mBuffer.flip();
+        try {
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+        } catch (IOException e) {
+            keepUnwritten(mBuffer.position());
+            throw e;
+        } finally {
+            mBuffer.clear();
+            mFrames = 0;
+        }
+    }
+
+    /**
+     * Copies the frames from the first one which was not completely written to the end of the
+     * buffer
+     *
+     * @param written the number of bytes which were written to the channel
+     */
+    private void keepUnwritten(int written) {
+        int start = 0;
+        while (start + 4 <= written && start + 4 + mBuffer.getInt(start) <= written) {
+            start += 4 + mBuffer.getInt(start);
+        }
+        int length = mBuffer.limit() - start;
+        if (length <= 0)
+            return;
+        byte[] frames = new byte[length];
+        System.arraycopy(mBuffer.array(), mBuffer.arrayOffset() + start, frames, 0, length);
+        if (mUnwritten != null) {
+            byte[] all = new byte[mUnwritten.length + length];
+            System.arraycopy(mUnwritten, 0, all, 0, mUnwritten.length);
+            System.arraycopy(frames, 0, all, mUnwritten.length, length);
+            frames = all;
+        }
+        mUnwritten = frames;
+    }
+
+    /**
+     * Returns the frames which were buffered but never completely written because the channel
+     * failed, so they can be sent another way
+     *
+     * @return a reader over the frames, or null if every frame was written
+     */
+    public StreamFrameReader takeUnwritten() {
+        if (mUnwritten == null)
+            return null;
+        StreamFrameReader reader = new StreamFrameReader(
+                Channels.newChannel(new ByteArrayInputStream(mUnwritten)));
+        mUnwritten = null;
+        return reader;
+    }
+
+    /**
+     * Flushes any buffered frames and closes the channel
+     *
+     * @throws IOException if the channel could not be written to
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A handle to an asynchronous write which completes once the points have been handed to ohmage.
+ * The result is the number of points which were written.
+ * <p/>
+ * A single future is shared by all of the points which are written in the same batch so callers
+ * can keep a handle for every point without an allocation per point.
+ */
+public class StreamFuture implements Future<Integer> {
+
+    private boolean mDone;
+
+    private int mCount;
+
+    /**
+     * Number of points which were added to this future and haven't finished
+     */
+    private int mPending;
+
+    /**
+     * True once no more points will be added to this future
+     */
+    private boolean mSealed;
+
+    /**
+     * Run once the future completes, or null if none were added
+     */
+    private ArrayList<Runnable> mListeners;
+
+    /**
+     * Returns a future which is already complete
+     *
+     * @param count the number of points written
+     */
+    static StreamFuture completed(int count) {
+        StreamFuture future = new StreamFuture();
+        future.complete(count);
+        return future;
+    }
+
+    /**
+     * Adds a point to this future. The future won't complete until the point finishes.
+     */
+    synchronized void add() {
+        mPending++;
+    }
+
+    /**
+     * Marks that no more points will be added. The future completes once all of the added points
+     * finish.
+     */
+    synchronized void seal() {
+        mSealed = true;
+        if (mPending == 0)
+            complete(mCount);
+    }
+
+    /**
+     * Marks some of the added points as finished
+     *
+     * @param points  the number of points which finished
+     * @param written how many of those points were written
+     */
+    synchronized void finish(int points, int written) {
+        mPending -= points;
+        mCount += written;
+        if (mSealed && mPending <= 0)
+            complete(mCount);
+    }
+
+    /**
+     * Marks the write as finished and wakes up any waiting threads
+     *
+     * @param count the number of points written
+     */
+    synchronized void complete(int count) {
+        if (mDone)
+            return;
+        mCount = count;
+        mDone = true;
+        notifyAll();
+        if (mListeners != null) {
+            for (Runnable listener : mListeners) {
+                listener.run();
+            }
+            mListeners = null;
+        }
+    }
+
+    /**
+     * Runs the listener on the thread which completes the future, or right away if it is done. The
+     * listener must return quickly, such as by posting to a {@link android.os.Handler}.
+     */
+    synchronized void whenDone(Runnable listener) {
+        if (mDone) {
+            listener.run();
+            return;
+        }
+        if (mListeners == null)
+            mListeners = new ArrayList<Runnable>(1);
+        mListeners.add(listener);
+    }
+
+    /**
+     * Waits for the write to finish
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return true if the write finished before the timeout
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of points written, or 0 if the write hasn't finished
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Writes can't be cancelled once they are queued
+     *
+     * @return false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized Integer get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return mCount;
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!await(timeout, unit))
+            throw new TimeoutException();
+        return getCount();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentValues;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The identity of a stream and version, obtained once and then used for every point of the
+ * stream. Pass it to {@link StreamPointBuilder#StreamPointBuilder(StreamHandle)} or
+ * {@link StreamPointBuilder#setStream(StreamHandle)}.
+ * <p/>
+ * A handle keeps the UTF-8 bytes of the stream id for pipe frames and a {@link ContentValues}
+ * template with the stream id and version. It also caches the {@link ConcordiaSchema} and
+ * {@link StreamRateLimiter} limit and {@link StreamPolicy} of the stream, which are only looked up
+ * again after they change. Points written through a handle skip all of this per point string work
+ * and map lookups. Handles also count the points written through them.
+ */
+public final class StreamHandle {
+
+    private static final ConcurrentHashMap<String, StreamHandle> sHandles =
+            new ConcurrentHashMap<String, StreamHandle>();
+
+    private final String mStreamId;
+
+    private final int mStreamVersion;
+
+    private final byte[] mStreamIdBytes;
+
+    private final ContentValues mTemplate;
+
+    private final AtomicLong mPoints = new AtomicLong();
+
+    /**
+     * Points offered to {@link #sample()}, used to keep one of every sample interval points
+     */
+    private final AtomicLong mSampled = new AtomicLong();
+
+    /**
+     * A cached registry lookup and the generation of the registry it was made in
+     */
+    private static final class Cached<T> {
+        final int generation;
+
+        final T value;
+
+        Cached(int generation, T value) {
+            this.generation = generation;
+            this.value = value;
+        }
+    }
+
+    private volatile Cached<ConcordiaSchema> mSchema;
+
+    private volatile Cached<StreamRateLimiter.Bucket> mBucket;
+
+    private volatile Cached<StreamPolicy> mPolicy;
+
+    private StreamHandle(String streamId, int streamVersion) {
+        mStreamId = streamId;
+        mStreamVersion = streamVersion;
+        mStreamIdBytes = streamId.getBytes(StreamFrameWriter.UTF_8);
+        mTemplate = new ContentValues(3);
+        mTemplate.put(StreamContract.Streams.STREAM_ID, streamId);
+        mTemplate.put(StreamContract.Streams.STREAM_VERSION, streamVersion);
+    }
+
+    /**
+     * Returns the handle for a stream and version. The same handle is returned every time for the
+     * same stream so it should be kept instead of obtained for each point.
+     *
+     * @param streamId
+     * @param streamVersion
+     * @return the handle
+     */
+    public static StreamHandle obtain(String streamId, int streamVersion) {
+        if (streamId == null)
+            throw new IllegalArgumentException("Must specify a stream id");
+        String key = streamVersion + ":" + streamId;
+        StreamHandle handle = sHandles.get(key);
+        if (handle == null) {
+            StreamHandle created = new StreamHandle(streamId, streamVersion);
+            handle = sHandles.putIfAbsent(key, created);
+            if (handle == null)
+                handle = created;
+        }
+        return handle;
+    }
+
+    public String getStreamId() {
+        return mStreamId;
+    }
+
+    public int getStreamVersion() {
+        return mStreamVersion;
+    }
+
+    /**
+     * @return the number of points written through this handle which were not dropped by the
+     * sample interval, rate limit or memory budget
+     */
+    public long getPointCount() {
+        return mPoints.get();
+    }
+
+    /**
+     * @return the number of points of this stream dropped by the {@link StreamRateLimiter}
+     */
+    public long getRejectedCount() {
+        return StreamRateLimiter.getRejectedCount(mStreamId, mStreamVersion);
+    }
+
+    /**
+     * @return the policy loaded for this stream in {@link StreamPolicies}
+     */
+    public StreamPolicy getPolicy() {
+        int generation = StreamPolicies.generation();
+        Cached<StreamPolicy> cached = mPolicy;
+        if (cached == null || cached.generation != generation) {
+            cached = new Cached<StreamPolicy>(generation,
+                    StreamPolicies.forStream(mStreamId, mStreamVersion));
+            mPolicy = cached;
+        }
+        return cached.value;
+    }
+
+    /**
+     * @return the UTF-8 bytes of the stream id. Must not be modified.
+     */
+    byte[] getStreamIdBytes() {
+        return mStreamIdBytes;
+    }
+
+    /**
+     * @return new content values which already hold the stream id and version
+     */
+    ContentValues newContentValues() {
+        return new ContentValues(mTemplate);
+    }
+
+    /**
+     * Counts a point once it was admitted by the rate limit and memory budget on its write path
+     */
+    void countPoint() {
+        mPoints.incrementAndGet();
+    }
+
+    /**
+     * @return the schema registered for this stream, or null
+     */
+    ConcordiaSchema getSchema() {
+        int generation = ConcordiaSchema.generation();
+        Cached<ConcordiaSchema> cached = mSchema;
+        if (cached == null || cached.generation != generation) {
+            cached = new Cached<ConcordiaSchema>(generation,
+                    ConcordiaSchema.forStream(mStreamId, mStreamVersion));
+            mSchema = cached;
+        }
+        return cached.value;
+    }
+
+    /**
+     * Keeps one of every {@link StreamPolicy#getSampleInterval()} points of this stream
+     *
+     * @return true if the point should be written
+     */
+    boolean sample() {
+        int interval = getPolicy().getSampleInterval();
+        return interval <= 1 || mSampled.getAndIncrement() % interval == 0;
+    }
+
+    /**
+     * Checks a point of this stream against its sample interval and rate limit
+     *
+     * @see StreamRateLimiter#admit(String, int, boolean)
+     */
+    long admit(boolean canDefer) {
+        if (!sample())
+            return StreamRateLimiter.REJECT;
+        int generation = StreamRateLimiter.generation();
+        Cached<StreamRateLimiter.Bucket> cached = mBucket;
+        if (cached == null || cached.generation != generation) {
+            cached = new Cached<StreamRateLimiter.Bucket>(generation,
+                    StreamRateLimiter.bucketFor(mStreamId, mStreamVersion));
+            mBucket = cached;
+        }
+        return StreamRateLimiter.admit(cached.value, canDefer);
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Imports historical points for a stream from a file. The file is read one line at a time and
+ * points are written to ohmage in batches with {@link ContentResolver#bulkInsert}, so only one
+ * batch is held in memory no matter how large the file is. Each batch is inserted on the calling
+ * thread before the next one is read, so the import can never get ahead of ohmage. This means the
+ * import must not be run on the main thread.
+ * <p/>
+ * Two formats are supported:
+ * <ul>
+ * <li>{@link #FORMAT_NDJSON}: one JSON object per line. If the object has a {@code data} field,
+ * it is used as the data for the point and the optional {@code metadata} object is used as the
+ * metadata. Otherwise the whole object is used as the data.</li>
+ * <li>{@link #FORMAT_CSV}: the first line is a header with the column names. The {@code id} and
+ * {@code timestamp} columns become the metadata of the point and every other column becomes a
+ * field of the data. Values written exactly as a JSON number would be are written as numbers, so
+ * values like {@code 0123} keep their leading zeros. Quoted values may not span multiple
+ * lines.</li>
+ * </ul>
+ * Files are read as UTF-8 and a byte order mark at the start of the file is skipped.
+ * After each batch is saved, the {@link ImportListener} is given the byte offset of the next
+ * unread line. If the import is interrupted, it can be resumed by passing that offset to
+ * {@link #importFile(File, long)}. If ohmage saves only part of a batch, the import stops with an
+ * {@link IOException} and the checkpoint is left after the last line which was saved.
+ */
+public class StreamImporter {
+
+    private static final String TAG = "StreamImporter";
+
+    public static final int FORMAT_NDJSON = 0;
+
+    public static final int FORMAT_CSV = 1;
+
+    /**
+     * A number as JSON would write it, without leading zeros or a leading plus or dot
+     */
+    private static final Pattern NUMBER =
+            Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+    public static interface ImportListener {
+        /**
+         * Called after each batch has been saved to ohmage
+         *
+         * @param checkpoint      the byte offset to resume the import from
+         * @param points          the number of points imported so far
+         * @param pointsPerSecond the average import rate so far
+         */
+        public void onBatchImported(long checkpoint, long points, float pointsPerSecond);
+    }
+
+    private final ContentResolver mResolver;
+
+    private final StreamPointBuilder mBuilder;
+
+    private final int mFormat;
+
+    private int mBatchSize = AsyncBulkInsertHandler.MAX_BUFFER;
+
+    private ImportListener mListener;
+
+    private volatile boolean mCancelled;
+
+    private long mCheckpoint;
+
+    private long mPoints;
+
+    private long mSkipped;
+
+    /**
+     * Column names read from the header of a csv file
+     */
+    private String[] mColumns;
+
+    private final ArrayList<String> mFields = new ArrayList<String>();
+
+    /**
+     * The byte offset after the line of each point in the batch
+     */
+    private long[] mLineEnds;
+
+    public StreamImporter(ContentResolver resolver, String streamId, int streamVersion,
+                          int format) {
+        mResolver = resolver;
+        mBuilder = new StreamPointBuilder(streamId, streamVersion);
+        mFormat = format;
+    }
+
+    /**
+     * Set the number of points which are sent to ohmage in each batch. The default is
+     * {@link AsyncBulkInsertHandler#MAX_BUFFER}.
+     *
+     * @param batchSize
+     * @return this
+     */
+    public StreamImporter setBatchSize(int batchSize) {
+        mBatchSize = batchSize;
+        return this;
+    }
+
+    public StreamImporter setImportListener(ImportListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Stops the import after the current batch is saved. Can be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return the byte offset after the last line which was saved to ohmage
+     */
+    public long getCheckpoint() {
+        return mCheckpoint;
+    }
+
+    /**
+     * @return the number of points saved to ohmage
+     */
+    public long getImportedCount() {
+        return mPoints;
+    }
+
+    /**
+     * @return the number of lines which could not be parsed and were skipped
+     */
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    /**
+     * Imports the points in the file starting at the given offset. Blocks until the whole file has
+     * been imported or the import is cancelled.
+     *
+     * @param file   the file to import
+     * @param offset the checkpoint to resume from, or 0 to start at the beginning of the file
+     * @return the checkpoint after the last saved line
+     * @throws IOException if the file could not be read or ohmage didn't save a batch
+     */
+    public long importFile(File file, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            if (mFormat == FORMAT_CSV && offset > 0) {
+                // The header is needed to make sense of the rows after the checkpoint
+                FileInputStream header = new FileInputStream(file);
+                try {
+                    LineReader reader = new LineReader(header);
+                    reader.skipByteOrderMark();
+                    readHeader(reader);
+                } finally {
+                    header.close();
+                }
+            }
+            in.getChannel().position(offset);
+            return importStream(in, offset);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Imports the points from a stream. Blocks until the end of the stream is reached or the
+     * import is cancelled.
+     *
+     * @param in     the stream to import. It is not closed.
+     * @param offset the byte offset in the original file at which the stream starts
+     * @return the checkpoint after the last saved line
+     * @throws IOException if the stream could not be read or ohmage didn't save a batch
+     */
+    public long importStream(InputStream in, long offset) throws IOException {
+        mCancelled = false;
+        mCheckpoint = offset;
+        mPoints = 0;
+        mSkipped = 0;
+
+        if (!StreamContract.checkContentProviderExists(mResolver))
+            return mCheckpoint;
+
+        LineReader input = new LineReader(in);
+        if (offset == 0)
+            mCheckpoint += input.skipByteOrderMark();
+        if (mFormat == FORMAT_CSV && offset == 0)
+            mCheckpoint += readHeader(input);
+
+        ArrayList<ContentValues> batch = new ArrayList<ContentValues>(mBatchSize);
+        mLineEnds = new long[mBatchSize];
+        long start = SystemClock.elapsedRealtime();
+        long position = mCheckpoint;
+
+        int length;
+        while (!mCancelled && (length = input.readLine()) != -1) {
+            position += length;
+            String line = input.decodeLine();
+            if (TextUtils.isEmpty(line))
+                continue;
+
+            if (parseLine(line)) {
+                mLineEnds[batch.size()] = position;
+                batch.add(mBuilder.toContentValues());
+            } else {
+                mSkipped++;
+            }
+
+            if (batch.size() >= mLineEnds.length) {
+                insertBatch(batch, position, start);
+            }
+        }
+        insertBatch(batch, position, start);
+        return mCheckpoint;
+    }
+
+    /**
+     * Saves the batch and moves the checkpoint past it
+     *
+     * @throws IOException if ohmage saved only part of the batch. The checkpoint is left after
+     *                     the last line which was saved.
+     */
+    private void insertBatch(ArrayList<ContentValues> batch, long position, long start)
+            throws IOException {
+        if (!batch.isEmpty()) {
+            ContentValues[] values = batch.toArray(new ContentValues[batch.size()]);
+            int inserted = mResolver.bulkInsert(StreamContract.Streams.CONTENT_URI, values);
+            StreamCountsCache.pointsWritten(values, inserted);
+            mPoints += inserted;
+            if (inserted < values.length) {
+                // Providers save the first rows of a batch, so the import resumes at the rest
+                if (inserted > 0)
+                    mCheckpoint = mLineEnds[inserted - 1];
+                batch.clear();
+                throw new IOException("Only " + inserted + " of " + values.length
+                        + " points were saved");
+            }
+            batch.clear();
+        }
+        mCheckpoint = position;
+
+        if (mListener != null) {
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+            mListener.onBatchImported(mCheckpoint, mPoints, mPoints * 1000f / elapsed);
+        }
+    }
+
+    /**
+     * Reads the column names from the first line of a csv file
+     *
+     * @return the number of bytes read
+     */
+    private int readHeader(LineReader in) throws IOException {
+        int length = in.readLine();
+        if (length == -1)
+            throw new IOException("Missing csv header");
+        splitCsv(in.decodeLine());
+        mColumns = mFields.toArray(new String[mFields.size()]);
+        return length;
+    }
+
+    /**
+     * Fills the builder with the point on this line
+     *
+     * @return false if the line could not be parsed
+     */
+    private boolean parseLine(String line) {
+        mBuilder.clearMetadata();
+        try {
+            if (mFormat == FORMAT_CSV)
+                parseCsv(line);
+            else
+                parseJson(line);
+            mBuilder.encodeMetadata();
+            return true;
+        } catch (JSONException e) {
+            Log.w(TAG, "Skipping invalid line: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void parseJson(String line) throws JSONException {
+        JSONObject object = new JSONObject(line);
+        Object data = object.opt("data");
+        if (data instanceof JSONObject) {
+            mBuilder.setData(data.toString());
+            JSONObject metadata = object.optJSONObject("metadata");
+            if (metadata != null)
+                mBuilder.setMetadata(metadata.toString());
+        } else {
+            mBuilder.setData(line);
+        }
+    }
+
+    private void parseCsv(String line) throws JSONException {
+        splitCsv(line);
+        if (mColumns == null || mFields.size() != mColumns.length)
+            throw new JSONException("Expected " + (mColumns == null ? 0 : mColumns.length)
+                    + " columns but found " + mFields.size());
+
+        JSONObject data = new JSONObject();
+        for (int i = 0; i < mColumns.length; i++) {
+            String value = mFields.get(i);
+            if ("id".equals(mColumns[i])) {
+                mBuilder.withId(value);
+            } else if ("timestamp".equals(mColumns[i])) {
+                mBuilder.withTime(value);
+            } else if (!TextUtils.isEmpty(value)) {
+                data.put(mColumns[i], parseValue(value));
+            }
+        }
+        mBuilder.setData(data.toString());
+    }
+
+    /**
+     * @return the value as a number if it is written the way JSON writes numbers, otherwise the
+     * value itself
+     */
+    static Object parseValue(String value) {
+        if (!NUMBER.matcher(value).matches())
+            return value;
+        try {
+            if (value.indexOf('.') == -1 && value.indexOf('e') == -1 && value.indexOf('E') == -1)
+                return Long.parseLong(value);
+            double number = Double.parseDouble(value);
+            if (!Double.isInfinite(number))
+                return number;
+        } catch (NumberFormatException e) {
+            // Too large for a long so the digits are kept as they are
+        }
+        return value;
+    }
+
+    /**
+     * Splits a line of a csv file into {@link #mFields}
+     */
+    private void splitCsv(String line) {
+        mFields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                mFields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        mFields.add(field.toString());
+    }
+
+    /**
+     * Reads lines from a stream through a buffer
+     */
+    static final class LineReader {
+
+        private final InputStream mIn;
+
+        private final byte[] mBuffer = new byte[8192];
+
+        private int mPosition;
+
+        private int mLimit;
+
+        /**
+         * Reusable buffer for the bytes of the current line
+         */
+        private byte[] mLine = new byte[1024];
+
+        private int mLineLength;
+
+        LineReader(InputStream in) {
+            mIn = in;
+        }
+
+        /**
+         * Skips a UTF-8 byte order mark at the current position
+         *
+         * @return the number of bytes skipped
+         */
+        int skipByteOrderMark() throws IOException {
+            while (mLimit - mPosition < 3) {
+                if (!fill())
+                    break;
+            }
+            if (mLimit - mPosition >= 3 && mBuffer[mPosition] == (byte) 0xEF
+                    && mBuffer[mPosition + 1] == (byte) 0xBB
+                    && mBuffer[mPosition + 2] == (byte) 0xBF) {
+                mPosition += 3;
+                return 3;
+            }
+            return 0;
+        }
+
+        /**
+         * Reads the next line
+         *
+         * @return the number of bytes consumed including the line terminator, or -1 at the end of
+         * the stream
+         */
+        int readLine() throws IOException {
+            mLineLength = 0;
+            int consumed = 0;
+            while (true) {
+                if (mPosition == mLimit && !fill())
+                    break;
+                int end = mPosition;
+                while (end < mLimit && mBuffer[end] != '\n') {
+                    end++;
+                }
+                append(mPosition, end - mPosition);
+                consumed += end - mPosition;
+                if (end < mLimit) {
+                    // Found the end of the line
+                    mPosition = end + 1;
+                    consumed++;
+                    break;
+                }
+                mPosition = end;
+            }
+            if (consumed == 0)
+                return -1;
+            if (mLineLength > 0 && mLine[mLineLength - 1] == '\r')
+                mLineLength--;
+            return consumed;
+        }
+
+        String decodeLine() throws IOException {
+            return new String(mLine, 0, mLineLength, "UTF-8");
+        }
+
+        private void append(int offset, int count) {
+            if (mLineLength + count > mLine.length) {
+                byte[] larger = new byte[Math.max(mLine.length * 2, mLineLength + count)];
+                System.arraycopy(mLine, 0, larger, 0, mLineLength);
+                mLine = larger;
+            }
+            System.arraycopy(mBuffer, offset, mLine, mLineLength, count);
+            mLineLength += count;
+        }
+
+        /**
+         * Reads more bytes after the unread ones in the buffer
+         *
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            if (mPosition > 0) {
+                System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+                mLimit -= mPosition;
+                mPosition = 0;
+            }
+            int read = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read == -1)
+                return false;
+            mLimit += read;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentValues;
+import android.os.Looper;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the total number of bytes of points buffered by all {@link AsyncBulkInsertHandler}s and
+ * {@link StreamWriter}s in the process.
+ * <p/>
+ * Every point which is buffered is counted against the budget until it is sent to ohmage. Once
+ * usage passes {@link #FLUSH_THRESHOLD} of the limit, every buffer is asked to flush early. If a
+ * point would still push usage over the limit, the overflow policy decides what happens:
+ * <ul>
+ * <li>{@link #POLICY_DROP_NEWEST}: the new point is dropped</li>
+ * <li>{@link #POLICY_DROP_OLDEST}: the oldest points in the buffer the new point is added to are
+ * dropped to make room for it</li>
+ * <li>{@link #POLICY_BLOCK}: the writing thread waits for buffers to be flushed. If there is still
+ * no room after the block timeout the new point is dropped. The main thread never blocks, and
+ * neither does {@link StreamWriter} since its buffer is only emptied on the main thread. They drop
+ * the new point instead.</li>
+ * </ul>
+ * Bytes are counted against the account of the buffer which holds them. If a buffer is garbage
+ * collected before its points were sent, the bytes left in its account are given back.
+ */
+public final class StreamMemoryBudget {
+
+    private static final String TAG = "StreamMemoryBudget";
+
+    /**
+     * Default limit in bytes for all buffered points
+     */
+    public static final long DEFAULT_LIMIT = 4 * 1024 * 1024;
+
+    /**
+     * Fraction of the limit at which buffers are asked to flush early
+     */
+    public static final float FLUSH_THRESHOLD = 0.75f;
+
+    public static final int POLICY_DROP_NEWEST = 0;
+
+    public static final int POLICY_DROP_OLDEST = 1;
+
+    public static final int POLICY_BLOCK = 2;
+
+    /**
+     * Approximate bytes used by a buffered point in addition to its strings
+     */
+    private static final int POINT_OVERHEAD = 128;
+
+    private static final AtomicLong sUsed = new AtomicLong();
+
+    private static final AtomicLong sDropped = new AtomicLong();
+
+    private static final Object sLock = new Object();
+
+    private static final HashSet<Account> sAccounts = new HashSet<Account>();
+
+    private static final ReferenceQueue<StreamBuffer> sCollected =
+            new ReferenceQueue<StreamBuffer>();
+
+    private static volatile long sLimit = DEFAULT_LIMIT;
+
+    private static volatile int sPolicy = POLICY_DROP_NEWEST;
+
+    private static volatile long sBlockTimeout = 0;
+
+    private static volatile boolean sFlushRequested;
+
+    private static volatile float sBatchScale = 1f;
+
+    /**
+     * The bytes reserved by one buffer. Accounts are held by the budget and refer to their buffer
+     * weakly, so they outlive a buffer which is garbage collected.
+     */
+    static final class Account extends WeakReference<StreamBuffer> {
+        private final AtomicLong mReserved = new AtomicLong();
+
+        Account(StreamBuffer buffer) {
+            super(buffer, sCollected);
+        }
+    }
+
+    private StreamMemoryBudget() {
+    }
+
+    /**
+     * Set the maximum number of bytes which may be buffered in the process
+     *
+     * @param limit the limit in bytes
+     */
+    public static void setLimit(long limit) {
+        sLimit = limit;
+    }
+
+    public static long getLimit() {
+        return sLimit;
+    }
+
+    /**
+     * Set what happens when a point doesn't fit in the budget
+     *
+     * @param policy       one of {@link #POLICY_DROP_NEWEST}, {@link #POLICY_DROP_OLDEST} or
+     *                     {@link #POLICY_BLOCK}
+     * @param blockTimeout the maximum time in ms to wait for room with {@link #POLICY_BLOCK}
+     */
+    public static void setOverflowPolicy(int policy, long blockTimeout) {
+        sPolicy = policy;
+        sBlockTimeout = blockTimeout;
+    }
+
+    /**
+     * @return the number of bytes currently buffered in the process
+     */
+    public static long getUsage() {
+        return sUsed.get();
+    }
+
+    /**
+     * @return the number of points which were dropped because they didn't fit in the budget
+     */
+    public static long getDroppedCount() {
+        return sDropped.get();
+    }
+
+    /**
+     * Scale the batch limits of all buffers. Used by {@link StreamMemoryTrimmer} to keep batches
+     * small while the system is low on memory.
+     *
+     * @param scale a value between 0 and 1 which batch limits are multiplied by
+     */
+    static void setBatchScale(float scale) {
+        sBatchScale = Math.max(0f, Math.min(1f, scale));
+    }
+
+    /**
+     * @return the value batch limits should currently be multiplied by
+     */
+    public static float getBatchScale() {
+        return sBatchScale;
+    }
+
+    /**
+     * Applies the current batch scale to a batch limit
+     */
+    static int scaleBatch(int limit) {
+        float scale = sBatchScale;
+        if (scale >= 1f)
+            return limit;
+        return Math.max(1, (int) (limit * scale));
+    }
+
+    /**
+     * Registers a buffer so the budget can ask it to flush
+     *
+     * @return the account to reserve and release the bytes of the buffer with. It must be kept by
+     * the owner of the buffer.
+     */
+    static Account register(StreamBuffer buffer) {
+        reclaim();
+        Account account = new Account(buffer);
+        synchronized (sAccounts) {
+            sAccounts.add(account);
+        }
+        return account;
+    }
+
+    /**
+     * Gives back the bytes of buffers which were garbage collected
+     */
+    private static void reclaim() {
+        Account account;
+        while ((account = (Account) sCollected.poll()) != null) {
+            synchronized (sAccounts) {
+                sAccounts.remove(account);
+            }
+            release(account.mReserved.getAndSet(0), account);
+        }
+    }
+
+    private static ArrayList<StreamBuffer> getBuffers() {
+        ArrayList<StreamBuffer> buffers;
+        synchronized (sAccounts) {
+            buffers = new ArrayList<StreamBuffer>(sAccounts.size());
+            for (Account account : sAccounts) {
+                StreamBuffer buffer = account.get();
+                if (buffer != null)
+                    buffers.add(buffer);
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Asks every registered buffer to flush
+     */
+    static void flushAll() {
+        for (StreamBuffer buffer : getBuffers()) {
+            buffer.flushBuffer();
+        }
+    }
+
+    /**
+     * Asks every registered buffer to flush and release spare capacity
+     */
+    static void trimAll() {
+        for (StreamBuffer buffer : getBuffers()) {
+            buffer.trimBuffer();
+        }
+    }
+
+    /**
+     * Counts a point against the budget before it is buffered
+     *
+     * @param bytes    the size of the point from {@link #sizeOf}
+     * @param account  the account of the buffer the point will be added to
+     * @param canBlock false if the calling thread must not wait for room
+     * @return false if the point should be dropped
+     */
+    static boolean reserve(long bytes, Account account, boolean canBlock) {
+        reclaim();
+        StreamBuffer buffer = account.get();
+        canBlock = canBlock && Looper.myLooper() != Looper.getMainLooper();
+        long deadline = 0;
+        while (true) {
+            long used = sUsed.get();
+            long limit = sLimit;
+            if (used + bytes <= limit) {
+                if (!sUsed.compareAndSet(used, used + bytes))
+                    continue;
+                account.mReserved.addAndGet(bytes);
+                if (used + bytes > limit * FLUSH_THRESHOLD && !sFlushRequested) {
+                    sFlushRequested = true;
+                    flushAll();
+                }
+                return true;
+            }
+
+            flushAll();
+            int policy = sPolicy;
+            if (policy == POLICY_DROP_OLDEST && buffer != null && buffer.dropOldest())
+                continue;
+
+            if (policy == POLICY_BLOCK && canBlock) {
+                long now = System.currentTimeMillis();
+                if (deadline == 0)
+                    deadline = now + sBlockTimeout;
+                if (now < deadline) {
+                    synchronized (sLock) {
+                        try {
+                            sLock.wait(deadline - now);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            deadline = now;
+                        }
+                    }
+                    continue;
+                }
+            }
+
+            if (sDropped.incrementAndGet() % 1000 == 1)
+                Log.w(TAG, "Memory budget of " + limit + " bytes exceeded, dropping points");
+            return false;
+        }
+    }
+
+    /**
+     * Changes the bytes counted for points which are already buffered without checking the limit.
+     * Used when the real size of a point is only known after it was reserved.
+     */
+    static void adjust(long delta, Account account) {
+        if (delta < 0) {
+            release(-delta, account);
+        } else {
+            account.mReserved.addAndGet(delta);
+            sUsed.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Releases bytes from the budget after points have been sent or dropped
+     */
+    static void release(long bytes, Account account) {
+        if (bytes == 0)
+            return;
+        account.mReserved.addAndGet(-bytes);
+        long used = sUsed.addAndGet(-bytes);
+        if (used < sLimit * FLUSH_THRESHOLD)
+            sFlushRequested = false;
+        synchronized (sLock) {
+            sLock.notifyAll();
+        }
+    }
+
+    /**
+     * The number of bytes a point uses while it is buffered
+     */
+    static long sizeOf(String streamId, String metadata, CharSequence data) {
+        long size = POINT_OVERHEAD;
+        if (streamId != null)
+            size += streamId.length() * 2;
+        if (metadata != null)
+            size += metadata.length() * 2;
+        if (data instanceof Utf8CharSequence)
+            // Bytes are sized without decoding them since there are never more chars than bytes
+            size += ((Utf8CharSequence) data).byteLength() * 2;
+        else if (data != null)
+            size += data.length() * 2;
+        return size;
+    }
+
+    static long sizeOf(ContentValues values) {
+        return sizeOf(values.getAsString(StreamContract.Streams.STREAM_ID),
+                values.getAsString(StreamContract.Streams.STREAM_METADATA),
+                values.getAsString(StreamContract.Streams.STREAM_DATA));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Shrinks the buffers of all {@link AsyncBulkInsertHandler}s and {@link StreamWriter}s when the
+ * system is low on memory so buffered points are sent to ohmage instead of being lost if the
+ * process is killed.
+ * <p/>
+ * When a trim level is received, every buffer is flushed and its spare capacity is released. For
+ * the more severe levels, batch limits are also lowered so points don't pile up again. Batch limits
+ * are restored once {@link #RECOVERY_DELAY} ms pass without another trim callback.
+ * <p/>
+ * Register the trimmer once, usually from {@link android.app.Application#onCreate()}. It requires
+ * API level 14 and should not be created on older devices. Tests can call
+ * {@link #onTrimMemory(int)} directly and check {@link StreamMemoryBudget#getBatchScale()}.
+ */
+public class StreamMemoryTrimmer implements ComponentCallbacks2 {
+
+    /**
+     * Time in ms without a trim callback after which batch limits are restored
+     */
+    public static final long RECOVERY_DELAY = 60 * 1000;
+
+    private final Handler mHandler;
+
+    private final Runnable mRecover = new Runnable() {
+        @Override
+        public void run() {
+            recover();
+        }
+    };
+
+    public StreamMemoryTrimmer() {
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Start listening for trim callbacks
+     *
+     * @param context
+     */
+    public void register(Context context) {
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+
+    /**
+     * Stop listening for trim callbacks and restore batch limits
+     *
+     * @param context
+     */
+    public void unregister(Context context) {
+        context.getApplicationContext().unregisterComponentCallbacks(this);
+        mHandler.removeCallbacks(mRecover);
+        recover();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        float scale = getBatchScale(level);
+        if (scale < StreamMemoryBudget.getBatchScale())
+            StreamMemoryBudget.setBatchScale(scale);
+        StreamMemoryBudget.trimAll();
+
+        if (StreamMemoryBudget.getBatchScale() < 1f) {
+            mHandler.removeCallbacks(mRecover);
+            mHandler.postDelayed(mRecover, RECOVERY_DELAY);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Not interested
+    }
+
+    /**
+     * Restores the batch limits. Called once the memory pressure has eased.
+     */
+    protected void recover() {
+        StreamMemoryBudget.setBatchScale(1f);
+    }
+
+    /**
+     * Returns how much batch limits should be scaled for the trim level
+     *
+     * @param level the level passed to {@link #onTrimMemory(int)}
+     * @return a value between 0 and 1 which batch limits are multiplied by
+     */
+    protected float getBatchScale(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL)
+            return 0.25f;
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW)
+            return 0.5f;
+        return 1f;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.provider.BaseColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads the points of a stream a page at a time so even months of points can be scrolled
+ * through with a constant amount of memory.
+ * <p/>
+ * Pages are read with keyset paging. Each page selects the rows whose key is past the last key of
+ * the page before, sorted by the key and limited to the page size, so no page needs an offset
+ * and every cursor stays small. The projection and selection are passed to the provider so
+ * only the requested columns and rows are read. While one page is being read, the next page is
+ * queried in the background.
+ * <p/>
+ * Rows are read into a reusable {@link Row} which is only valid until the next call to
+ * {@link #next(Row)}:
+ * <pre>
+ *     StreamPager pager = StreamPager.forStream(resolver, "streamId", 1,
+ *         new String[]{Streams.STREAM_METADATA, Streams.STREAM_DATA});
+ *     StreamPager.Row row = new StreamPager.Row();
+ *     while (pager.next(row)) {
+ *         show(row.getData());
+ *     }
+ *     pager.close();
+ * </pre>
+ * The key column is {@link BaseColumns#_ID} for {@link StreamContract.Streams}. Since ids are
+ * assigned as points are inserted, they are also in the order points were received. The provider
+ * must accept a {@code LIMIT} at the end of the sort order.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class StreamPager {
+
+    /**
+     * Default number of rows in a page
+     */
+    public static final int PAGE_SIZE = 200;
+
+    private static Handler sHandler;
+
+    private final ContentResolver mResolver;
+
+    private final Uri mUri;
+
+    private final String mKeyColumn;
+
+    private final String[] mProjection;
+
+    /**
+     * The projection, or no columns if all columns are read
+     */
+    private final String[] mColumns;
+
+    private final String mSelection;
+
+    private final String[] mSelectionArgs;
+
+    private final int mPageSize;
+
+    private final boolean mDescending;
+
+    private Cursor mPage;
+
+    private Prefetch mNext;
+
+    private boolean mStarted;
+
+    /**
+     * A query for the next page which runs on the background thread
+     */
+    private final class Prefetch implements Runnable {
+        private final String mAfterKey;
+
+        private Cursor mCursor;
+
+        private boolean mDone;
+
+        private boolean mCancelled;
+
+        private RuntimeException mError;
+
+        Prefetch(String afterKey) {
+            mAfterKey = afterKey;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mCancelled)
+                    return;
+            }
+            Cursor cursor = null;
+            RuntimeException error = null;
+            try {
+                cursor = query(mAfterKey);
+                // The query only runs once the cursor fills its window, so run it here
+                if (cursor != null)
+                    cursor.getCount();
+            } catch (RuntimeException e) {
+                if (cursor != null) {
+                    cursor.close();
+                    cursor = null;
+                }
+                error = e;
+            }
+            synchronized (this) {
+                if (mCancelled) {
+                    if (cursor != null)
+                        cursor.close();
+                    return;
+                }
+                mCursor = cursor;
+                mError = error;
+                mDone = true;
+                notifyAll();
+            }
+        }
+
+        synchronized Cursor get() throws InterruptedException {
+            while (!mDone) {
+                wait();
+            }
+            if (mError != null)
+                throw mError;
+            return mCursor;
+        }
+
+        synchronized void cancel() {
+            // Removed so a prefetch which hasn't started doesn't run its query at all
+            getHandler().removeCallbacks(this);
+            mCancelled = true;
+            if (mCursor != null) {
+                mCursor.close();
+                mCursor = null;
+            }
+        }
+    }
+
+    /**
+     * A row of a page. The getters read straight from the cursor of the page, so a row is only
+     * valid until the pager moves to the next row.
+     */
+    public static final class Row {
+        private Cursor mCursor;
+
+        private String[] mColumns;
+
+        private int[] mIndexes;
+
+        private int mId = -1;
+
+        private int mStreamId = -1;
+
+        private int mStreamVersion = -1;
+
+        private int mMetadata = -1;
+
+        private int mData = -1;
+
+        /**
+         * Looks up the column indexes when the row is moved to a new page
+         */
+        void setCursor(Cursor cursor, String[] columns) {
+            if (cursor == mCursor)
+                return;
+            mCursor = cursor;
+            if (columns != mColumns) {
+                mColumns = columns;
+                mIndexes = new int[columns.length];
+            }
+            for (int i = 0; i < columns.length; i++) {
+                mIndexes[i] = cursor.getColumnIndex(columns[i]);
+            }
+            mId = cursor.getColumnIndex(BaseColumns._ID);
+            mStreamId = cursor.getColumnIndex(StreamContract.Streams.STREAM_ID);
+            mStreamVersion = cursor.getColumnIndex(StreamContract.Streams.STREAM_VERSION);
+            mMetadata = cursor.getColumnIndex(StreamContract.Streams.STREAM_METADATA);
+            mData = cursor.getColumnIndex(StreamContract.Streams.STREAM_DATA);
+        }
+
+        public long getId() {
+            return mId != -1 ? mCursor.getLong(mId) : -1;
+        }
+
+        public String getStreamId() {
+            return mStreamId != -1 ? mCursor.getString(mStreamId) : null;
+        }
+
+        public int getStreamVersion() {
+            return mStreamVersion != -1 ? mCursor.getInt(mStreamVersion) : 0;
+        }
+
+        public String getMetadata() {
+            return mMetadata != -1 ? mCursor.getString(mMetadata) : null;
+        }
+
+        public String getData() {
+            return mData != -1 ? mCursor.getString(mData) : null;
+        }
+
+        /**
+         * @param column index of the column in the projection of the pager
+         */
+        public String getString(int column) {
+            int index = mIndexes[column];
+            return index != -1 ? mCursor.getString(index) : null;
+        }
+
+        /**
+         * @param column index of the column in the projection of the pager
+         */
+        public long getLong(int column) {
+            int index = mIndexes[column];
+            return index != -1 ? mCursor.getLong(index) : 0;
+        }
+    }
+
+    /**
+     * Creates a pager over the points of one version of a stream
+     *
+     * @param resolver
+     * @param streamId
+     * @param streamVersion
+     * @param projection    the columns to read, or null for all columns
+     * @return the pager
+     */
+    public static StreamPager forStream(ContentResolver resolver, String streamId,
+                                        int streamVersion, String[] projection) {
+        return new StreamPager(resolver, StreamContract.Streams.CONTENT_URI, BaseColumns._ID,
+                projection,
+                StreamContract.Streams.STREAM_ID + "=? AND "
+                        + StreamContract.Streams.STREAM_VERSION + "=?",
+                new String[]{streamId, String.valueOf(streamVersion)}, PAGE_SIZE, false);
+    }
+
+    /**
+     * Creates a pager over any uri of the provider
+     *
+     * @param resolver
+     * @param uri           the uri to query
+     * @param keyColumn     a unique column to page by
+     * @param projection    the columns to read, or null for all columns. The key column is added
+     *                      if it is missing.
+     * @param selection     a filter for the rows, or null
+     * @param selectionArgs arguments for the selection
+     * @param pageSize      the number of rows in each page
+     * @param descending    true to read the rows with the largest keys first
+     */
+    public StreamPager(ContentResolver resolver, Uri uri, String keyColumn, String[] projection,
+                       String selection, String[] selectionArgs, int pageSize,
+                       boolean descending) {
+        mResolver = resolver;
+        mUri = uri;
+        mKeyColumn = keyColumn;
+        if (projection != null && !Arrays.asList(projection).contains(keyColumn)) {
+            String[] withKey = new String[projection.length + 1];
+            System.arraycopy(projection, 0, withKey, 0, projection.length);
+            withKey[projection.length] = keyColumn;
+            projection = withKey;
+        }
+        mProjection = projection;
+        mColumns = projection != null ? projection : new String[0];
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mPageSize = pageSize;
+        mDescending = descending;
+    }
+
+    /**
+     * Moves the row to the next row, reading the next page if needed
+     *
+     * @param row the row to read into
+     * @return false if there are no more rows
+     * @throws InterruptedException if the thread was interrupted waiting for the next page
+     */
+    public boolean next(Row row) throws InterruptedException {
+        if (!mStarted) {
+            mStarted = true;
+            openPage(query(null));
+        }
+        while (mPage != null) {
+            if (mPage.moveToNext()) {
+                row.setCursor(mPage, mColumns);
+                return true;
+            }
+            mPage.close();
+            mPage = null;
+            if (mNext != null) {
+                Prefetch next = mNext;
+                mNext = null;
+                openPage(next.get());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the current page and stops reading the next page
+     */
+    public void close() {
+        if (mPage != null) {
+            mPage.close();
+            mPage = null;
+        }
+        if (mNext != null) {
+            mNext.cancel();
+            mNext = null;
+        }
+        mStarted = true;
+    }
+
+    /**
+     * Starts reading from a page and starts the query for the page after it
+     */
+    private void openPage(Cursor page) {
+        mPage = page;
+        if (page == null)
+            return;
+
+        // A short page is the last one
+        if (page.getCount() >= mPageSize && page.moveToLast()) {
+            String lastKey = page.getString(page.getColumnIndexOrThrow(mKeyColumn));
+            page.moveToPosition(-1);
+            mNext = new Prefetch(lastKey);
+            getHandler().post(mNext);
+        }
+    }
+
+    private Cursor query(String afterKey) {
+        String selection = mSelection;
+        String[] selectionArgs = mSelectionArgs;
+        if (afterKey != null) {
+            String keyset = mKeyColumn + (mDescending ? "<?" : ">?");
+            selection = selection != null ? "(" + selection + ") AND " + keyset : keyset;
+            ArrayList<String> args = new ArrayList<String>();
+            if (selectionArgs != null)
+                args.addAll(Arrays.asList(selectionArgs));
+            args.add(afterKey);
+            selectionArgs = args.toArray(new String[args.size()]);
+        }
+        String sortOrder = mKeyColumn + (mDescending ? " DESC" : " ASC") + " LIMIT " + mPageSize;
+        return mResolver.query(mUri, mProjection, selection, selectionArgs, sortOrder);
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("StreamPager");
+            thread.start();
+            Looper looper = thread.getLooper();
+            sHandler = new Handler(looper);
+        }
+        return sHandler;
+    }
+}
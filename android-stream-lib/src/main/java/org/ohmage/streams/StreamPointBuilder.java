@@ -20,7 +20,9 @@ import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.location.Location;
+import android.os.Build;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.joda.time.DateTime;
@@ -30,6 +32,8 @@ import org.joda.time.format.ISODateTimeFormat;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Date;
 import java.util.TimeZone;
 import java.util.UUID;
@@ -44,6 +48,30 @@ public class StreamPointBuilder {
 
     private static DateTimeFormatter dateTimeFormatter;
 
+    /**
+     * Time after which the wall clock is read again for deferred timestamps, so corrections to the
+     * clock are picked up
+     */
+    private static final long ANCHOR_INTERVAL_NANOS = 60 * 1000 * 1000 * 1000L;
+
+    /**
+     * A wall clock reading and the {@link #elapsedRealtimeNanos()} it was taken at. Deferred
+     * timestamps are computed relative to an anchor so they stay monotonic between readings.
+     */
+    private static final class Anchor {
+        final long millis;
+
+        final long nanos;
+
+        Anchor(long millis, long nanos) {
+            this.millis = millis;
+            this.nanos = nanos;
+        }
+    }
+
+    private static volatile Anchor sAnchor =
+            new Anchor(System.currentTimeMillis(), elapsedRealtimeNanos());
+
     public StreamPointBuilder() {
     }
 
@@ -52,6 +80,10 @@ public class StreamPointBuilder {
         mStreamVersion = streamVersion;
     }
 
+    public StreamPointBuilder(StreamHandle handle) {
+        setStream(handle);
+    }
+
     /**
      * Stream name
      */
@@ -62,10 +94,33 @@ public class StreamPointBuilder {
      */
     private int mStreamVersion;
 
+    /**
+     * The handle for the stream if it was set with one
+     */
+    private StreamHandle mHandle;
+
+    /**
+     * The policy of the stream when it wasn't set with a handle, resolved once for the stream and
+     * looked up again only after {@link StreamPolicies} change
+     */
+    private StreamPolicy mPolicy;
+
+    private int mPolicyGeneration;
+
+    /**
+     * The rate limit of the stream when it wasn't set with a handle, or null if it has none. Only
+     * used if {@link #mBucketResolved} is true.
+     */
+    private StreamRateLimiter.Bucket mBucket;
+
+    private int mBucketGeneration;
+
+    private boolean mBucketResolved;
+
     /**
      * Data Json
      */
-    private String mData;
+    private CharSequence mData;
 
     /**
      * Metadata Json
@@ -83,14 +138,71 @@ public class StreamPointBuilder {
     private String mTimestamp;
 
     /**
-     * <ul>
-     * <li>time: The number of milliseconds since the Unix epoch at UTC.</li>
-     * <li>latitude: The latitude component.</li>
-     * <li>longitude: The longitude component.</li>
-     * <li>accuracy: The accuracy of the reading.</li>
-     * <ul>
+     * The time the point was captured from {@link #elapsedRealtimeNanos()} when timestamps are
+     * deferred, or 0
+     */
+    private long mCaptureNanos;
+
+    /**
+     * The anchor {@link #mCaptureNanos} is relative to
+     */
+    private Anchor mAnchor;
+
+    /**
+     * The time from {@link StreamTracer#sample()} if this point is being traced, or 0
+     */
+    private long mTraceNanos;
+
+    /**
+     * If true, {@link #now()} records the time without formatting it
+     */
+    private boolean mDeferTimestamps;
+
+    /**
+     * True if a location was set for this point
+     */
+    private boolean mHasLocation;
+
+    /**
+     * The number of milliseconds since the Unix epoch at UTC.
+     */
+    private long mLocationTime;
+
+    /**
+     * The latitude component.
+     */
+    private double mLatitude;
+
+    /**
+     * The longitude component.
+     */
+    private double mLongitude;
+
+    /**
+     * The accuracy of the reading.
+     */
+    private float mAccuracy;
+
+    /**
+     * The location encoded as a JSON object. Cached since the location often stays the same for
+     * many points.
+     */
+    private String mLocationJson;
+
+    /**
+     * Constant metadata fields which are added to every point
+     */
+    private MetadataTemplate mTemplate;
+
+    /**
+     * True if the metadata has changed since {@link #mMetadata} was last built
+     */
+    private boolean mMetadataDirty;
+
+    /**
+     * Reused to build the metadata string
      */
-    private Location mLocation;
+    private StringBuilder mMetadataBuilder;
 
     /**
      * The unique identifier for the stream and version to which this data applies.
@@ -100,8 +212,28 @@ public class StreamPointBuilder {
      * @return this
      */
     public StreamPointBuilder setStream(String streamId, int streamVersion) {
+        if (mStreamVersion != streamVersion
+                || (mStreamId != null ? !mStreamId.equals(streamId) : streamId != null)) {
+            mPolicy = null;
+            mBucketResolved = false;
+        }
         mStreamId = streamId;
         mStreamVersion = streamVersion;
+        mHandle = null;
+        return this;
+    }
+
+    /**
+     * Sets the stream and version from a handle. Writing points for a handle is cheaper than
+     * setting the stream id and version directly.
+     *
+     * @param handle from {@link StreamHandle#obtain(String, int)}
+     * @return this
+     */
+    public StreamPointBuilder setStream(StreamHandle handle) {
+        mStreamId = handle.getStreamId();
+        mStreamVersion = handle.getStreamVersion();
+        mHandle = handle;
         return this;
     }
 
@@ -116,6 +248,59 @@ public class StreamPointBuilder {
         return this;
     }
 
+    /**
+     * Set the point data without making a {@link String} from it first. The data is read when the
+     * point is written, so it must not change until then. Asynchronous writes copy the data before
+     * they return.
+     *
+     * @param data
+     * @return this
+     */
+    public StreamPointBuilder setDataChars(CharSequence data) {
+        mData = data;
+        return this;
+    }
+
+    /**
+     * Set the point data from part of a char array. The chars are not copied so they must not
+     * change until the point is written.
+     *
+     * @param data
+     * @param offset the index of the first char of the data
+     * @param length the number of chars of data
+     * @return this
+     */
+    public StreamPointBuilder setDataChars(char[] data, int offset, int length) {
+        mData = CharBuffer.wrap(data, offset, length);
+        return this;
+    }
+
+    /**
+     * Set the point data from UTF-8 bytes. The bytes from the position to the limit of the buffer
+     * are used and must not change until the point is written. The buffer position is not changed.
+     * <p/>
+     * Points written through a {@link PipeStreamTransport} copy the bytes straight into the pipe
+     * frame. Other writes decode the bytes once when the point is written.
+     *
+     * @param data
+     * @return this
+     */
+    public StreamPointBuilder setDataBytes(ByteBuffer data) {
+        mData = new Utf8CharSequence(data);
+        return this;
+    }
+
+    /**
+     * Set the point data from an encoder which has finished writing a point.
+     *
+     * @param encoder a json {@link StreamSchema.Encoder}
+     * @return this
+     */
+    public StreamPointBuilder setDataFrom(StreamSchema.Encoder encoder) {
+        mData = encoder.toJson();
+        return this;
+    }
+
     /**
      * This should be a JSON object containing the metadata for this point. This
      * field is optional. This field will be ignored on write if any other
@@ -127,6 +312,7 @@ public class StreamPointBuilder {
     public StreamPointBuilder setMetadata(String metadata) {
         clearMetadata();
         mMetadata = metadata;
+        mMetadataDirty = false;
         return this;
     }
 
@@ -138,6 +324,7 @@ public class StreamPointBuilder {
      */
     public StreamPointBuilder withId(String id) {
         mId = id;
+        mMetadataDirty = true;
         return this;
     }
 
@@ -148,6 +335,7 @@ public class StreamPointBuilder {
      */
     public StreamPointBuilder withId() {
         mId = UUID.randomUUID().toString();
+        mMetadataDirty = true;
         return this;
     }
 
@@ -169,7 +357,9 @@ public class StreamPointBuilder {
      * @return this
      */
     public StreamPointBuilder withTime(String timestamp) {
+        mCaptureNanos = 0;
         mTimestamp = timestamp;
+        mMetadataDirty = true;
         return this;
     }
 
@@ -184,7 +374,9 @@ public class StreamPointBuilder {
     public StreamPointBuilder withTime(Date time, TimeZone timeZone) {
         if(dateTimeFormatter == null)
             dateTimeFormatter = ISODateTimeFormat.dateTime().withOffsetParsed();
+        mCaptureNanos = 0;
         mTimestamp = dateTimeFormatter.print(new DateTime(time, DateTimeZone.forTimeZone(timeZone)));
+        mMetadataDirty = true;
         return this;
     }
 
@@ -196,22 +388,79 @@ public class StreamPointBuilder {
     public StreamPointBuilder withTime(DateTime time) {
         if(dateTimeFormatter == null)
             dateTimeFormatter = ISODateTimeFormat.dateTime().withOffsetParsed();
+        mCaptureNanos = 0;
         mTimestamp = dateTimeFormatter.print(time);
+        mMetadataDirty = true;
         return this;
     }
 
     /**
-     * Sets the time for this point to now
+     * Sets the time for this point to now. If timestamps are deferred, only the elapsed realtime is
+     * recorded and the timestamp is formatted when the point is written.
      *
      * @return this
+     * @see #deferTimestamps(boolean)
      */
     public StreamPointBuilder now() {
+        if (mDeferTimestamps) {
+            mTimestamp = null;
+            long nanos = elapsedRealtimeNanos();
+            Anchor anchor = sAnchor;
+            if (nanos - anchor.nanos > ANCHOR_INTERVAL_NANOS) {
+                anchor = new Anchor(System.currentTimeMillis(), elapsedRealtimeNanos());
+                sAnchor = anchor;
+            }
+            mAnchor = anchor;
+            mCaptureNanos = nanos;
+            mTraceNanos = StreamTracer.sample();
+            mMetadataDirty = true;
+            return this;
+        }
+        mTraceNanos = StreamTracer.sample();
         if(dateTimeFormatter == null)
             dateTimeFormatter = ISODateTimeFormat.dateTime().withOffsetParsed();
+        mCaptureNanos = 0;
         mTimestamp = dateTimeFormatter.print(DateTime.now());
+        mMetadataDirty = true;
+        return this;
+    }
+
+    /**
+     * Defer formatting of timestamps set with {@link #now()}. Instead of formatting an ISO8601
+     * string when {@link #now()} is called, the builder records the elapsed realtime and the
+     * string is only formatted when the metadata for the point is built. For writes through an
+     * {@link AsyncBulkInsertHandler} this happens on the worker thread. This makes {@link #now()}
+     * cheap enough to call from sensor callbacks. Timestamps are measured from a wall clock reading
+     * which is taken again at most once a minute, so they are monotonic between readings and
+     * follow corrections to the clock.
+     *
+     * @param defer true to defer formatting
+     * @return this
+     */
+    public StreamPointBuilder deferTimestamps(boolean defer) {
+        mDeferTimestamps = defer;
         return this;
     }
 
+    /**
+     * Returns the time this point was captured with {@link #now()} as milliseconds since the
+     * Unix epoch. Only available if timestamps are deferred, which allows compact encodings to use
+     * the number directly instead of the ISO8601 string.
+     *
+     * @return the time of the point, or -1 if it was not captured with a deferred timestamp
+     */
+    public long timeMillis() {
+        if (mCaptureNanos == 0)
+            return -1;
+        return mAnchor.millis + (mCaptureNanos - mAnchor.nanos) / 1000000;
+    }
+
+    private static long elapsedRealtimeNanos() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+            return SystemClock.elapsedRealtimeNanos();
+        return SystemClock.elapsedRealtime() * 1000000;
+    }
+
     /**
      * Location that this response was taken
      *
@@ -219,8 +468,14 @@ public class StreamPointBuilder {
      * @return this
      */
     public StreamPointBuilder withLocation(Location location) {
-        mLocation = location;
-        return this;
+        if (location == null) {
+            mHasLocation = false;
+            mLocationJson = null;
+            mMetadataDirty = true;
+            return this;
+        }
+        return withLocation(location.getTime(), location.getLatitude(), location.getLongitude(),
+                location.getAccuracy());
     }
 
     /**
@@ -234,11 +489,50 @@ public class StreamPointBuilder {
      */
     public StreamPointBuilder withLocation(long time, double latitude,
                                            double longitude, float accuracy) {
-        mLocation = new Location("?");
-        mLocation.setTime(time);
-        mLocation.setLatitude(latitude);
-        mLocation.setLongitude(longitude);
-        mLocation.setAccuracy(accuracy);
+        if (mHasLocation && mLocationTime == time && mLatitude == latitude
+                && mLongitude == longitude && mAccuracy == accuracy) {
+            // Same fix as the last point so the encoded location can be reused
+            return this;
+        }
+        mHasLocation = true;
+        mLocationTime = time;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mAccuracy = accuracy;
+        mLocationJson = null;
+        mMetadataDirty = true;
+        return this;
+    }
+
+    /**
+     * Use the same location as another point. This is useful when a batch of points is built with
+     * different builders but shares one fix. The location is only encoded once for all of the
+     * points.
+     *
+     * @param point the point to copy the location from
+     * @return this
+     */
+    public StreamPointBuilder withLocationOf(StreamPointBuilder point) {
+        if (!point.mHasLocation)
+            return withLocation(null);
+        if (point.mLocationJson == null)
+            point.mLocationJson = point.encodeLocation();
+        withLocation(point.mLocationTime, point.mLatitude, point.mLongitude, point.mAccuracy);
+        mLocationJson = point.mLocationJson;
+        return this;
+    }
+
+    /**
+     * Adds the constant fields of a {@link MetadataTemplate} to the metadata of this point. The
+     * template stays attached when the id, time or location change so a reused builder only has to
+     * encode the fields which change for each point.
+     *
+     * @param template
+     * @return this
+     */
+    public StreamPointBuilder withTemplate(MetadataTemplate template) {
+        mTemplate = template;
+        mMetadataDirty = true;
         return this;
     }
 
@@ -250,8 +544,13 @@ public class StreamPointBuilder {
     public StreamPointBuilder clearMetadata() {
         mId = null;
         mTimestamp = null;
-        mLocation = null;
+        mCaptureNanos = 0;
+        mTraceNanos = 0;
+        mHasLocation = false;
+        mLocationJson = null;
+        mTemplate = null;
         mMetadata = null;
+        mMetadataDirty = true;
         return this;
     }
 
@@ -264,6 +563,9 @@ public class StreamPointBuilder {
         clearMetadata();
         mStreamId = null;
         mStreamVersion = 0;
+        mHandle = null;
+        mPolicy = null;
+        mBucketResolved = false;
         mData = null;
         return this;
     }
@@ -274,8 +576,7 @@ public class StreamPointBuilder {
      * @return the metadata as a JSON string
      */
     public String getMetadata() {
-        if (mMetadata == null)
-            buildMetaData();
+        buildMetaData();
         return mMetadata;
     }
 
@@ -285,11 +586,16 @@ public class StreamPointBuilder {
      * @return the content values
      */
     public ContentValues toContentValues() {
-        ContentValues values = new ContentValues();
-        values.put(StreamContract.Streams.STREAM_ID, mStreamId);
-        values.put(StreamContract.Streams.STREAM_VERSION, mStreamVersion);
+        ContentValues values;
+        if (mHandle != null) {
+            values = mHandle.newContentValues();
+        } else {
+            values = new ContentValues();
+            values.put(StreamContract.Streams.STREAM_ID, mStreamId);
+            values.put(StreamContract.Streams.STREAM_VERSION, mStreamVersion);
+        }
         values.put(StreamContract.Streams.STREAM_METADATA, mMetadata);
-        values.put(StreamContract.Streams.STREAM_DATA, mData);
+        values.put(StreamContract.Streams.STREAM_DATA, getData());
         return values;
     }
 
@@ -297,7 +603,7 @@ public class StreamPointBuilder {
      * Send this point to ohmage.
      * <p/>
      * If you have many points to send within a few milliseconds of each
-     * other, you will get better performance by calling {@link #write(StreamWriter)} or
+     * other, you will get better performance by calling {@link #write(StreamPointWriter)} or
      * {@link #writeAsync(AsyncBulkInsertHandler)}.
      * <p/>
      * This call will block until the point has been saved in ohmage.
@@ -305,16 +611,25 @@ public class StreamPointBuilder {
      * @param resolver a {@link ContentResolver} that is used to save the point
      */
     public void write(ContentResolver resolver) {
+        checkData();
+        if (!admitNow())
+            return;
+        countPoint();
         buildMetaData();
-        if (StreamContract.checkContentProviderExists(resolver))
-            resolver.insert(StreamContract.Streams.CONTENT_URI, toContentValues());
+        long trace = takeTrace();
+        if (StreamContract.checkContentProviderExists(resolver)) {
+            long start = StreamTracer.enqueued(trace);
+            if (resolver.insert(StreamContract.Streams.CONTENT_URI, toContentValues()) != null)
+                StreamCountsCache.pointsWritten(mStreamId, mStreamVersion, 1);
+            StreamTracer.written(trace, start);
+        }
     }
 
     /**
      * Asynchronously send this point to ohmage.
      * <p/>
      * If you have many points to send within a few milliseconds of each
-     * other, you will get better performance by calling {@link #write(StreamWriter)} or
+     * other, you will get better performance by calling {@link #write(StreamPointWriter)} or
      * {@link #writeAsync(AsyncBulkInsertHandler)}.
      * <p/>
      * This call returns without waiting for ohmage to save the point. Implement
@@ -330,7 +645,12 @@ public class StreamPointBuilder {
      * @param cookie  An object that gets passed into {@link AsyncQueryHandler#onInsertComplete}
      */
     public void writeAsync(AsyncQueryHandler handler, int token, Object cookie) {
+        checkData();
+        if (!admitNow())
+            return;
+        countPoint();
         buildMetaData();
+        StreamTracer.enqueued(takeTrace());
         handler.startInsert(token, cookie, StreamContract.Streams.CONTENT_URI, toContentValues());
     }
 
@@ -351,8 +671,38 @@ public class StreamPointBuilder {
      * @param handler an {@link AsyncBulkInsertHandler} to send batches of points
      */
     public void writeAsync(AsyncBulkInsertHandler handler) {
+        checkData();
+        if (mCaptureNanos != 0) {
+            // Let the worker thread format the timestamp
+            StreamPointBuilder point = copy();
+            mTraceNanos = 0;
+            handler.startInsert(point);
+            return;
+        }
         buildMetaData();
-        handler.startInsert(toContentValues());
+        handler.startInsert(toContentValues(), mHandle, takeTrace());
+    }
+
+    /**
+     * Asynchronously queue this point to be sent to ohmage in a batch and get a handle to the
+     * write.
+     * <p/>
+     * This works like {@link #writeAsync(AsyncBulkInsertHandler)} except that it returns a
+     * {@link StreamFuture} which completes once the batch containing this point has been saved.
+     * Points in the same batch share a future so this is cheap enough to call for every point.
+     *
+     * @param handler an {@link AsyncBulkInsertHandler} to send batches of points
+     * @return a {@link StreamFuture} for the batch containing this point
+     */
+    public StreamFuture submit(AsyncBulkInsertHandler handler) {
+        checkData();
+        if (mCaptureNanos != 0) {
+            StreamPointBuilder point = copy();
+            mTraceNanos = 0;
+            return handler.submitInsert(point);
+        }
+        buildMetaData();
+        return handler.submitInsert(toContentValues(), mHandle, takeTrace());
     }
 
     /**
@@ -367,36 +717,247 @@ public class StreamPointBuilder {
      * This method returns slower than the async calls, but generally the data is saved to ohmage
      * faster overall.
      *
-     * @param writer a {@link StreamWriter} to send points.
+     * @param writer a {@link StreamWriter} or {@link SharedStreamWriter} to send points.
      * @throws RemoteException can be thrown if there was a problem sending the data to ohmage.
      */
+    public void write(StreamPointWriter writer) throws RemoteException {
+        buildMetaData();
+        long trace = takeTrace();
+        long start = StreamTracer.enqueued(trace);
+        // Buffered points are sent later so only direct writes are timed
+        boolean direct = start != 0 && writer.isConnected();
+        writer.write(this);
+        if (direct)
+            StreamTracer.written(trace, start);
+    }
+
+    /**
+     * Kept so code compiled against the old signature still links. Same as
+     * {@link #write(StreamPointWriter)}.
+     */
     public void write(StreamWriter writer) throws RemoteException {
+        write((StreamPointWriter) writer);
+    }
+
+    /**
+     * Sends this point to ohmage with the given {@link StreamTransport}. Use an
+     * {@link AutoStreamTransport} to have the library choose between the other write methods based
+     * on how fast points are written to each stream.
+     *
+     * @param transport the {@link StreamTransport} to send the point with
+     * @throws RemoteException can be thrown if the transport sends data to a remote service
+     */
+    public void write(StreamTransport transport) throws RemoteException {
+        transport.write(this);
+    }
+
+    String getStreamId() {
+        return mStreamId;
+    }
+
+    int getStreamVersion() {
+        return mStreamVersion;
+    }
+
+    /**
+     * @return the data as a {@link String}, which is only made if the data was set some other way
+     */
+    String getData() {
+        return mData != null ? mData.toString() : null;
+    }
+
+    /**
+     * @return the data as it was set
+     */
+    CharSequence getDataChars() {
+        return mData;
+    }
+
+    StreamHandle getHandle() {
+        return mHandle;
+    }
+
+    /**
+     * Checks the data against the schema registered for the stream. Points of streams whose
+     * {@link StreamPolicy} turns validation off are not checked.
+     *
+     * @throws RuntimeException if the data doesn't match the schema
+     */
+    private void checkData() {
+        if (mHandle == null) {
+            if (getPolicy().getValidation() != StreamPolicy.VALIDATION_NONE)
+                ConcordiaSchema.check(mStreamId, mStreamVersion, mData);
+            return;
+        }
+        if (mHandle.getPolicy().getValidation() != StreamPolicy.VALIDATION_NONE) {
+            ConcordiaSchema schema = mHandle.getSchema();
+            if (schema != null)
+                schema.validate(mData);
+        }
+    }
+
+    /**
+     * Counts the point against its handle once it was admitted
+     */
+    private void countPoint() {
+        if (mHandle != null)
+            mHandle.countPoint();
+    }
+
+    /**
+     * @return true if the rate limit of the stream allows the point to be written now
+     */
+    private boolean admitNow() {
+        return admit(false) == StreamRateLimiter.ADMIT;
+    }
+
+    /**
+     * @return the policy of the stream, which is only looked up once for each stream
+     */
+    StreamPolicy getPolicy() {
+        if (mHandle != null)
+            return mHandle.getPolicy();
+        int generation = StreamPolicies.generation();
+        if (mPolicy == null || mPolicyGeneration != generation) {
+            mPolicy = StreamPolicies.forStream(mStreamId, mStreamVersion);
+            mPolicyGeneration = generation;
+        }
+        return mPolicy;
+    }
+
+    /**
+     * Checks the point against the rate limit of its stream, which is only looked up once for
+     * each stream
+     *
+     * @see StreamRateLimiter#admit(String, int, boolean)
+     */
+    long admit(boolean canDefer) {
+        if (mHandle != null)
+            return mHandle.admit(canDefer);
+        int generation = StreamRateLimiter.generation();
+        if (!mBucketResolved || mBucketGeneration != generation) {
+            mBucket = StreamRateLimiter.bucketFor(mStreamId, mStreamVersion);
+            mBucketGeneration = generation;
+            mBucketResolved = true;
+        }
+        return StreamRateLimiter.admit(mBucket, canDefer);
+    }
+
+    long getTraceNanos() {
+        return mTraceNanos;
+    }
+
+    /**
+     * Returns the trace stamp for this point and clears it so the point is only traced once. If
+     * the point wasn't stamped when it was captured, it may be sampled now.
+     */
+    private long takeTrace() {
+        long trace = mTraceNanos != 0 ? mTraceNanos : StreamTracer.sample();
+        mTraceNanos = 0;
+        return trace;
+    }
+
+    /**
+     * Builds the metadata for the current state of the builder
+     *
+     * @return the metadata as a JSON string
+     */
+    String encodeMetadata() {
         buildMetaData();
-        writer.write(mStreamId, mStreamVersion, mMetadata, mData);
+        return mMetadata;
+    }
+
+    /**
+     * Makes a copy of this point so it can be finished on another thread
+     */
+    StreamPointBuilder copy() {
+        StreamPointBuilder copy = new StreamPointBuilder(mStreamId, mStreamVersion);
+        copy.mHandle = mHandle;
+        copy.mPolicy = mPolicy;
+        copy.mPolicyGeneration = mPolicyGeneration;
+        copy.mBucket = mBucket;
+        copy.mBucketGeneration = mBucketGeneration;
+        copy.mBucketResolved = mBucketResolved;
+        // The copy outlives this call so it can't share data which may change
+        copy.mData = mData instanceof String ? mData : getData();
+        copy.mMetadata = mMetadata;
+        copy.mId = mId;
+        copy.mTimestamp = mTimestamp;
+        copy.mCaptureNanos = mCaptureNanos;
+        copy.mAnchor = mAnchor;
+        copy.mTraceNanos = mTraceNanos;
+        copy.mHasLocation = mHasLocation;
+        copy.mLocationTime = mLocationTime;
+        copy.mLatitude = mLatitude;
+        copy.mLongitude = mLongitude;
+        copy.mAccuracy = mAccuracy;
+        copy.mLocationJson = mLocationJson;
+        copy.mTemplate = mTemplate;
+        copy.mMetadataDirty = mMetadataDirty;
+        return copy;
     }
 
     /**
-     * Builds the metadata string. Only sets the string if not null.
+     * Builds the metadata string. Only sets the string if not null. The string is only rebuilt if
+     * the metadata changed since it was last built.
      */
     private void buildMetaData() {
+        if (!mMetadataDirty)
+            return;
+        mMetadataDirty = false;
+
+        boolean section = StreamTracer.beginSection("buildMetaData");
         try {
-            JSONObject metadata = new JSONObject();
-            if (mId != null)
-                metadata.put("id", mId);
-            if (mTimestamp != null)
-                metadata.put("timestamp", mTimestamp);
-            if (mLocation != null) {
-                JSONObject location = new JSONObject();
-                location.put("time", mLocation.getTime());
-                location.put("latitude", mLocation.getLatitude());
-                location.put("longitude", mLocation.getLongitude());
-                location.put("accuracy", mLocation.getAccuracy());
-                metadata.put("location", location);
-            }
-            if (metadata.length() > 0)
-                mMetadata = metadata.toString();
+            formatMetadata();
+        } finally {
+            StreamTracer.endSection(section);
+        }
+        if (mTraceNanos != 0)
+            StreamTracer.record(StreamTracer.STAGE_ENCODE, mTraceNanos, System.nanoTime());
+    }
+
+    private void formatMetadata() {
+        if (mCaptureNanos != 0) {
+            if (dateTimeFormatter == null)
+                dateTimeFormatter = ISODateTimeFormat.dateTime().withOffsetParsed();
+            mTimestamp = dateTimeFormatter.print(timeMillis());
+        }
+
+        if (mMetadataBuilder == null)
+            mMetadataBuilder = new StringBuilder(128);
+        StringBuilder metadata = mMetadataBuilder;
+        metadata.setLength(0);
+        metadata.append('{');
+        if (mId != null)
+            metadata.append("\"id\":").append(JSONObject.quote(mId)).append(',');
+        if (mTimestamp != null)
+            metadata.append("\"timestamp\":").append(JSONObject.quote(mTimestamp)).append(',');
+        if (mHasLocation) {
+            if (mLocationJson == null)
+                mLocationJson = encodeLocation();
+            if (mLocationJson != null)
+                metadata.append("\"location\":").append(mLocationJson).append(',');
+        }
+        if (mTemplate != null)
+            metadata.append(mTemplate.getFields()).append(',');
+
+        if (metadata.length() > 1) {
+            metadata.setCharAt(metadata.length() - 1, '}');
+            mMetadata = metadata.toString();
+        }
+    }
+
+    private String encodeLocation() {
+        try {
+            JSONObject location = new JSONObject();
+            location.put("time", mLocationTime);
+            location.put("latitude", mLatitude);
+            location.put("longitude", mLongitude);
+            location.put("accuracy", mAccuracy);
+            return location.toString();
         } catch (JSONException e) {
             Log.e(TAG, "JSON format exception");
+            return null;
         }
     }
 }
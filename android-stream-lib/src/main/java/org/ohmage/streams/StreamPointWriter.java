@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.RemoteException;
+
+/**
+ * Writes points over the remote service connection to ohmage. Implemented by {@link StreamWriter},
+ * which owns a connection, and {@link SharedStreamWriter}, which is a handle to a connection shared
+ * by the whole process.
+ */
+public interface StreamPointWriter {
+
+    /**
+     * Send a point to ohmage. If the service is not connected yet the point is buffered until it
+     * is.
+     *
+     * @throws RemoteException if there was a problem sending the point to ohmage
+     */
+    public void write(String streamId, int streamVersion, String metadata, String data)
+            throws RemoteException;
+
+    /**
+     * Send a point built with a {@link StreamPointBuilder}. Points with a {@link StreamHandle} are
+     * checked against the cached policy and limit of the handle, and counted by it once they are
+     * admitted.
+     *
+     * @throws RemoteException if there was a problem sending the point to ohmage
+     */
+    public void write(StreamPointBuilder point) throws RemoteException;
+
+    /**
+     * @return true if points are currently sent straight to the service instead of buffered
+     */
+    public boolean isConnected();
+
+    /**
+     * Returns a {@link StreamFuture} which completes once all points written before this call have
+     * been sent to ohmage
+     */
+    public StreamFuture flush();
+
+    /**
+     * Waits for all points written before this call to be sent to ohmage. Must not be called from
+     * the main thread.
+     *
+     * @param timeout the maximum time in ms to wait
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public StreamFuture drain(long timeout) throws InterruptedException;
+
+    /**
+     * Drops points whose id was already sent within the window of the filter
+     *
+     * @param filter the filter to check ids against, or null to send every point
+     */
+    public void setDedupFilter(StreamDedupFilter filter);
+
+    /**
+     * Disconnect from ohmage once the buffered points are sent. No more points should be written
+     * after the writer is closed.
+     */
+    public void close();
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.Context;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the {@link StreamPolicy} of each stream so write settings can be changed in a resource or
+ * file instead of in code. Load the policies once at startup:
+ * <pre>
+ * {
+ *   "default": {"transport": "bulk", "flushDelay": 1000},
+ *   "streams": {
+ *     "org.ohmage.mobility": {"batchSize": 100},
+ *     "org.ohmage.mobility:2": {"sampleInterval": 5}
+ *   }
+ * }
+ * </pre>
+ * Streams are matched by {@code "streamId:version"} first, then by stream id, and otherwise use
+ * the default. Stream policies take the fields they leave out from the default. The
+ * {@link StreamRateLimiter} applies the rate limit of the policy each stream version resolves to,
+ * including the default, unless a limit was set for the stream in code.
+ * <p/>
+ * The policy of a stream is resolved once and cached. {@link StreamHandle}s and
+ * {@link StreamPointBuilder}s keep the resolved policy, so it is only looked up again when the
+ * stream of a builder changes or policies are loaded.
+ */
+public final class StreamPolicies {
+
+    private static Map<String, StreamPolicy> sPolicies = Collections.emptyMap();
+
+    private static StreamPolicy sDefault = StreamPolicy.DEFAULT;
+
+    private static final ConcurrentHashMap<String, StreamPolicy> sResolved =
+            new ConcurrentHashMap<String, StreamPolicy>();
+
+    /**
+     * Changes whenever policies are loaded so cached policies know to look again
+     */
+    private static volatile int sGeneration;
+
+    private StreamPolicies() {
+    }
+
+    /**
+     * Loads policies from a raw resource, replacing any policies which were loaded before
+     *
+     * @param context
+     * @param resId   the id of a raw resource holding the JSON
+     * @throws IOException   if the resource could not be read
+     * @throws JSONException if the policies are not valid
+     */
+    public static void load(Context context, int resId) throws IOException, JSONException {
+        InputStream in = context.getResources().openRawResource(resId);
+        try {
+            load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads policies from a UTF-8 JSON stream such as a file. The stream is not closed.
+     *
+     * @see #load(Context, int)
+     */
+    public static void load(InputStream in) throws IOException, JSONException {
+        Reader reader = new InputStreamReader(in, StreamFrameWriter.UTF_8);
+        StringBuilder json = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            json.append(buffer, 0, read);
+        }
+        load(new JSONObject(json.toString()));
+    }
+
+    /**
+     * @see #load(Context, int)
+     */
+    public static void load(JSONObject json) throws JSONException {
+        StreamPolicy defaults = StreamPolicy.DEFAULT;
+        JSONObject defaultJson = json.optJSONObject("default");
+        if (defaultJson != null)
+            defaults = StreamPolicy.fromJson(defaultJson, defaults);
+
+        HashMap<String, StreamPolicy> policies = new HashMap<String, StreamPolicy>();
+        JSONObject streams = json.optJSONObject("streams");
+        if (streams != null) {
+            Iterator<?> keys = streams.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                policies.put(key, StreamPolicy.fromJson(streams.getJSONObject(key), defaults));
+            }
+        }
+        install(defaults, policies);
+    }
+
+    /**
+     * Removes all loaded policies so every stream uses {@link StreamPolicy#DEFAULT}
+     */
+    public static void clear() {
+        install(StreamPolicy.DEFAULT, Collections.<String, StreamPolicy>emptyMap());
+    }
+
+    /**
+     * Returns the policy for a stream version. Streams without their own policy get the default.
+     *
+     * @param streamId
+     * @param streamVersion
+     * @return the policy
+     */
+    public static StreamPolicy forStream(String streamId, int streamVersion) {
+        String key = streamId + ":" + streamVersion;
+        StreamPolicy policy = sResolved.get(key);
+        if (policy == null) {
+            synchronized (StreamPolicies.class) {
+                policy = sPolicies.get(key);
+                if (policy == null)
+                    policy = sPolicies.get(streamId);
+                if (policy == null)
+                    policy = sDefault;
+                sResolved.put(key, policy);
+            }
+        }
+        return policy;
+    }
+
+    static int generation() {
+        return sGeneration;
+    }
+
+    private static synchronized void install(StreamPolicy defaults,
+                                             Map<String, StreamPolicy> policies) {
+        boolean limited = defaults.getRateLimit() > 0;
+        for (StreamPolicy policy : policies.values()) {
+            limited |= policy.getRateLimit() > 0;
+        }
+
+        sDefault = defaults;
+        sPolicies = policies;
+        sResolved.clear();
+        sGeneration++;
+        StreamRateLimiter.policiesChanged(limited);
+    }
+}
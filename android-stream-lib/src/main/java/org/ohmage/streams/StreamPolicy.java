@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.AsyncQueryHandler;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Build;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * How points of a stream are written: batch size, flush delay, transport, priority, sampling,
+ * validation and rate limit. Policies are loaded with {@link StreamPolicies} and can't be changed
+ * once they are created.
+ * <p/>
+ * A policy is resolved once for each {@link StreamHandle}, so the transports and handlers created
+ * from a policy and the points written through the handle follow it without looking it up again.
+ * In JSON a policy looks like this, where every field is optional:
+ * <pre>
+ * {
+ *   "batchSize": 600,
+ *   "flushDelay": 500,
+ *   "transport": "auto",
+ *   "priority": 0,
+ *   "sampleInterval": 1,
+ *   "validation": "schema",
+ *   "rateLimit": {"pointsPerSecond": 50, "burst": 100, "overflow": "drop"}
+ * }
+ * </pre>
+ */
+public final class StreamPolicy {
+
+    public static final String TRANSPORT_AUTO = "auto";
+
+    public static final String TRANSPORT_SINGLE = "single";
+
+    public static final String TRANSPORT_BULK = "bulk";
+
+    public static final String TRANSPORT_WRITER = "writer";
+
+    public static final String TRANSPORT_PIPE = "pipe";
+
+    /**
+     * Points are not checked before they are written
+     */
+    public static final int VALIDATION_NONE = 0;
+
+    /**
+     * Points are checked against the {@link ConcordiaSchema} registered for the stream
+     */
+    public static final int VALIDATION_SCHEMA = 1;
+
+    /**
+     * The policy used for streams without their own policy
+     */
+    public static final StreamPolicy DEFAULT = new StreamPolicy(AsyncBulkInsertHandler.MAX_BUFFER,
+            AsyncBulkInsertHandler.FLUSH_DELAY, TRANSPORT_AUTO, 0, 1, VALIDATION_SCHEMA, 0, 0,
+            StreamRateLimiter.POLICY_DROP);
+
+    private final int mBatchSize;
+
+    private final long mFlushDelay;
+
+    private final String mTransport;
+
+    private final int mPriority;
+
+    private final int mSampleInterval;
+
+    private final int mValidation;
+
+    private final double mRateLimit;
+
+    private final int mBurst;
+
+    private final int mOverflowPolicy;
+
+    private StreamPolicy(int batchSize, long flushDelay, String transport, int priority,
+                         int sampleInterval, int validation, double rateLimit, int burst,
+                         int overflowPolicy) {
+        mBatchSize = batchSize;
+        mFlushDelay = flushDelay;
+        mTransport = transport;
+        mPriority = priority;
+        mSampleInterval = sampleInterval;
+        mValidation = validation;
+        mRateLimit = rateLimit;
+        mBurst = burst;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Reads a policy from JSON. Fields which are missing are taken from the parent.
+     *
+     * @param json   the policy
+     * @param parent the policy to take missing fields from
+     * @return the policy
+     * @throws JSONException if a field has an invalid value
+     */
+    static StreamPolicy fromJson(JSONObject json, StreamPolicy parent) throws JSONException {
+        String transport = json.optString("transport", parent.mTransport);
+        if (!TRANSPORT_AUTO.equals(transport) && !TRANSPORT_SINGLE.equals(transport)
+                && !TRANSPORT_BULK.equals(transport) && !TRANSPORT_WRITER.equals(transport)
+                && !TRANSPORT_PIPE.equals(transport))
+            throw new JSONException("Unknown transport " + transport);
+
+        int validation = parent.mValidation;
+        if (json.has("validation")) {
+            String name = json.getString("validation");
+            if ("none".equals(name))
+                validation = VALIDATION_NONE;
+            else if ("schema".equals(name))
+                validation = VALIDATION_SCHEMA;
+            else
+                throw new JSONException("Unknown validation " + name);
+        }
+
+        double rateLimit = parent.mRateLimit;
+        int burst = parent.mBurst;
+        int overflow = parent.mOverflowPolicy;
+        JSONObject limit = json.optJSONObject("rateLimit");
+        if (limit != null) {
+            rateLimit = limit.getDouble("pointsPerSecond");
+            burst = limit.optInt("burst", Math.max(1, (int) Math.ceil(rateLimit)));
+            String name = limit.optString("overflow", "drop");
+            if ("drop".equals(name))
+                overflow = StreamRateLimiter.POLICY_DROP;
+            else if ("sample".equals(name))
+                overflow = StreamRateLimiter.POLICY_SAMPLE;
+            else if ("defer".equals(name))
+                overflow = StreamRateLimiter.POLICY_DEFER;
+            else
+                throw new JSONException("Unknown overflow policy " + name);
+        }
+
+        int batchSize = json.optInt("batchSize", parent.mBatchSize);
+        long flushDelay = json.optLong("flushDelay", parent.mFlushDelay);
+        int sampleInterval = json.optInt("sampleInterval", parent.mSampleInterval);
+        if (batchSize < 1 || flushDelay < 0 || sampleInterval < 1)
+            throw new JSONException("Invalid batch size, flush delay or sample interval");
+
+        return new StreamPolicy(batchSize, flushDelay, transport,
+                json.optInt("priority", parent.mPriority), sampleInterval, validation, rateLimit,
+                burst, overflow);
+    }
+
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    public long getFlushDelay() {
+        return mFlushDelay;
+    }
+
+    /**
+     * @return one of the TRANSPORT constants
+     */
+    public String getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * @return the priority of the stream. Higher numbers are more important.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return the number of points written for each one that is kept
+     */
+    public int getSampleInterval() {
+        return mSampleInterval;
+    }
+
+    /**
+     * @return one of the VALIDATION constants
+     */
+    public int getValidation() {
+        return mValidation;
+    }
+
+    /**
+     * @return the points per second allowed, or 0 if the stream is not rate limited
+     */
+    public double getRateLimit() {
+        return mRateLimit;
+    }
+
+    public int getBurst() {
+        return mBurst;
+    }
+
+    /**
+     * @return the {@link StreamRateLimiter} policy for points over the rate limit
+     */
+    public int getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * Creates a handler which batches points with the batch size and flush delay of this policy
+     *
+     * @param resolver
+     * @return the handler
+     */
+    public AsyncBulkInsertHandler createBulkInsertHandler(ContentResolver resolver) {
+        return new AsyncBulkInsertHandler(resolver, StreamContract.Streams.CONTENT_URI,
+                mFlushDelay, mBatchSize);
+    }
+
+    /**
+     * Creates the transport of this policy. Transports which use a {@link StreamWriter} share the
+     * connection from {@link SharedStreamWriter}. The pipe transport needs API 9 and falls back to
+     * the writer transport on older versions.
+     *
+     * @param context
+     * @return the transport
+     */
+    public StreamTransport createTransport(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        if (TRANSPORT_SINGLE.equals(mTransport))
+            return new AsyncQueryTransport(new AsyncQueryHandler(resolver) {
+            });
+        if (TRANSPORT_BULK.equals(mTransport))
+            return new BulkInsertTransport(createBulkInsertHandler(resolver));
+        if (TRANSPORT_PIPE.equals(mTransport)
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+            return new PipeStreamTransport(SharedStreamWriter.obtain(context));
+        if (TRANSPORT_WRITER.equals(mTransport) || TRANSPORT_PIPE.equals(mTransport))
+            return new StreamWriterTransport(SharedStreamWriter.obtain(context));
+        return new AutoStreamTransport(
+                new AsyncQueryTransport(new AsyncQueryHandler(resolver) {
+                }),
+                new BulkInsertTransport(createBulkInsertHandler(resolver)));
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentValues;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast points can be written for each stream so one stream which writes too many points
+ * can't fill the buffers and binder calls that all other streams share.
+ * <p/>
+ * Each limited stream gets a token bucket which refills at a fixed rate and holds up to a burst of
+ * points. A limit set for a stream version takes precedence over one set for the stream id, which
+ * all versions of the stream share. Streams without either use the rate limit of the
+ * {@link StreamPolicy} they resolve to in {@link StreamPolicies}, with a bucket for each version.
+ * <p/>
+ * Each point is checked once, when it is written, after its bytes were reserved in the
+ * {@link StreamMemoryBudget} and before it is added to any buffer. Points which are replayed from
+ * a buffer, like those held by a {@link StreamWriter} until it connects, are not checked again. A
+ * point which is over the limit is handled by the policy of the stream:
+ * <ul>
+ * <li>{@link #POLICY_DROP}: the point is dropped</li>
+ * <li>{@link #POLICY_SAMPLE}: one of every {@link #SAMPLE_INTERVAL} points over the limit is
+ * kept and the rest are dropped</li>
+ * <li>{@link #POLICY_DEFER}: {@link AsyncBulkInsertHandler} holds the point back until the bucket
+ * has room for it, up to {@link #MAX_DEFER_MS}. Writes which can't be delayed, like
+ * {@link StreamWriter}, drop the point instead. A held point is still waited for by
+ * {@link AsyncBulkInsertHandler#flush()}, but it is buffered behind points of other streams
+ * which were written while it was held.</li>
+ * </ul>
+ * The buckets are lock free. While no stream has a limit, writes only pay for a volatile read.
+ */
+public final class StreamRateLimiter {
+
+    public static final int POLICY_DROP = 0;
+
+    public static final int POLICY_SAMPLE = 1;
+
+    public static final int POLICY_DEFER = 2;
+
+    /**
+     * Number of points over the limit for each one kept by {@link #POLICY_SAMPLE}
+     */
+    public static final int SAMPLE_INTERVAL = 10;
+
+    /**
+     * Longest time in ms a point is held back by {@link #POLICY_DEFER}
+     */
+    public static final long MAX_DEFER_MS = 10000;
+
+    /**
+     * Returned by {@link #admit(String, int, boolean)} when the point should be written now
+     */
+    static final long ADMIT = 0;
+
+    /**
+     * Returned by {@link #admit(String, int, boolean)} when the point should be dropped
+     */
+    static final long REJECT = -1;
+
+    /**
+     * Buckets for limits set with {@link #setLimit}, keyed by stream id or
+     * {@code "streamId:version"}
+     */
+    private static final ConcurrentHashMap<String, Bucket> sBuckets =
+            new ConcurrentHashMap<String, Bucket>();
+
+    /**
+     * Buckets for the rate limits of the loaded policies, keyed by {@code "streamId:version"}
+     */
+    private static final ConcurrentHashMap<String, Bucket> sPolicyBuckets =
+            new ConcurrentHashMap<String, Bucket>();
+
+    /**
+     * Kept in {@link #sPolicyBuckets} for stream versions whose policy has no rate limit
+     */
+    private static final Bucket NO_LIMIT = new Bucket(1, 0, POLICY_DROP);
+
+    /**
+     * True if any loaded policy has a rate limit
+     */
+    private static volatile boolean sPolicyLimits;
+
+    /**
+     * True if any stream has a limit
+     */
+    private static volatile boolean sActive;
+
+    /**
+     * Changes whenever a limit is set or cleared so cached buckets know to look again
+     */
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+
+    /**
+     * A token bucket implemented as a generic cell rate algorithm. The bucket only keeps the
+     * theoretical arrival time of the next point, which is pushed forward by one interval for each
+     * admitted point. A point is over the limit if that time is further ahead of now than the
+     * burst allows.
+     */
+    static final class Bucket {
+        final long interval;
+
+        final long tolerance;
+
+        final int policy;
+
+        final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+        final AtomicInteger overLimit = new AtomicInteger();
+
+        final AtomicLong rejected = new AtomicLong();
+
+        final AtomicLong deferred = new AtomicLong();
+
+        Bucket(double pointsPerSecond, int burst, int policy) {
+            interval = Math.max(1, (long) (1000000000L / pointsPerSecond));
+            tolerance = interval * burst;
+            this.policy = policy;
+        }
+
+        long admit(boolean canDefer) {
+            boolean defer = canDefer && policy == POLICY_DEFER;
+            while (true) {
+                long now = System.nanoTime();
+                long current = arrival.get();
+                long next = Math.max(current, now) + interval;
+                long ahead = next - now;
+                long delay = 0;
+                if (ahead > tolerance) {
+                    delay = ahead - tolerance;
+                    if (!defer || delay > MAX_DEFER_MS * 1000000) {
+                        if (policy == POLICY_SAMPLE
+                                && overLimit.incrementAndGet() % SAMPLE_INTERVAL == 0)
+                            return ADMIT;
+                        rejected.incrementAndGet();
+                        return REJECT;
+                    }
+                }
+                if (arrival.compareAndSet(current, next)) {
+                    if (delay > 0)
+                        deferred.incrementAndGet();
+                    return delay;
+                }
+            }
+        }
+    }
+
+    private StreamRateLimiter() {
+    }
+
+    /**
+     * Limits the rate of points written for all versions of a stream, which share the limit.
+     * Replaces any limit the stream already had.
+     *
+     * @param streamId        the stream to limit
+     * @param pointsPerSecond the sustained rate of points allowed
+     * @param burst           the number of points which can be written at once after the stream
+     *                        has been idle
+     * @param policy          what to do with points over the limit
+     */
+    public static void setLimit(String streamId, double pointsPerSecond, int burst, int policy) {
+        putBucket(streamId, pointsPerSecond, burst, policy);
+    }
+
+    /**
+     * Limits the rate of points written for one version of a stream. Takes precedence over a
+     * limit set for all versions.
+     *
+     * @see #setLimit(String, double, int, int)
+     */
+    public static void setLimit(String streamId, int streamVersion, double pointsPerSecond,
+                                int burst, int policy) {
+        putBucket(key(streamId, streamVersion), pointsPerSecond, burst, policy);
+    }
+
+    private static void putBucket(String key, double pointsPerSecond, int burst, int policy) {
+        if (pointsPerSecond <= 0 || burst < 1)
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        sBuckets.put(key, new Bucket(pointsPerSecond, burst, policy));
+        updated();
+    }
+
+    /**
+     * Removes the limit set for all versions of a stream
+     */
+    public static void clearLimit(String streamId) {
+        sBuckets.remove(streamId);
+        updated();
+    }
+
+    /**
+     * Removes the limit set for one version of a stream
+     */
+    public static void clearLimit(String streamId, int streamVersion) {
+        sBuckets.remove(key(streamId, streamVersion));
+        updated();
+    }
+
+    private static void updated() {
+        sActive = sPolicyLimits || !sBuckets.isEmpty();
+        sGeneration.incrementAndGet();
+    }
+
+    /**
+     * Drops the buckets of the previous policies after {@link StreamPolicies} were loaded
+     *
+     * @param limited true if any of the new policies has a rate limit
+     */
+    static synchronized void policiesChanged(boolean limited) {
+        sPolicyLimits = limited;
+        sPolicyBuckets.clear();
+        updated();
+    }
+
+    /**
+     * @return the number of points dropped because they were over the limit set for all versions
+     * of the stream
+     */
+    public static long getRejectedCount(String streamId) {
+        Bucket bucket = sBuckets.get(streamId);
+        return bucket != null ? bucket.rejected.get() : 0;
+    }
+
+    /**
+     * @return the number of points of the stream version which were dropped because they were
+     * over the limit it uses
+     */
+    public static long getRejectedCount(String streamId, int streamVersion) {
+        Bucket bucket = bucketFor(streamId, streamVersion);
+        return bucket != null ? bucket.rejected.get() : 0;
+    }
+
+    /**
+     * @return the number of points held back because they were over the limit set for all
+     * versions of the stream
+     */
+    public static long getDeferredCount(String streamId) {
+        Bucket bucket = sBuckets.get(streamId);
+        return bucket != null ? bucket.deferred.get() : 0;
+    }
+
+    /**
+     * @return the number of points of the stream version which were held back because they were
+     * over the limit it uses
+     */
+    public static long getDeferredCount(String streamId, int streamVersion) {
+        Bucket bucket = bucketFor(streamId, streamVersion);
+        return bucket != null ? bucket.deferred.get() : 0;
+    }
+
+    static int generation() {
+        return sGeneration.get();
+    }
+
+    private static String key(String streamId, int streamVersion) {
+        return streamId + ":" + streamVersion;
+    }
+
+    /**
+     * Finds the bucket of a stream version. A limit for the version comes first, then a limit for
+     * the stream id, then the rate limit of the policy of the version.
+     *
+     * @return the bucket for the stream, or null if it has no limit
+     */
+    static Bucket bucketFor(String streamId, int streamVersion) {
+        if (!sActive || streamId == null)
+            return null;
+        String key = key(streamId, streamVersion);
+        Bucket bucket = sBuckets.get(key);
+        if (bucket == null)
+            bucket = sBuckets.get(streamId);
+        if (bucket == null && sPolicyLimits) {
+            bucket = sPolicyBuckets.get(key);
+            if (bucket == null)
+                bucket = policyBucket(streamId, streamVersion, key);
+            if (bucket == NO_LIMIT)
+                bucket = null;
+        }
+        return bucket;
+    }
+
+    /**
+     * Creates the bucket for the rate limit of the policy of a stream version
+     *
+     * @return the bucket, or {@link #NO_LIMIT} if the policy has no rate limit
+     */
+    private static synchronized Bucket policyBucket(String streamId, int streamVersion,
+                                                    String key) {
+        Bucket bucket = sPolicyBuckets.get(key);
+        if (bucket != null)
+            return bucket;
+        StreamPolicy policy = StreamPolicies.forStream(streamId, streamVersion);
+        if (policy.getRateLimit() <= 0)
+            bucket = NO_LIMIT;
+        else
+            bucket = new Bucket(policy.getRateLimit(), policy.getBurst(),
+                    policy.getOverflowPolicy());
+        sPolicyBuckets.put(key, bucket);
+        return bucket;
+    }
+
+    /**
+     * Checks a point against a bucket found with {@link #bucketFor(String, int)}
+     *
+     * @see #admit(String, int, boolean)
+     */
+    static long admit(Bucket bucket, boolean canDefer) {
+        if (!sActive || bucket == null)
+            return ADMIT;
+        return bucket.admit(canDefer);
+    }
+
+    /**
+     * Checks a point against the limit of its stream version
+     *
+     * @param streamId      the stream of the point
+     * @param streamVersion the version of the stream
+     * @param canDefer      true if the caller can hold the point back
+     * @return {@link #ADMIT}, {@link #REJECT} or the time in nanoseconds to hold the point back
+     */
+    static long admit(String streamId, int streamVersion, boolean canDefer) {
+        if (!sActive)
+            return ADMIT;
+        Bucket bucket = bucketFor(streamId, streamVersion);
+        return bucket != null ? bucket.admit(canDefer) : ADMIT;
+    }
+
+    /**
+     * Checks a point which is already in {@link ContentValues} against the limit of its stream
+     *
+     * @see #admit(String, int, boolean)
+     */
+    static long admit(ContentValues values, boolean canDefer) {
+        if (!sActive)
+            return ADMIT;
+        Integer version = values.getAsInteger(StreamContract.Streams.STREAM_VERSION);
+        return admit(values.getAsString(StreamContract.Streams.STREAM_ID),
+                version != null ? version : 0, canDefer);
+    }
+
+    /**
+     * @return true if a point for the stream version can be written now
+     */
+    static boolean admitNow(String streamId, int streamVersion) {
+        return admit(streamId, streamVersion, false) == ADMIT;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A reference {@link IStreamReceiver} which accepts points from {@link StreamWriter} and
+ * {@link PipeStreamTransport}. By default points are saved to the {@link StreamsDatabase} shared
+ * with {@link StreamsProvider}, so a test app can receive streams without ohmage. Override
+ * {@link #onReceivePoint(String, int, String, String)} to handle points some other way.
+ * <p/>
+ * Declare the service in the manifest with an intent filter for the
+ * {@code org.ohmage.streams.ACTION_WRITE} action, which {@link StreamWriter} binds to, and set the
+ * {@link StreamContract#META_DATA_PIPE_VERSION} meta-data so writers know they can open pipes.
+ */
+public class StreamReceiverService extends Service {
+
+    private static final String TAG = "StreamReceiverService";
+
+    private StreamsDatabase mDatabase;
+
+    /**
+     * Pipes which are being read, closed when the service is destroyed
+     */
+    private final ArrayList<Closeable> mPipes = new ArrayList<Closeable>();
+
+    private final IStreamReceiver.Stub mBinder = new IStreamReceiver.Stub() {
+        @Override
+        public void sendStream(String streamId, int streamVersion, String metadata,
+                               String data) {
+            onReceivePoint(streamId, streamVersion, metadata, data);
+        }
+
+        @Override
+        public void openPipe(ParcelFileDescriptor pipe) {
+            readPipe(pipe);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mDatabase = StreamsDatabase.getInstance(this);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (mPipes) {
+            for (Closeable pipe : mPipes) {
+                try {
+                    pipe.close();
+                } catch (IOException e) {
+                    // The reader will stop either way
+                }
+            }
+            mPipes.clear();
+        }
+    }
+
+    /**
+     * Called for each point sent with {@link IStreamReceiver#sendStream} or read from a pipe.
+     * Points from binder calls arrive on binder threads and points from each pipe arrive on the
+     * thread which reads that pipe.
+     *
+     * @param streamId
+     * @param streamVersion
+     * @param metadata
+     * @param data
+     */
+    protected void onReceivePoint(String streamId, int streamVersion, String metadata,
+                                  String data) {
+        mDatabase.enqueue(streamId, streamVersion, metadata, data);
+    }
+
+    /**
+     * Reads frames from the pipe on a new thread until the writer closes its side. The pipe is
+     * closed if it can't be read or holds an invalid point.
+     */
+    private void readPipe(ParcelFileDescriptor pipe) {
+        final FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe);
+        synchronized (mPipes) {
+            mPipes.add(in);
+        }
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                StreamFrameReader reader = new StreamFrameReader(in.getChannel());
+                StreamFrameReader.Frame frame = new StreamFrameReader.Frame();
+                try {
+                    while (reader.readFrame(frame)) {
+                        onReceivePoint(frame.getStreamId(), frame.getStreamVersion(),
+                                frame.getMetadata(), frame.getData());
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to read points from pipe", e);
+                } catch (RuntimeException e) {
+                    // The pipe comes from another app so a bad frame must not crash the receiver
+                    Log.e(TAG, "Closing pipe after an invalid point", e);
+                } finally {
+                    synchronized (mPipes) {
+                        mPipes.remove(in);
+                    }
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // Already closed
+                    }
+                }
+            }
+        }.start();
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * The shape of the data for a stream, used to create {@link Encoder}s which write the data for
+ * each point without going through {@link JSONObject}.
+ * <p/>
+ * A schema can be compiled from the Concordia definition of the stream with
+ * {@link #compile(JSONObject)} or put together with a {@link Builder}. Either way it is compiled
+ * into the same tree a {@link ConcordiaSchema} checks data with, see {@link #toConcordiaSchema()}.
+ * The values of a point are
+ * then given to an encoder in schema order:
+ * <pre>
+ *     StreamSchema schema = new StreamSchema.Builder()
+ *         .addString("activity")
+ *         .addNumber("confidence")
+ *         .build();
+ *     StreamSchema.Encoder encoder = schema.newJsonEncoder();
+ *
+ *     encoder.reset().beginObject().put("walking").put(87).endObject();
+ *     builder.setDataFrom(encoder);
+ * </pre>
+ * Encoders write straight into a buffer which is reused for every point, so values are never
+ * boxed or stored in maps. Values which don't fit the schema throw an
+ * {@link IllegalStateException} as soon as they are given to the encoder.
+ * <p/>
+ * ohmage only accepts JSON data. The binary form written by {@link #newBinaryEncoder()} is meant
+ * for buffering points on disk or sending them over other channels. All integers are big endian
+ * and values are written in schema order as follows:
+ * <ul>
+ * <li>boolean: one byte, 0 or 1</li>
+ * <li>number: one byte which is 0 for a long and 1 for a double, followed by eight bytes</li>
+ * <li>string: int byte length followed by the UTF-8 bytes</li>
+ * <li>object: each field in order</li>
+ * <li>array: int element count followed by each element</li>
+ * </ul>
+ * Optional values are prefixed with one byte which is 1 if the value is present and 0 if it is
+ * null or missing.
+ */
+public final class StreamSchema {
+
+    private static final int KIND_LONG = 0;
+    private static final int KIND_DOUBLE = 1;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SchemaNode mRoot;
+
+    private final int mDepth;
+
+    private StreamSchema(SchemaNode root) {
+        mRoot = root;
+        mDepth = root.depth();
+    }
+
+    /**
+     * Compiles a Concordia definition. The definition can either be the type definition itself or
+     * the stream creation JSON which holds the definition in its {@code definition} field.
+     *
+     * @param definition the definition as a JSON string
+     * @return the schema
+     * @throws JSONException if the definition is not valid
+     */
+    public static StreamSchema compile(String definition) throws JSONException {
+        return compile(new JSONObject(definition));
+    }
+
+    /**
+     * @see #compile(String)
+     */
+    public static StreamSchema compile(JSONObject definition) throws JSONException {
+        return new StreamSchema(SchemaNode.compile(definition));
+    }
+
+    /**
+     * Returns a validator for this schema, so a schema put together with a {@link Builder} can be
+     * registered with {@link ConcordiaSchema#register(String, int, ConcordiaSchema)}
+     *
+     * @return a validator which shares the compiled schema
+     */
+    public ConcordiaSchema toConcordiaSchema() {
+        return new ConcordiaSchema(mRoot);
+    }
+
+    /**
+     * @return a new encoder which writes the JSON form of the data
+     */
+    public Encoder newJsonEncoder() {
+        return new Encoder(this, false);
+    }
+
+    /**
+     * @return a new encoder which writes the binary form of the data
+     */
+    public Encoder newBinaryEncoder() {
+        return new Encoder(this, true);
+    }
+
+    /**
+     * Builds the schema for a JSON object one field at a time
+     */
+    public static class Builder {
+
+        private final ArrayList<SchemaNode> mFields = new ArrayList<SchemaNode>();
+
+        public Builder addBoolean(String name) {
+            mFields.add(new SchemaNode(SchemaNode.TYPE_BOOLEAN, name, false));
+            return this;
+        }
+
+        public Builder addNumber(String name) {
+            mFields.add(new SchemaNode(SchemaNode.TYPE_NUMBER, name, false));
+            return this;
+        }
+
+        public Builder addString(String name) {
+            mFields.add(new SchemaNode(SchemaNode.TYPE_STRING, name, false));
+            return this;
+        }
+
+        /**
+         * Adds a field which holds an object
+         *
+         * @param name
+         * @param fields the fields of the object
+         * @return this
+         */
+        public Builder addObject(String name, Builder fields) {
+            mFields.add(fields.buildNode(name, false));
+            return this;
+        }
+
+        /**
+         * Adds a field which holds an array of objects
+         *
+         * @param name
+         * @param fields the fields of each object in the array
+         * @return this
+         */
+        public Builder addArrayOf(String name, Builder fields) {
+            SchemaNode node = new SchemaNode(SchemaNode.TYPE_ARRAY, name, false);
+            node.element = fields.buildNode(null, false);
+            mFields.add(node);
+            return this;
+        }
+
+        /**
+         * Adds a field which holds an array of booleans
+         */
+        public Builder addBooleanArray(String name) {
+            return addPrimitiveArray(name, SchemaNode.TYPE_BOOLEAN);
+        }
+
+        /**
+         * Adds a field which holds an array of numbers
+         */
+        public Builder addNumberArray(String name) {
+            return addPrimitiveArray(name, SchemaNode.TYPE_NUMBER);
+        }
+
+        /**
+         * Adds a field which holds an array of strings
+         */
+        public Builder addStringArray(String name) {
+            return addPrimitiveArray(name, SchemaNode.TYPE_STRING);
+        }
+
+        private Builder addPrimitiveArray(String name, int type) {
+            SchemaNode node = new SchemaNode(SchemaNode.TYPE_ARRAY, name, false);
+            node.element = new SchemaNode(type, null, false);
+            mFields.add(node);
+            return this;
+        }
+
+        /**
+         * Marks the last field that was added as optional
+         *
+         * @return this
+         */
+        public Builder optional() {
+            if (mFields.isEmpty())
+                throw new IllegalStateException("No field to mark as optional");
+            mFields.get(mFields.size() - 1).optional = true;
+            return this;
+        }
+
+        /**
+         * @return a schema for an object with the fields of this builder
+         */
+        public StreamSchema build() {
+            return new StreamSchema(buildNode(null, false));
+        }
+
+        /**
+         * @return a schema for an array of objects with the fields of this builder
+         */
+        public StreamSchema buildArray() {
+            SchemaNode node = new SchemaNode(SchemaNode.TYPE_ARRAY, null, false);
+            node.element = buildNode(null, false);
+            return new StreamSchema(node);
+        }
+
+        private SchemaNode buildNode(String name, boolean optional) {
+            SchemaNode node = new SchemaNode(SchemaNode.TYPE_OBJECT, name, optional);
+            node.fields = mFields.toArray(new SchemaNode[mFields.size()]);
+            return node;
+        }
+    }
+
+    /**
+     * Writes the data for points of a schema. Call {@link #reset()} before each point and then
+     * give each value in schema order. Objects and arrays are opened and closed with the begin and
+     * end methods. Optional fields at the end of an object can be left out.
+     * <p/>
+     * This class is not thread safe.
+     */
+    public static final class Encoder {
+
+        private final SchemaNode mRoot;
+
+        private final StringBuilder mJson;
+
+        private ByteBuffer mBytes;
+
+        private final SchemaNode[] mNodes;
+
+        private final int[] mIndex;
+
+        private final int[] mCountPosition;
+
+        private int mDepth;
+
+        private boolean mDone;
+
+        private String mJsonString;
+
+        private Encoder(StreamSchema schema, boolean binary) {
+            mRoot = schema.mRoot;
+            mNodes = new SchemaNode[schema.mDepth];
+            mIndex = new int[schema.mDepth];
+            mCountPosition = new int[schema.mDepth];
+            if (binary) {
+                mJson = null;
+                mBytes = ByteBuffer.allocate(256);
+            } else {
+                mJson = new StringBuilder(256);
+            }
+        }
+
+        /**
+         * Clears the encoder so it can write the next point
+         *
+         * @return this
+         */
+        public Encoder reset() {
+            if (mJson != null)
+                mJson.setLength(0);
+            else
+                mBytes.clear();
+            mDepth = 0;
+            mDone = false;
+            mJsonString = null;
+            return this;
+        }
+
+        public Encoder put(boolean value) {
+            next(SchemaNode.TYPE_BOOLEAN);
+            if (mJson != null)
+                mJson.append(value);
+            else
+                ensure(1).put((byte) (value ? 1 : 0));
+            return this;
+        }
+
+        public Encoder put(long value) {
+            next(SchemaNode.TYPE_NUMBER);
+            if (mJson != null)
+                mJson.append(value);
+            else
+                ensure(9).put((byte) KIND_LONG).putLong(value);
+            return this;
+        }
+
+        public Encoder put(double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value))
+                throw new IllegalArgumentException("Numbers must be finite");
+            next(SchemaNode.TYPE_NUMBER);
+            if (mJson != null) {
+                long l = (long) value;
+                if (l == value)
+                    mJson.append(l);
+                else
+                    mJson.append(value);
+            } else {
+                ensure(9).put((byte) KIND_DOUBLE).putDouble(value);
+            }
+            return this;
+        }
+
+        /**
+         * Writes a string value. Writing null is the same as calling {@link #putNull()}.
+         *
+         * @return this
+         */
+        public Encoder put(CharSequence value) {
+            if (value == null)
+                return putNull();
+            next(SchemaNode.TYPE_STRING);
+            if (mJson != null)
+                quote(mJson, value);
+            else
+                putUtf8(value);
+            return this;
+        }
+
+        /**
+         * Writes null for an optional value
+         *
+         * @return this
+         */
+        public Encoder putNull() {
+            next(-1);
+            if (mJson != null)
+                mJson.append("null");
+            return this;
+        }
+
+        public Encoder beginObject() {
+            SchemaNode node = next(SchemaNode.TYPE_OBJECT);
+            if (mJson != null)
+                mJson.append('{');
+            push(node);
+            return this;
+        }
+
+        public Encoder endObject() {
+            SchemaNode node = pop(SchemaNode.TYPE_OBJECT);
+            for (int i = mIndex[mDepth]; i < node.fields.length; i++) {
+                if (!node.fields[i].optional)
+                    throw new IllegalStateException("Missing field " + node.fields[i].name);
+                if (mBytes != null)
+                    ensure(1).put((byte) 0);
+            }
+            if (mJson != null)
+                mJson.append('}');
+            return this;
+        }
+
+        public Encoder beginArray() {
+            SchemaNode node = next(SchemaNode.TYPE_ARRAY);
+            if (mJson != null)
+                mJson.append('[');
+            push(node);
+            if (mBytes != null) {
+                mCountPosition[mDepth - 1] = mBytes.position();
+                ensure(4).putInt(0);
+            }
+            return this;
+        }
+
+        public Encoder endArray() {
+            SchemaNode node = pop(SchemaNode.TYPE_ARRAY);
+            int count = mIndex[mDepth];
+            if (node.length != -1 && count != node.length)
+                throw new IllegalStateException("Array needs " + node.length + " elements");
+            if (mJson != null)
+                mJson.append(']');
+            else
+                mBytes.putInt(mCountPosition[mDepth], count);
+            return this;
+        }
+
+        /**
+         * @return the JSON data for the point
+         * @throws IllegalStateException if the point is not complete or this is a binary encoder
+         */
+        public String toJson() {
+            if (mJson == null)
+                throw new IllegalStateException("Not a json encoder");
+            checkDone();
+            // Return the same string until the encoder is reset so validators can remember it
+            if (mJsonString == null)
+                mJsonString = mJson.toString();
+            return mJsonString;
+        }
+
+        /**
+         * Copies the binary data for the point into the buffer
+         *
+         * @param out the buffer to write to
+         * @throws IllegalStateException if the point is not complete or this is a json encoder
+         * @throws java.nio.BufferOverflowException if there isn't enough room in the buffer
+         */
+        public void writeBinary(ByteBuffer out) {
+            if (mBytes == null)
+                throw new IllegalStateException("Not a binary encoder");
+            checkDone();
+            out.put(mBytes.array(), 0, mBytes.position());
+        }
+
+        /**
+         * @return the number of bytes in the binary data for the point
+         */
+        public int getBinaryLength() {
+            if (mBytes == null)
+                throw new IllegalStateException("Not a binary encoder");
+            return mBytes.position();
+        }
+
+        private void checkDone() {
+            if (!mDone)
+                throw new IllegalStateException("Point is not complete");
+        }
+
+        /**
+         * Finds the node for the next value, checks that the value fits and writes the separator
+         * and field name before it
+         *
+         * @param type the type of the value or -1 for null
+         * @return the node for the value
+         */
+        private SchemaNode next(int type) {
+            SchemaNode node = peekNode();
+            if (type == -1) {
+                if (!node.optional)
+                    throw new IllegalStateException(describe(node) + " is not optional");
+            } else if (node.type != type) {
+                throw new IllegalStateException("Expected " + SchemaNode.TYPE_NAMES[node.type]
+                        + " for " + describe(node));
+            }
+
+            if (mDepth == 0) {
+                // Containers are done once they are closed
+                if (type != SchemaNode.TYPE_OBJECT && type != SchemaNode.TYPE_ARRAY)
+                    mDone = true;
+            } else {
+                int index = mIndex[mDepth - 1]++;
+                if (mJson != null) {
+                    if (index > 0)
+                        mJson.append(',');
+                    if (node.name != null)
+                        mJson.append(node.jsonName);
+                }
+            }
+            if (mBytes != null && node.optional)
+                ensure(1).put((byte) (type == -1 ? 0 : 1));
+            return node;
+        }
+
+        /**
+         * @return the node for the next value
+         */
+        private SchemaNode peekNode() {
+            if (mDepth == 0) {
+                if (mDone)
+                    throw new IllegalStateException("Point is already complete");
+                return mRoot;
+            }
+            SchemaNode parent = mNodes[mDepth - 1];
+            int index = mIndex[mDepth - 1];
+            if (parent.type == SchemaNode.TYPE_OBJECT) {
+                if (index >= parent.fields.length)
+                    throw new IllegalStateException("No more fields in " + describe(parent));
+                return parent.fields[index];
+            }
+            if (parent.length != -1 && index >= parent.length)
+                throw new IllegalStateException("Too many elements in " + describe(parent));
+            return parent.schema != null ? parent.schema[index] : parent.element;
+        }
+
+        private void push(SchemaNode node) {
+            mNodes[mDepth] = node;
+            mIndex[mDepth] = 0;
+            mDepth++;
+        }
+
+        private SchemaNode pop(int type) {
+            if (mDepth == 0 || mNodes[mDepth - 1].type != type)
+                throw new IllegalStateException("Not in an " + SchemaNode.TYPE_NAMES[type]);
+            SchemaNode node = mNodes[--mDepth];
+            if (mDepth == 0)
+                mDone = true;
+            return node;
+        }
+
+        private ByteBuffer ensure(int bytes) {
+            if (mBytes.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(
+                        Math.max(mBytes.capacity() * 2, mBytes.position() + bytes));
+                mBytes.flip();
+                bigger.put(mBytes);
+                mBytes = bigger;
+            }
+            return mBytes;
+        }
+
+        private void putUtf8(CharSequence value) {
+            int length = value.length();
+            int bytes = utf8Length(value);
+            ensure(4 + bytes).putInt(bytes);
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    mBytes.put((byte) c);
+                } else if (c < 0x800) {
+                    mBytes.put((byte) (0xc0 | (c >> 6)));
+                    mBytes.put((byte) (0x80 | (c & 0x3f)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    mBytes.put((byte) (0xf0 | (cp >> 18)));
+                    mBytes.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                    mBytes.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                    mBytes.put((byte) (0x80 | (cp & 0x3f)));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    mBytes.put((byte) '?');
+                } else {
+                    mBytes.put((byte) (0xe0 | (c >> 12)));
+                    mBytes.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    mBytes.put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+        }
+
+        private static String describe(SchemaNode node) {
+            return node.name != null ? node.name : "value";
+        }
+    }
+
+    /**
+     * @return the number of bytes needed to write the string as UTF-8
+     */
+    static int utf8Length(CharSequence value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Appends the value as a quoted JSON string
+     */
+    static void quote(StringBuilder out, CharSequence value) {
+        out.append('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    out.append('\\').append(c);
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Samples points on their way to ohmage and records how long each stage took. Sampled points are
+ * stamped when they are captured by {@link StreamPointBuilder#now()} (or when they are written if
+ * the time was set some other way) and the time of each later stage is added to a histogram.
+ * <p/>
+ * While tracing is enabled {@link Trace} sections are also emitted around building metadata,
+ * {@code bulkInsert} and {@code sendStream} so systrace captures line up with the library.
+ * Sections require API 18.
+ * <p/>
+ * Tracing is disabled by default. When it is disabled, the only cost is a check of a volatile
+ * flag per point.
+ */
+public final class StreamTracer {
+
+    /**
+     * From capture until the metadata is built
+     */
+    public static final int STAGE_ENCODE = 0;
+
+    /**
+     * From capture until the point is handed to an {@link AsyncBulkInsertHandler} or
+     * {@link StreamWriter}
+     */
+    public static final int STAGE_ENQUEUE = 1;
+
+    /**
+     * From being handed off until the batch containing the point starts to be written
+     */
+    public static final int STAGE_FLUSH = 2;
+
+    /**
+     * From the start of the write until {@code bulkInsert} or {@code sendStream} returns
+     */
+    public static final int STAGE_IPC = 3;
+
+    /**
+     * From capture until the point was written
+     */
+    public static final int STAGE_TOTAL = 4;
+
+    private static final int STAGE_COUNT = 5;
+
+    /**
+     * Bucket i counts latencies from 2^i to 2^(i+1) nanoseconds
+     */
+    public static final int BUCKETS = 40;
+
+    private static final AtomicLongArray sHistograms = new AtomicLongArray(STAGE_COUNT * BUCKETS);
+
+    private static final AtomicInteger sSampleCounter = new AtomicInteger();
+
+    private static volatile boolean sEnabled;
+
+    private static volatile int sSampleInterval = 100;
+
+    private StreamTracer() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Sets how many points are seen for each one that is traced
+     *
+     * @param interval 1 to trace every point
+     */
+    public static void setSampleInterval(int interval) {
+        if (interval < 1)
+            throw new IllegalArgumentException("Interval must be at least 1");
+        sSampleInterval = interval;
+    }
+
+    /**
+     * Returns a copy of the histogram for a stage
+     *
+     * @param stage one of the STAGE constants
+     * @return the count for each of the {@link #BUCKETS} buckets
+     */
+    public static long[] getHistogram(int stage) {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = sHistograms.get(stage * BUCKETS + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Estimates a percentile of the latency of a stage from its histogram
+     *
+     * @param stage      one of the STAGE constants
+     * @param percentile between 0 and 100
+     * @return the upper bound in nanoseconds of the bucket the percentile falls in, or 0 if no
+     * points were traced
+     */
+    public static long getPercentile(int stage, double percentile) {
+        long[] histogram = getHistogram(stage);
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0)
+            return 0;
+
+        long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= target && histogram[i] > 0)
+                return 1L << (i + 1);
+        }
+        return 1L << BUCKETS;
+    }
+
+    /**
+     * Clears all histograms
+     */
+    public static void reset() {
+        for (int i = 0; i < sHistograms.length(); i++) {
+            sHistograms.set(i, 0);
+        }
+    }
+
+    /**
+     * Decides if the next point should be traced
+     *
+     * @return the current time in nanoseconds if the point is sampled, otherwise 0
+     */
+    static long sample() {
+        if (!sEnabled)
+            return 0;
+        if (sSampleCounter.incrementAndGet() % sSampleInterval != 0)
+            return 0;
+        long now = System.nanoTime();
+        // 0 means not sampled
+        return now != 0 ? now : 1;
+    }
+
+    /**
+     * Adds the time between two stamps to the histogram of a stage. Does nothing if the point was
+     * not sampled.
+     */
+    static void record(int stage, long startNanos, long endNanos) {
+        if (startNanos == 0)
+            return;
+        long latency = Math.max(1, endNanos - startNanos);
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(latency));
+        sHistograms.incrementAndGet(stage * BUCKETS + bucket);
+    }
+
+    /**
+     * Records that a point was handed off to be written
+     *
+     * @param captureNanos the stamp of the point from {@link #sample()}
+     * @return the current time in nanoseconds if the point is sampled, otherwise 0
+     */
+    static long enqueued(long captureNanos) {
+        if (captureNanos == 0)
+            return 0;
+        long now = System.nanoTime();
+        record(STAGE_ENQUEUE, captureNanos, now);
+        return now;
+    }
+
+    /**
+     * Records that a point was written
+     *
+     * @param captureNanos the stamp of the point from {@link #sample()}
+     * @param startNanos   the time the write started
+     */
+    static void written(long captureNanos, long startNanos) {
+        if (captureNanos == 0)
+            return;
+        long now = System.nanoTime();
+        record(STAGE_IPC, startNanos, now);
+        record(STAGE_TOTAL, captureNanos, now);
+    }
+
+    /**
+     * Starts a {@link Trace} section if tracing is enabled
+     *
+     * @return true if a section was started and must be ended with {@link #endSection(boolean)}
+     */
+    static boolean beginSection(String name) {
+        if (!sEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2)
+            return false;
+        Trace.beginSection(name);
+        return true;
+    }
+
+    static void endSection(boolean started) {
+        if (started)
+            Trace.endSection();
+    }
+}
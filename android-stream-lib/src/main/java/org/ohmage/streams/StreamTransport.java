@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.RemoteException;
+
+/**
+ * A path which can be used to send points to ohmage. Each of the write methods on
+ * {@link StreamPointBuilder} has a matching transport so callers can pick a path once and write
+ * every point through {@link StreamPointBuilder#write(StreamTransport)}. Use
+ * {@link AutoStreamTransport} to let the library pick the path based on the load of each stream.
+ */
+public interface StreamTransport {
+
+    /**
+     * Send the point to ohmage. Implementations must not hold on to the builder after this call
+     * returns since callers are free to reuse it for the next point.
+     *
+     * @param point the point to send
+     * @throws RemoteException if there was a problem sending the point to ohmage
+     */
+    public void write(StreamPointBuilder point) throws RemoteException;
+
+    /**
+     * Release any resources held by this transport. No more points should be written after the
+     * transport is closed.
+     */
+    public void close();
+}
@@ -21,30 +21,68 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Easily connect and write streams to ohmage to be uploaded.
  *
  * @author cketcham
  */
-public class StreamWriter implements ServiceConnection {
+public class StreamWriter implements ServiceConnection, StreamPointWriter {
 
     /**
      * Intent action which initializes the connection to the remote service
      */
-    private static final String ACTION_WRITE = "org.ohmage.streams.ACTION_WRITE";
+    static final String ACTION_WRITE = "org.ohmage.streams.ACTION_WRITE";
 
     /**
      * Holds a list of streams which were collected before the service connected
      */
-    private final ArrayList<StreamPointBuilder> mBuffer;
+    private final ArrayList<BufferedPoint> mBuffer;
+
+    /**
+     * Bytes counted against the {@link StreamMemoryBudget} for the points in {@link #mBuffer}
+     */
+    private long mBufferedBytes;
+
+    /**
+     * Flushes which are waiting for the buffered points to be sent
+     */
+    private final ArrayList<StreamFuture> mPendingFlushes = new ArrayList<StreamFuture>();
+
+    private final StreamBuffer mBudgetBuffer = new StreamBuffer() {
+        @Override
+        public void flushBuffer() {
+            // Points are only buffered until the service connects
+        }
+
+        @Override
+        public boolean dropOldest() {
+            synchronized (StreamWriter.this) {
+                if (mBuffer.isEmpty())
+                    return false;
+                BufferedPoint point = mBuffer.remove(0);
+                mBufferedBytes -= point.size;
+                StreamMemoryBudget.release(point.size, mBudget);
+                releaseId(point);
+                return true;
+            }
+        }
+
+        @Override
+        public void trimBuffer() {
+            synchronized (StreamWriter.this) {
+                mBuffer.trimToSize();
+            }
+        }
+    };
+
+    private final StreamMemoryBudget.Account mBudget;
 
     private IStreamReceiver dataService;
 
@@ -54,6 +92,38 @@ public class StreamWriter implements ServiceConnection {
 
     private boolean mShouldClose = false;
 
+    private volatile StreamDedupFilter mDedupFilter;
+
+    /**
+     * A point held until the service connects
+     */
+    private static final class BufferedPoint {
+        final String streamId;
+        final int streamVersion;
+        final String metadata;
+        final String data;
+
+        /**
+         * The bytes reserved for the point
+         */
+        final long size;
+
+        /**
+         * The hash of the point id which is pending in the dedup filter, or 0
+         */
+        long idHash;
+
+        BufferedPoint(String streamId, int streamVersion, String metadata, String data,
+                      long size, long idHash) {
+            this.streamId = streamId;
+            this.streamVersion = streamVersion;
+            this.metadata = metadata;
+            this.data = data;
+            this.size = size;
+            this.idHash = idHash;
+        }
+    }
+
     public static interface ServiceConnectionChange {
         public void onServiceConnected(StreamWriter writer);
 
@@ -62,7 +132,8 @@ public class StreamWriter implements ServiceConnection {
 
     public StreamWriter(Context context) {
         mContext = context;
-        mBuffer = new ArrayList<StreamPointBuilder>();
+        mBuffer = new ArrayList<BufferedPoint>();
+        mBudget = StreamMemoryBudget.register(mBudgetBuffer);
     }
 
     /**
@@ -76,15 +147,23 @@ public class StreamWriter implements ServiceConnection {
             mListener.onServiceConnected(this);
 
         // Write any streams which came before we were connected
-        for (StreamPointBuilder stream : mBuffer) {
+        int written = 0;
+        for (BufferedPoint point : mBuffer) {
             try {
-                stream.write(this);
+                // Buffered points were already checked when they were written
+                send(point.streamId, point.streamVersion, point.metadata, point.data);
+                written++;
+                StreamDedupFilter dedup = mDedupFilter;
+                if (dedup != null)
+                    dedup.putHash(point.idHash);
+                point.idHash = 0;
             } catch (RemoteException e) {
                 // Remote connection was lost
                 e.printStackTrace();
             }
         }
-        mBuffer.clear();
+        clearBuffer();
+        completeFlushes(written);
 
         if(mShouldClose) {
             close();
@@ -102,6 +181,11 @@ public class StreamWriter implements ServiceConnection {
             mListener.onServiceDisconnected(this);
     }
 
+    @Override
+    public boolean isConnected() {
+        return dataService != null;
+    }
+
     public boolean connect() {
         Intent intent = new Intent(ACTION_WRITE);
         return mContext.bindService(intent, this, Context.BIND_AUTO_CREATE);
@@ -111,6 +195,7 @@ public class StreamWriter implements ServiceConnection {
         mListener = listener;
     }
 
+    @Override
     public void close() {
         if(!mBuffer.isEmpty()) {
             mShouldClose = true;
@@ -120,36 +205,245 @@ public class StreamWriter implements ServiceConnection {
         }
     }
 
-    public synchronized void write(String streamId, int streamVersion, String metadata, String data)
+    @Override
+    public void write(String streamId, int streamVersion, String metadata, String data)
             throws RemoteException {
+        write(streamId, streamVersion, metadata, data, null, null);
+    }
 
-        if (TextUtils.isEmpty(data))
-            throw new RuntimeException("Must specify data");
+    @Override
+    public void write(StreamPointBuilder point) throws RemoteException {
+        write(point.getStreamId(), point.getStreamVersion(), point.encodeMetadata(),
+                point.getData(), point.getHandle(), point.getPolicy());
+    }
 
-        // Check that the data is valid json
-        try {
-            new JSONObject(data);
-        } catch (JSONException e) {
-            throw new RuntimeException("data not valid json");
-        }
+    /**
+     * Checks the point and sends or buffers it. The point is counted against its handle once it
+     * was admitted.
+     *
+     * @param handle the handle of the point, or null
+     * @param policy the policy of the stream, or null to look it up
+     */
+    private synchronized void write(String streamId, int streamVersion, String metadata,
+                                    String data, StreamHandle handle, StreamPolicy policy)
+            throws RemoteException {
+        checkPoint(streamId, streamVersion, metadata, data, handle, policy);
 
-        // Check that the metadata is valid json
-        if (!TextUtils.isEmpty(metadata)) {
+        if (dataService != null) {
+            if (!admit(streamId, streamVersion, handle))
+                return;
+            StreamDedupFilter dedup = mDedupFilter;
+            long idHash = dedup != null ? dedup.checkMetadata(metadata) : 0;
+            if (idHash == -1)
+                return;
+            boolean sent = false;
             try {
-                new JSONObject(metadata);
-            } catch (JSONException e) {
-                throw new RuntimeException("metadata not valid json");
+                send(streamId, streamVersion, metadata, data);
+                sent = true;
+            } finally {
+                // Only remembered once it was sent so a failed send can be retried
+                if (dedup != null) {
+                    if (sent)
+                        dedup.putHash(idHash);
+                    else
+                        dedup.releaseHash(idHash);
+                }
+            }
+        } else {
+            // Reserved first so a point the budget drops doesn't use up the rate limit
+            long size = StreamMemoryBudget.sizeOf(streamId, metadata, data);
+            if (!StreamMemoryBudget.reserve(size, mBudget, false))
+                return;
+            if (!admit(streamId, streamVersion, handle)) {
+                StreamMemoryBudget.release(size, mBudget);
+                return;
+            }
+            // The id stays pending until the point is sent when the service connects
+            StreamDedupFilter dedup = mDedupFilter;
+            long idHash = dedup != null ? dedup.checkMetadata(metadata) : 0;
+            if (idHash == -1) {
+                StreamMemoryBudget.release(size, mBudget);
+                return;
             }
+            buffer(streamId, streamVersion, metadata, data, size, idHash);
         }
+    }
+
+    /**
+     * Checks the point against the rate limit of its stream and counts it if it is admitted
+     */
+    private static boolean admit(String streamId, int streamVersion, StreamHandle handle) {
+        if (handle == null)
+            return StreamRateLimiter.admitNow(streamId, streamVersion);
+        if (handle.admit(false) != StreamRateLimiter.ADMIT)
+            return false;
+        handle.countPoint();
+        return true;
+    }
 
+    /**
+     * Sends a point which was already admitted by a transport, such as a point which was framed
+     * for a pipe which broke. The point is not validated or checked against the rate limit and
+     * dedup filter again.
+     *
+     * @throws RemoteException if there was a problem sending the point to ohmage
+     */
+    synchronized void replay(String streamId, int streamVersion, String metadata, String data)
+            throws RemoteException {
         if (dataService != null) {
-            dataService.sendStream(streamId, streamVersion, metadata, data);
+            send(streamId, streamVersion, metadata, data);
         } else {
-            mBuffer.add(new StreamPointBuilder(streamId, streamVersion)
-                    .setData(data)
-                    .setMetadata(metadata));
-            if (!connect())
-                mBuffer.clear(); // No point in buffering data if we can't connect to the service
+            long size = StreamMemoryBudget.sizeOf(streamId, metadata, data);
+            if (StreamMemoryBudget.reserve(size, mBudget, false))
+                buffer(streamId, streamVersion, metadata, data, size, 0);
         }
     }
+
+    private void send(String streamId, int streamVersion, String metadata, String data)
+            throws RemoteException {
+        boolean section = StreamTracer.beginSection("sendStream");
+        try {
+            dataService.sendStream(streamId, streamVersion, metadata, data);
+        } finally {
+            StreamTracer.endSection(section);
+        }
+        StreamCountsCache.pointsWritten(streamId, streamVersion, 1);
+    }
+
+    /**
+     * Holds a point until the service is connected
+     *
+     * @param size   the bytes already reserved for the point
+     * @param idHash the hash of the point id which is pending in the dedup filter, or 0
+     */
+    private void buffer(String streamId, int streamVersion, String metadata, String data,
+                        long size, long idHash) {
+        mBuffer.add(new BufferedPoint(streamId, streamVersion, metadata, data, size, idHash));
+        mBufferedBytes += size;
+        if (!connect()) {
+            clearBuffer(); // No point in buffering data if we can't connect to the service
+            completeFlushes(0);
+        }
+    }
+
+    /**
+     * Drops points whose id was already sent within the window of the filter. This keeps points
+     * which are replayed after a reconnect, or sent again from an outbox after a crash, from
+     * being saved twice. Points written to a {@link PipeStreamTransport} over this writer are
+     * checked as well.
+     *
+     * @param filter the filter to check ids against, or null to send every point
+     */
+    @Override
+    public void setDedupFilter(StreamDedupFilter filter) {
+        mDedupFilter = filter;
+    }
+
+    /**
+     * @return the filter set with {@link #setDedupFilter}, or null
+     */
+    StreamDedupFilter getDedupFilter() {
+        return mDedupFilter;
+    }
+
+    /**
+     * Returns a {@link StreamFuture} which completes once all points written before this call have
+     * been sent to ohmage. Points are only held back while the service is connecting, so if the
+     * writer is connected the future is already complete.
+     *
+     * @return a {@link StreamFuture} which completes with the number of buffered points sent
+     */
+    @Override
+    public synchronized StreamFuture flush() {
+        if (mBuffer.isEmpty())
+            return StreamFuture.completed(0);
+        StreamFuture future = new StreamFuture();
+        mPendingFlushes.add(future);
+        return future;
+    }
+
+    /**
+     * Waits for all points written before this call to be sent to ohmage. Must not be called from
+     * the main thread since the service connects on the main thread.
+     *
+     * @param timeout the maximum time in ms to wait
+     * @return a {@link StreamFuture} which is done if the points were sent before the timeout
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws IllegalStateException if called from the main thread
+     */
+    @Override
+    public StreamFuture drain(long timeout) throws InterruptedException {
+        if (Looper.myLooper() == Looper.getMainLooper())
+            throw new IllegalStateException("drain() would deadlock on the main thread");
+        StreamFuture future = flush();
+        future.await(timeout, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private synchronized void completeFlushes(int count) {
+        for (StreamFuture future : mPendingFlushes) {
+            future.complete(count);
+        }
+        mPendingFlushes.clear();
+    }
+
+    private synchronized void clearBuffer() {
+        for (BufferedPoint point : mBuffer) {
+            releaseId(point);
+        }
+        mBuffer.clear();
+        StreamMemoryBudget.release(mBufferedBytes, mBudget);
+        mBufferedBytes = 0;
+    }
+
+    /**
+     * Releases the id of a buffered point which was not sent so it can be written again
+     */
+    private void releaseId(BufferedPoint point) {
+        StreamDedupFilter dedup = mDedupFilter;
+        if (dedup != null && point.idHash != 0)
+            dedup.releaseHash(point.idHash);
+        point.idHash = 0;
+    }
+
+    /**
+     * Returns the remote service if it is connected
+     *
+     * @return the service or null if it isn't connected
+     */
+    IStreamReceiver getService() {
+        return dataService;
+    }
+
+    /**
+     * Checks that the data and metadata for a point are valid json. If a {@link ConcordiaSchema}
+     * is registered for the stream the data is checked against it instead. Only the data being
+     * there is checked if the {@link StreamPolicy} of the stream turns validation off.
+     *
+     * @param handle the handle of the point whose cached schema is used, or null
+     * @param policy the policy of the stream, or null to look it up
+     * @throws RuntimeException if the data or metadata are not valid
+     */
+    static void checkPoint(String streamId, int streamVersion, String metadata,
+                           CharSequence data, StreamHandle handle, StreamPolicy policy) {
+        if (TextUtils.isEmpty(data))
+            throw new RuntimeException("Must specify data");
+
+        if (policy == null)
+            policy = StreamPolicies.forStream(streamId, streamVersion);
+        if (policy.getValidation() == StreamPolicy.VALIDATION_NONE)
+            return;
+
+        ConcordiaSchema schema = handle != null ? handle.getSchema()
+                : ConcordiaSchema.forStream(streamId, streamVersion);
+        if (schema != null) {
+            schema.validate(data);
+        } else if (!JsonPullParser.isObject(data)) {
+            throw new RuntimeException("data not valid json");
+        }
+
+        // Check that the metadata is valid json
+        if (!TextUtils.isEmpty(metadata) && !JsonPullParser.isObject(metadata))
+            throw new RuntimeException("metadata not valid json");
+    }
 }
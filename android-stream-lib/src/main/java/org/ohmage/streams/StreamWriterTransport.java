@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.os.RemoteException;
+
+/**
+ * A {@link StreamTransport} which sends points over the remote service connection of a
+ * {@link StreamPointWriter} using {@link StreamPointBuilder#write(StreamPointWriter)}. Closing the
+ * transport closes the writer.
+ */
+public class StreamWriterTransport implements StreamTransport {
+
+    private final StreamPointWriter mWriter;
+
+    public StreamWriterTransport(StreamPointWriter writer) {
+        mWriter = writer;
+    }
+
+    @Override
+    public void write(StreamPointBuilder point) throws RemoteException {
+        point.write(mWriter);
+    }
+
+    /**
+     * @see StreamPointWriter#flush()
+     */
+    StreamFuture flush() {
+        return mWriter.flush();
+    }
+
+    @Override
+    public void close() {
+        mWriter.close();
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
+
+import org.ohmage.streams.StreamContract.StreamCounts;
+import org.ohmage.streams.StreamContract.Streams;
+
+import java.util.ArrayList;
+
+/**
+ * A local store for stream points used by {@link StreamsProvider} and
+ * {@link StreamReceiverService}. It stands in for ohmage in tests and is a baseline for how fast
+ * a receiver can save points.
+ * <p/>
+ * All inserts go through a single writer thread. Points which arrive while a transaction is
+ * committing are written together in the next transaction, so many producers share each commit
+ * instead of waiting for their own. Rows are written with one prepared statement and the database
+ * uses write-ahead logging on API 11 and up, so readers don't block the writer. If the writer
+ * fails, the writes it had not finished fail and the next write starts a new writer.
+ * <p/>
+ * The rows of a bulk insert are written in order and stop at the first row which can't be
+ * written, so the count returned is always of the first rows, as
+ * {@link AsyncBulkInsertHandler} expects.
+ */
+public class StreamsDatabase extends SQLiteOpenHelper {
+
+    private static final String TAG = "StreamsDatabase";
+
+    public static final String DATABASE_NAME = "streams.db";
+
+    private static final int DATABASE_VERSION = 1;
+
+    static final String TABLE_STREAMS = "streams";
+
+    private static final String SQL_INSERT = "INSERT INTO " + TABLE_STREAMS + " ("
+            + Streams.STREAM_ID + ", " + Streams.STREAM_VERSION + ", " + Streams.USERNAME + ", "
+            + Streams.STREAM_METADATA + ", " + Streams.STREAM_DATA + ") VALUES (?, ?, ?, ?, ?)";
+
+    /**
+     * Rows which can wait for the writer before callers are blocked
+     */
+    private static final int MAX_QUEUED = 10000;
+
+    private static StreamsDatabase sInstance;
+
+    private final Context mContext;
+
+    /**
+     * Writes waiting for the next transaction. Guards the fields below.
+     */
+    private final ArrayList<Write> mQueue = new ArrayList<Write>();
+
+    private int mQueuedRows;
+
+    private Thread mWriter;
+
+    private boolean mClosed;
+
+    /**
+     * Rows queued by one caller. Either holds content values or a single point.
+     */
+    private static final class Write {
+        final ContentValues[] values;
+
+        final String streamId;
+
+        final int streamVersion;
+
+        final String metadata;
+
+        final String data;
+
+        /**
+         * Completes with the number of rows written, or null if nobody waits for the write
+         */
+        final StreamFuture future;
+
+        long rowId = -1;
+
+        int written;
+
+        Write(ContentValues[] values, StreamFuture future) {
+            this.values = values;
+            this.streamId = null;
+            this.streamVersion = 0;
+            this.metadata = null;
+            this.data = null;
+            this.future = future;
+        }
+
+        Write(String streamId, int streamVersion, String metadata, String data) {
+            this.values = null;
+            this.streamId = streamId;
+            this.streamVersion = streamVersion;
+            this.metadata = metadata;
+            this.data = data;
+            this.future = null;
+        }
+
+        int rows() {
+            return values != null ? values.length : 1;
+        }
+    }
+
+    public StreamsDatabase(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param context
+     * @param name    the database file, or null for an in memory database
+     */
+    public StreamsDatabase(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    /**
+     * Returns the database shared by the provider and service of this process
+     *
+     * @param context
+     * @return the shared database
+     */
+    public static synchronized StreamsDatabase getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new StreamsDatabase(context.getApplicationContext());
+        return sInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_STREAMS + " ("
+                + Streams._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + Streams.STREAM_ID + " TEXT NOT NULL, "
+                + Streams.STREAM_VERSION + " INTEGER NOT NULL, "
+                + Streams.USERNAME + " TEXT, "
+                + Streams.STREAM_METADATA + " TEXT, "
+                + Streams.STREAM_DATA + " TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE_STREAMS + "_stream ON " + TABLE_STREAMS + " ("
+                + Streams.STREAM_ID + ", " + Streams.STREAM_VERSION + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_STREAMS);
+        onCreate(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            db.enableWriteAheadLogging();
+    }
+
+    /**
+     * Writes any queued points and closes the database
+     */
+    @Override
+    public void close() {
+        Thread writer;
+        synchronized (mQueue) {
+            mClosed = true;
+            writer = mWriter;
+            mQueue.notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (StreamsDatabase.class) {
+            if (sInstance == this)
+                sInstance = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Queues a point to be written without waiting for it. Blocks if the writer has fallen too far
+     * behind.
+     *
+     * @param streamId
+     * @param streamVersion
+     * @param metadata
+     * @param data
+     */
+    public void enqueue(String streamId, int streamVersion, String metadata, String data) {
+        try {
+            queue(new Write(streamId, streamVersion, metadata, data));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a row and waits for it to be committed
+     *
+     * @param values the columns of {@link Streams}
+     * @return the id of the new row, or -1 if it could not be written
+     */
+    public long insert(ContentValues values) {
+        Write write = new Write(new ContentValues[]{values}, new StreamFuture());
+        return await(write) == 1 ? write.rowId : -1;
+    }
+
+    /**
+     * Writes rows and waits for them to be committed
+     *
+     * @param values the columns of {@link Streams} for each row
+     * @return the number of rows written
+     */
+    public int bulkInsert(ContentValues[] values) {
+        if (values.length == 0)
+            return 0;
+        return await(new Write(values, new StreamFuture()));
+    }
+
+    private int await(Write write) {
+        try {
+            queue(write);
+            return write.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.e(TAG, "Insert failed", e);
+        }
+        return 0;
+    }
+
+    private void queue(Write write) throws InterruptedException {
+        synchronized (mQueue) {
+            if (mClosed)
+                throw new IllegalStateException("Database is closed");
+            while (mQueuedRows >= MAX_QUEUED) {
+                mQueue.wait();
+            }
+            mQueue.add(write);
+            mQueuedRows += write.rows();
+            if (mWriter == null) {
+                mWriter = new Thread(TAG) {
+                    @Override
+                    public void run() {
+                        runWriter();
+                    }
+                };
+                mWriter.start();
+            }
+            mQueue.notifyAll();
+        }
+    }
+
+    private void runWriter() {
+        ArrayList<Write> group = new ArrayList<Write>();
+        SQLiteStatement insert = null;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            insert = db.compileStatement(SQL_INSERT);
+            while (true) {
+                synchronized (mQueue) {
+                    while (mQueue.isEmpty() && !mClosed) {
+                        mQueue.wait();
+                    }
+                    if (mQueue.isEmpty())
+                        return;
+                    group.addAll(mQueue);
+                    mQueue.clear();
+                    mQueuedRows = 0;
+                    mQueue.notifyAll();
+                }
+
+                int written = commit(db, insert, group);
+                for (Write write : group) {
+                    if (write.future != null)
+                        write.future.complete(write.written);
+                }
+                group.clear();
+
+                if (written > 0) {
+                    ContentResolver resolver = mContext.getContentResolver();
+                    resolver.notifyChange(Streams.CONTENT_URI, null);
+                    resolver.notifyChange(StreamCounts.CONTENT_URI, null);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Writer interrupted", e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Writer failed", e);
+        } finally {
+            if (insert != null)
+                insert.close();
+            writerStopped(group);
+        }
+    }
+
+    /**
+     * Fails the writes the writer did not finish so nobody waits for them forever. The next write
+     * starts a new writer.
+     *
+     * @param group the writes the writer was committing
+     */
+    private void writerStopped(ArrayList<Write> group) {
+        synchronized (mQueue) {
+            group.addAll(mQueue);
+            mQueue.clear();
+            mQueuedRows = 0;
+            mWriter = null;
+            mQueue.notifyAll();
+        }
+        if (group.isEmpty())
+            return;
+        Log.e(TAG, "Dropped " + group.size() + " writes");
+        for (Write write : group) {
+            write.rowId = -1;
+            write.written = 0;
+            if (write.future != null)
+                write.future.complete(0);
+        }
+    }
+
+    /**
+     * Writes a group of rows in one transaction
+     *
+     * @return the number of rows written, or 0 if the transaction failed
+     */
+    private static int commit(SQLiteDatabase db, SQLiteStatement insert, ArrayList<Write> group) {
+        int written = 0;
+        try {
+            db.beginTransaction();
+            try {
+                for (Write write : group) {
+                    if (write.values != null) {
+                        for (ContentValues values : write.values) {
+                            bind(insert, 1, values.getAsString(Streams.STREAM_ID));
+                            Integer version = values.getAsInteger(Streams.STREAM_VERSION);
+                            if (version != null)
+                                insert.bindLong(2, version);
+                            else
+                                insert.bindNull(2);
+                            bind(insert, 3, values.getAsString(Streams.USERNAME));
+                            bind(insert, 4, values.getAsString(Streams.STREAM_METADATA));
+                            bind(insert, 5, values.getAsString(Streams.STREAM_DATA));
+                            if (execute(insert, write) == 0)
+                                break; // Later rows are skipped so the count is of the first rows
+                            written++;
+                        }
+                    } else {
+                        bind(insert, 1, write.streamId);
+                        insert.bindLong(2, write.streamVersion);
+                        insert.bindNull(3);
+                        bind(insert, 4, write.metadata);
+                        bind(insert, 5, write.data);
+                        written += execute(insert, write);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Unable to commit " + group.size() + " writes", e);
+            for (Write write : group) {
+                write.rowId = -1;
+                write.written = 0;
+            }
+            return 0;
+        }
+        return written;
+    }
+
+    private static void bind(SQLiteStatement insert, int index, String value) {
+        if (value != null)
+            insert.bindString(index, value);
+        else
+            insert.bindNull(index);
+    }
+
+    /**
+     * Inserts the bound row. Rows which break a constraint are skipped so they don't fail the rest
+     * of the group, but end the bulk insert they are part of.
+     *
+     * @return 1 if the row was written
+     */
+    private static int execute(SQLiteStatement insert, Write write) {
+        try {
+            long rowId = insert.executeInsert();
+            if (rowId == -1)
+                return 0;
+            write.rowId = rowId;
+            write.written++;
+            return 1;
+        } catch (SQLException e) {
+            Log.w(TAG, "Skipped invalid point", e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.ohmage.streams.StreamContract.StreamCounts;
+import org.ohmage.streams.StreamContract.Streams;
+
+/**
+ * A reference implementation of the ohmage streams provider backed by a {@link StreamsDatabase}.
+ * It accepts the inserts made by {@link StreamPointBuilder} and {@link AsyncBulkInsertHandler} and
+ * answers queries for {@link Streams} and {@link StreamCounts}, so streams can be tested and load
+ * tested without ohmage installed. Register it with Robolectric, or declare it in the manifest of
+ * a test app with the {@link StreamContract#CONTENT_AUTHORITY} authority.
+ * <p/>
+ * Inserts wait for the group commit of the database, so concurrent callers share transactions.
+ */
+public class StreamsProvider extends ContentProvider {
+
+    private static final int STREAMS = 1;
+
+    private static final int STREAM = 2;
+
+    private static final int COUNTS = 3;
+
+    private static final String STREAM_ITEM_TYPE =
+            "vnd.android.cursor.item/vnd.ohmage.streams.stream";
+
+    private static final String COUNT_COLUMN = "COUNT(*) AS " + StreamCounts.COUNT;
+
+    private static final String[] COUNTS_PROJECTION = new String[]{
+            StreamCounts.STREAM_ID, StreamCounts.STREAM_VERSION, COUNT_COLUMN
+    };
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "streams", STREAMS);
+        sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "streams/#", STREAM);
+        sUriMatcher.addURI(StreamContract.CONTENT_AUTHORITY, "counts", COUNTS);
+    }
+
+    private StreamsDatabase mDatabase;
+
+    @Override
+    public boolean onCreate() {
+        mDatabase = StreamsDatabase.getInstance(getContext());
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case STREAMS:
+                return Streams.CONTENT_TYPE;
+            case STREAM:
+                return STREAM_ITEM_TYPE;
+            case COUNTS:
+                return StreamCounts.CONTENT_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        Cursor cursor;
+        switch (sUriMatcher.match(uri)) {
+            case STREAMS:
+                cursor = mDatabase.getReadableDatabase().query(StreamsDatabase.TABLE_STREAMS,
+                        projection, selection, selectionArgs, null, null, sortOrder, null);
+                break;
+            case STREAM:
+                cursor = mDatabase.getReadableDatabase().query(StreamsDatabase.TABLE_STREAMS,
+                        projection, whereId(uri, selection), selectionArgs, null, null, sortOrder,
+                        null);
+                break;
+            case COUNTS:
+                cursor = mDatabase.getReadableDatabase().query(StreamsDatabase.TABLE_STREAMS,
+                        countsProjection(projection), selection, selectionArgs,
+                        StreamCounts.STREAM_ID + ", " + StreamCounts.STREAM_VERSION, null,
+                        sortOrder, null);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown uri " + uri);
+        }
+        if (cursor != null)
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        if (sUriMatcher.match(uri) != STREAMS)
+            throw new IllegalArgumentException("Unknown uri " + uri);
+        long id = mDatabase.insert(values);
+        return id != -1 ? ContentUris.withAppendedId(uri, id) : null;
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != STREAMS)
+            throw new IllegalArgumentException("Unknown uri " + uri);
+        return mDatabase.bulkInsert(values);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        int match = sUriMatcher.match(uri);
+        if (match != STREAMS && match != STREAM)
+            throw new IllegalArgumentException("Unknown uri " + uri);
+        if (match == STREAM)
+            selection = whereId(uri, selection);
+        int count = mDatabase.getWritableDatabase().delete(StreamsDatabase.TABLE_STREAMS,
+                selection, selectionArgs);
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(Streams.CONTENT_URI, null);
+            getContext().getContentResolver().notifyChange(StreamCounts.CONTENT_URI, null);
+        }
+        return count;
+    }
+
+    /**
+     * Points are never changed once they are written
+     */
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Stream points can't be updated");
+    }
+
+    @Override
+    public void shutdown() {
+        mDatabase.close();
+    }
+
+    private static String whereId(Uri uri, String selection) {
+        String where = Streams._ID + "=" + ContentUris.parseId(uri);
+        if (selection == null || selection.length() == 0)
+            return where;
+        return where + " AND (" + selection + ")";
+    }
+
+    /**
+     * Replaces the {@link StreamCounts#COUNT} column with the aggregate which computes it
+     */
+    private static String[] countsProjection(String[] projection) {
+        if (projection == null)
+            return COUNTS_PROJECTION;
+        String[] columns = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = StreamCounts.COUNT.equals(projection[i]) ? COUNT_COLUMN : projection[i];
+        }
+        return columns;
+    }
+}
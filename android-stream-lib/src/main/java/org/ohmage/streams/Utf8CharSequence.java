@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 ohmage
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ohmage.streams;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Point data given as UTF-8 bytes. The bytes are kept as they are so they can be copied straight
+ * into a pipe frame. The chars are decoded once, the first time they are read, so writes which
+ * only copy the bytes never decode them. Use {@link #byteLength()} for a size which doesn't
+ * decode them either.
+ * <p/>
+ * The bytes are only copied as they are if they are valid UTF-8, which is checked once with
+ * {@link #isValidUtf8()}. Malformed bytes are replaced when they are decoded, the same as on every
+ * other write path.
+ */
+final class Utf8CharSequence implements CharSequence {
+
+    private final ByteBuffer mBytes;
+
+    /**
+     * 1 if the bytes are valid UTF-8, -1 if they are not, or 0 until they were checked
+     */
+    private int mValid;
+
+    private String mDecoded;
+
+    /**
+     * @param bytes the bytes from position to limit are used. The buffer must not be changed.
+     */
+    Utf8CharSequence(ByteBuffer bytes) {
+        mBytes = bytes.slice();
+    }
+
+    /**
+     * @return a read only view of the bytes
+     */
+    ByteBuffer getBytes() {
+        return mBytes.asReadOnlyBuffer();
+    }
+
+    /**
+     * Checks that the bytes are well formed UTF-8 without overlong forms, surrogates or code
+     * points past U+10FFFF. The result is remembered.
+     *
+     * @return true if the bytes can be copied without decoding them
+     */
+    /**
+     * @return the number of bytes, which is at least the number of chars
+     */
+    int byteLength() {
+        return mBytes.limit();
+    }
+
+    boolean isValidUtf8() {
+        if (mValid == 0)
+            mValid = isValidUtf8(mBytes) ? 1 : -1;
+        return mValid == 1;
+    }
+
+    static boolean isValidUtf8(ByteBuffer bytes) {
+        int limit = bytes.limit();
+        int i = bytes.position();
+        while (i < limit) {
+            int b = bytes.get(i++) & 0xff;
+            if (b < 0x80)
+                continue;
+            int more;
+            int min;
+            if (b >= 0xc2 && b <= 0xdf) {
+                more = 1;
+                min = 0x80;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                more = 2;
+                min = 0x800;
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                more = 3;
+                min = 0x10000;
+            } else {
+                return false;
+            }
+            if (i + more > limit)
+                return false;
+            int cp = b & (0x3f >> more);
+            for (int j = 0; j < more; j++) {
+                int c = bytes.get(i++) & 0xff;
+                if ((c & 0xc0) != 0x80)
+                    return false;
+                cp = (cp << 6) | (c & 0x3f);
+            }
+            if (cp < min || cp > 0x10ffff || (cp >= 0xd800 && cp <= 0xdfff))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (mDecoded == null)
+            mDecoded = StreamFrameWriter.UTF_8.decode(mBytes.duplicate()).toString();
+        return mDecoded;
+    }
+}